@@ -0,0 +1,58 @@
+package dev.heinzl.glasscompanion.stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame cost of the change score used by mode=changes streams, compared with fully
+ * decoding the frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChangeDetectionBenchmark {
+
+    @Param({"320x240", "640x480", "1920x1440"})
+    public String resolution;
+
+    private byte[] image;
+    private LumaThumbnail reference;
+
+    @Setup
+    public void setup() throws IOException {
+        String[] size = resolution.split("x");
+        image = TestJpegs.encode(Integer.parseInt(size[0]), Integer.parseInt(size[1]), 42);
+        byte[] other = TestJpegs.encode(Integer.parseInt(size[0]), Integer.parseInt(size[1]), 43);
+        reference = LumaThumbnail.fromJpeg(other, other.length);
+    }
+
+    /** Thumbnail from the DC coefficients, as computed once per frame. */
+    @Benchmark
+    public LumaThumbnail thumbnail() {
+        return LumaThumbnail.fromJpeg(image, image.length);
+    }
+
+    /** Comparison with the reference, as done per frame and connection. */
+    @Benchmark
+    public double thumbnailAndCompare() {
+        return LumaThumbnail.fromJpeg(image, image.length).changedFraction(reference, 8);
+    }
+
+    /** Baseline: decode the whole image. */
+    @Benchmark
+    public BufferedImage fullDecode() throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(image));
+    }
+}
@@ -0,0 +1,66 @@
+package dev.heinzl.glasscompanion.stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame cost of getting a captured JPEG out of the camera's plane buffer:
+ * finding the end of the image and copying it into a frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameCopyBenchmark {
+
+    /* JPEG planes are allocated for the worst case and mostly padding. */
+    private static final int PLANE_CAPACITY = 1024 * 1024;
+
+    @Param({"30000", "100000", "300000"})
+    public int size;
+
+    private ByteBuffer plane;
+    private FrameBuffer frameBuffer;
+
+    @Setup
+    public void setup() {
+        plane = TestJpegs.plane(TestJpegs.create(size, 42), PLANE_CAPACITY);
+        frameBuffer = new FrameBuffer();
+    }
+
+    /** Locate EOI by walking the JPEG structure. */
+    @Benchmark
+    public int findEndOfImage() {
+        return Jpeg.findEndOfImage(plane);
+    }
+
+    /** Copy into a pooled array, as done for every captured frame. */
+    @Benchmark
+    public long publish() {
+        ByteBuffer buffer = plane.duplicate();
+        buffer.limit(buffer.position() + Jpeg.findEndOfImage(buffer));
+        return frameBuffer.publish(buffer);
+    }
+
+    /** Baseline: copy the whole plane into a new array, then scan back over trailing zeros. */
+    @Benchmark
+    public byte[] copyAndTrim() {
+        ByteBuffer buffer = plane.duplicate();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        int length = bytes.length;
+        while (length > 0 && bytes[length - 1] == 0)
+            length--;
+        byte[] trimmed = new byte[length];
+        System.arraycopy(bytes, 0, trimmed, 0, length);
+        return trimmed;
+    }
+}
@@ -0,0 +1,75 @@
+package dev.heinzl.glasscompanion.stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention on the frame buffer between one producer and several readers.
+ *
+ * The producer publishes as fast as it can, each reader takes the newest frame it has not
+ * seen yet. The number of readers is set at run time with the thread group option, e.g.
+ * {@code -tg 1,16} for one producer and 16 readers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HandoffBenchmark {
+
+    /* Short enough that readers notice the end of an iteration quickly. */
+    private static final long FRAME_WAIT_MILLIS = 10;
+
+    @State(Scope.Group)
+    public static class Shared {
+
+        @Param({"30000", "300000"})
+        public int size;
+
+        FrameBuffer frameBuffer;
+        ByteBuffer image;
+
+        @Setup
+        public void setup() {
+            frameBuffer = new FrameBuffer();
+            image = ByteBuffer.wrap(TestJpegs.create(size, 42));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+        long lastSequence;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public long publish(Shared shared) {
+        return shared.frameBuffer.publish(shared.image.duplicate());
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(4)
+    public void read(Shared shared, Reader reader, Blackhole blackhole) throws InterruptedException {
+        Frame frame = shared.frameBuffer.awaitFrameAfter(reader.lastSequence, FRAME_WAIT_MILLIS);
+        if (frame == null)
+            return;
+        try {
+            reader.lastSequence = frame.getSequence();
+            /* Touch the data like a writer would, without the cost of a socket. */
+            blackhole.consume(frame.getData()[frame.getLength() - 1]);
+        } finally {
+            frame.release();
+        }
+    }
+}
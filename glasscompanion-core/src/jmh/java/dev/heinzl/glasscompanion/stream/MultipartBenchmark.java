@@ -0,0 +1,91 @@
+package dev.heinzl.glasscompanion.stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of MJPEG multipart framing. The output stream copies into a fixed buffer the
+ * way a socket stream fills its send buffer, without any network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MultipartBenchmark {
+
+    private static final long TIMESTAMP_MICROS = 1650000000123456L;
+
+    @Param({"30000", "100000", "300000"})
+    public int size;
+
+    private byte[] image;
+    private ByteBuffer mappedImage;
+    private CountingOutputStream output;
+    private MultipartWriter writer;
+
+    @Setup
+    public void setup() {
+        image = TestJpegs.create(size, 42);
+        mappedImage = TestJpegs.plane(image, size);
+        output = new CountingOutputStream();
+        writer = new MultipartWriter(output);
+    }
+
+    @Benchmark
+    public int writeArray() throws IOException {
+        return writer.writePart(image, image.length, TIMESTAMP_MICROS);
+    }
+
+    /** Direct buffers take the channel path, as used for replaying mapped recordings. */
+    @Benchmark
+    public int writeDirectBuffer() throws IOException {
+        return writer.writePart(mappedImage.duplicate(), TIMESTAMP_MICROS);
+    }
+
+    /** Baseline: build the part head as a string for every frame. */
+    @Benchmark
+    public long writeStringHead() throws IOException {
+        output.write(("--boundary\r\nConnection: keep-alive\r\nContent-Type: image/jpeg\r\nContent-Length: "
+                + image.length + "\r\nX-Timestamp: " + TIMESTAMP_MICROS / 1000000 + "." + TIMESTAMP_MICROS % 1000000
+                + "\r\n\r\n").getBytes());
+        output.write(image, 0, image.length);
+        output.write("\r\n".getBytes());
+        return output.count;
+    }
+
+    /** Copies everything into a wrapping 64 KB buffer and counts the bytes. */
+    static final class CountingOutputStream extends OutputStream {
+        private final byte[] sendBuffer = new byte[64 * 1024];
+        private int position;
+        long count;
+
+        @Override
+        public void write(int b) {
+            sendBuffer[position] = (byte) b;
+            position = (position + 1) % sendBuffer.length;
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+            while (len > 0) {
+                int chunk = Math.min(len, sendBuffer.length - position);
+                System.arraycopy(b, off, sendBuffer, position, chunk);
+                position = (position + chunk) % sendBuffer.length;
+                off += chunk;
+                len -= chunk;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package dev.heinzl.glasscompanion.stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoded frames per second of {@link ParallelJpegEncoder} depending on the number of workers,
+ * with the JDK's JPEG encoder standing in for the phone's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParallelEncodeBenchmark {
+
+    private static final int FRAMES = 16;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    @Param({"640x480", "1920x1440"})
+    public String resolution;
+
+    private BufferedImage image;
+    private ExecutorService executor;
+    private FrameBuffer frameBuffer;
+    private ParallelJpegEncoder encoder;
+
+    @Setup
+    public void setup() throws IOException {
+        String[] size = resolution.split("x");
+        byte[] jpeg = TestJpegs.encode(Integer.parseInt(size[0]), Integer.parseInt(size[1]), 42);
+        image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        executor = Executors.newFixedThreadPool(threads);
+        frameBuffer = new FrameBuffer();
+        /* Room for a whole batch and no age limit: every frame is encoded. */
+        encoder = new ParallelJpegEncoder(frameBuffer, executor, FRAMES, TimeUnit.DAYS.toMillis(1));
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoder.close();
+        executor.shutdown();
+    }
+
+    /** Submit a batch of frames and wait until all of them are published in order. */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long encode() throws InterruptedException {
+        long target = frameBuffer.getPublishedFrames() + FRAMES;
+        for (int i = 0; i < FRAMES; i++)
+            encoder.submit(new ImageJob());
+        while (frameBuffer.getPublishedFrames() < target)
+            Thread.sleep(0, 100000);
+        return frameBuffer.getSequence();
+    }
+
+    private final class ImageJob implements ParallelJpegEncoder.Job {
+        @Override
+        public void encode(OutputStream output) throws IOException {
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+            try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(0.85f);
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package dev.heinzl.glasscompanion.stream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Synthetic JPEG-shaped payloads for benchmarks.
+ *
+ * The images of {@link #create} are not decodable, but have the structure the stream code cares about: SOI,
+ * a few marker segments, entropy-coded data with stuffed 0xFF bytes and restart markers,
+ * and EOI. Like the camera's JPEG planes they can be padded with zeros to a fixed capacity.
+ */
+final class TestJpegs {
+
+    private TestJpegs() {
+    }
+
+    /** Create an image of exactly the given size. */
+    static byte[] create(int size, long seed) {
+        Random random = new Random(seed);
+        byte[] image = new byte[size];
+        int position = 0;
+
+        /* SOI */
+        image[position++] = (byte) 0xFF;
+        image[position++] = (byte) 0xD8;
+
+        /* APP0, DQT and SOS headers with arbitrary contents. */
+        for (int marker : new int[] {0xE0, 0xDB, 0xDA}) {
+            int length = 64;
+            image[position++] = (byte) 0xFF;
+            image[position++] = (byte) marker;
+            image[position++] = (byte) (length >> 8);
+            image[position++] = (byte) length;
+            for (int i = 2; i < length; i++)
+                image[position++] = (byte) random.nextInt(0xFF);
+        }
+
+        /* Entropy-coded data up to the EOI marker. */
+        int end = size - 2;
+        int restart = 0;
+        while (position < end) {
+            int value = random.nextInt(256);
+            if (value == 0xFF && position + 1 < end) {
+                image[position++] = (byte) 0xFF;
+                /* Mostly stuffed bytes, sometimes a restart marker. */
+                image[position++] = random.nextInt(16) == 0 ? (byte) (0xD0 + (restart++ & 7)) : 0;
+            } else if (value != 0xFF) {
+                image[position++] = (byte) value;
+            }
+        }
+
+        /* EOI */
+        image[end] = (byte) 0xFF;
+        image[end + 1] = (byte) 0xD9;
+        return image;
+    }
+
+    /** Put an image into a zero-padded direct buffer, like an ImageReader JPEG plane. */
+    static ByteBuffer plane(byte[] image, int capacity) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(capacity);
+        plane.put(image);
+        plane.clear();
+        return plane;
+    }
+
+    /** Encode a real, decodable image of random shapes, for code which parses the entropy-coded data. */
+    static byte[] encode(int width, int height, long seed) throws IOException {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        for (int i = 0; i < 200; i++) {
+            graphics.setColor(new Color(random.nextInt()));
+            graphics.fillOval(random.nextInt(width), random.nextInt(height), random.nextInt(width / 3), random.nextInt(height / 3));
+        }
+        graphics.dispose();
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.85f);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,77 @@
+package dev.heinzl.glasscompanion.metrics;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations over fixed buckets, in the shape Prometheus expects.
+ *
+ * Recording a value is a short linear scan over the bucket bounds and two uncontended adds,
+ * so it can be done for every frame. Bucket counts are kept per bucket and only accumulated
+ * when the histogram is read.
+ */
+public final class Histogram {
+
+    /* Bounds for operations on the order of network sends and frame intervals. */
+    public static final double[] LATENCY_BUCKETS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5};
+
+    /* Bounds for in-memory work on a single frame. */
+    public static final double[] FAST_BUCKETS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05};
+
+    private final double[] bounds;
+    private final long[] boundNanos;
+    /* One more than there are bounds, the last one counting everything above. */
+    private final LongAdder[] buckets;
+    private final LongAdder sumNanos = new LongAdder();
+
+    /**
+     * @param bounds Upper bounds of the buckets in seconds, in ascending order.
+     */
+    public Histogram(@NonNull double[] bounds) {
+        this.bounds = bounds.clone();
+        this.boundNanos = new long[bounds.length];
+        for (int i = 0; i < bounds.length; i++)
+            boundNanos[i] = (long) (bounds[i] * 1e9);
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /** Record one duration given in nanoseconds. */
+    public void observeNanos(long nanos) {
+        int i = 0;
+        while (i < boundNanos.length && nanos > boundNanos[i])
+            i++;
+        buckets[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    /** Upper bounds of the buckets in seconds, without the implicit +Inf bucket. */
+    @NonNull
+    public double[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Cumulative counts: element i counts all values up to bound i, the last element counts
+     * all values. Concurrent updates may or may not be included.
+     */
+    @NonNull
+    public long[] getCumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    /** Sum of all recorded values in seconds. */
+    public double getSum() {
+        return sumNanos.sum() / 1e9;
+    }
+}
@@ -0,0 +1,108 @@
+package dev.heinzl.glasscompanion.metrics;
+
+import androidx.annotation.NonNull;
+
+import java.math.BigDecimal;
+
+/**
+ * Builds a scrape response in the Prometheus text exposition format (version 0.0.4).
+ *
+ * Samples of one metric must be written right after its {@link #header}. Labels are given as
+ * alternating names and values.
+ */
+public final class PrometheusWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder output = new StringBuilder(4096);
+
+    /**
+     * Start a metric.
+     * @param type One of "counter", "gauge" or "histogram".
+     */
+    public PrometheusWriter header(@NonNull String name, @NonNull String help, @NonNull String type) {
+        output.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+        output.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    public PrometheusWriter sample(@NonNull String name, double value, @NonNull String... labels) {
+        output.append(name);
+        appendLabels(labels, null, null);
+        output.append(' ').append(formatValue(value)).append('\n');
+        return this;
+    }
+
+    public PrometheusWriter sample(@NonNull String name, long value, @NonNull String... labels) {
+        output.append(name);
+        appendLabels(labels, null, null);
+        output.append(' ').append(value).append('\n');
+        return this;
+    }
+
+    /** Write the bucket, sum and count series of a histogram. */
+    public PrometheusWriter histogram(@NonNull String name, @NonNull Histogram histogram, @NonNull String... labels) {
+        double[] bounds = histogram.getBounds();
+        long[] counts = histogram.getCumulativeCounts();
+        for (int i = 0; i < counts.length; i++) {
+            output.append(name).append("_bucket");
+            appendLabels(labels, "le", i < bounds.length ? formatValue(bounds[i]) : "+Inf");
+            output.append(' ').append(counts[i]).append('\n');
+        }
+        output.append(name).append("_sum");
+        appendLabels(labels, null, null);
+        output.append(' ').append(formatValue(histogram.getSum())).append('\n');
+        output.append(name).append("_count");
+        appendLabels(labels, null, null);
+        output.append(' ').append(counts[counts.length - 1]).append('\n');
+        return this;
+    }
+
+    private void appendLabels(String[] labels, String extraName, String extraValue) {
+        if (labels.length == 0 && extraName == null)
+            return;
+        output.append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0)
+                output.append(',');
+            appendLabel(labels[i], labels[i + 1]);
+        }
+        if (extraName != null) {
+            if (labels.length > 0)
+                output.append(',');
+            appendLabel(extraName, extraValue);
+        }
+        output.append('}');
+    }
+
+    private void appendLabel(String name, String value) {
+        output.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"')
+                output.append('\\').append(c);
+            else if (c == '\n')
+                output.append("\\n");
+            else
+                output.append(c);
+        }
+        output.append('"');
+    }
+
+    private static String formatValue(double value) {
+        if (Double.isNaN(value))
+            return "NaN";
+        if (Double.isInfinite(value))
+            return value > 0 ? "+Inf" : "-Inf";
+        if (value == (long) value)
+            return Long.toString((long) value);
+        /* Plain notation, so bucket bounds read 0.0001 rather than 1.0E-4. */
+        return BigDecimal.valueOf(value).toPlainString();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return output.toString();
+    }
+}
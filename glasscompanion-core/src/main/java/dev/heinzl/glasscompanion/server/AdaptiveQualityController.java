@@ -0,0 +1,89 @@
+package dev.heinzl.glasscompanion.server;
+
+/**
+ * Per-connection controller choosing JPEG quality and frame skipping from the measured time
+ * to send a frame, aiming for a target time to deliver one frame.
+ *
+ * The controller backs off quality first and only starts skipping frames once the minimum
+ * quality is reached. Recovery happens in reverse order. Adjustments are spaced a few frames
+ * apart so the effect of the previous step can be observed before taking the next one.
+ */
+class AdaptiveQualityController {
+
+    /* Quality level meaning "send the camera image as is", without re-encoding. */
+    static final int ORIGINAL_QUALITY = 100;
+    static final int MIN_QUALITY = 30;
+    static final int QUALITY_STEP = 10;
+    static final int MAX_SKIPPED_FRAMES = 5;
+
+    /* Number of frames between two adjustments. */
+    private static final int ADJUST_INTERVAL = 5;
+
+    /* Weight of the newest sample in the moving average. */
+    private static final double SMOOTHING = 0.25;
+
+    private final long targetLatencyNanos;
+
+    private int quality = ORIGINAL_QUALITY;
+    private int framesToSkip = 0;
+    private int skippedFrames = 0;
+    private int framesSinceAdjust = 0;
+
+    private double averageSendNanos = -1;
+
+    /**
+     * @param targetLatencyMillis Desired time to deliver one frame to the client.
+     */
+    AdaptiveQualityController(long targetLatencyMillis) {
+        this.targetLatencyNanos = targetLatencyMillis * 1000000L;
+    }
+
+    /** JPEG quality to use for the next frame, {@link #ORIGINAL_QUALITY} for no re-encoding. */
+    int getQuality() {
+        return quality;
+    }
+
+    /** Return true if the next available frame should be dropped for this client. */
+    boolean shouldSkipFrame() {
+        if (skippedFrames < framesToSkip) {
+            skippedFrames++;
+            return true;
+        }
+        skippedFrames = 0;
+        return false;
+    }
+
+    /**
+     * Record the time it took to write one frame to the client.
+     * @param sendNanos Time spent in writing.
+     */
+    void onFrameSent(long sendNanos) {
+        sendNanos = Math.max(sendNanos, 1);
+        if (averageSendNanos < 0)
+            averageSendNanos = sendNanos;
+        else
+            averageSendNanos += SMOOTHING * (sendNanos - averageSendNanos);
+
+        if (++framesSinceAdjust < ADJUST_INTERVAL)
+            return;
+
+        if (averageSendNanos > targetLatencyNanos) {
+            if (quality > MIN_QUALITY)
+                quality = quality == ORIGINAL_QUALITY ? ORIGINAL_QUALITY - 2 * QUALITY_STEP : Math.max(MIN_QUALITY, quality - QUALITY_STEP);
+            else if (framesToSkip < MAX_SKIPPED_FRAMES)
+                framesToSkip++;
+            else
+                return;
+        } else if (averageSendNanos < targetLatencyNanos / 2) {
+            if (framesToSkip > 0)
+                framesToSkip--;
+            else if (quality < ORIGINAL_QUALITY)
+                quality = quality + QUALITY_STEP >= ORIGINAL_QUALITY - QUALITY_STEP ? ORIGINAL_QUALITY : quality + QUALITY_STEP;
+            else
+                return;
+        } else {
+            return;
+        }
+        framesSinceAdjust = 0;
+    }
+}
@@ -0,0 +1,70 @@
+package dev.heinzl.glasscompanion.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Part of a file a client asked for with a {@code Range: bytes=...} header, e.g. to resume a
+ * download.
+ *
+ * Only single ranges are supported: {@code first-last}, {@code first-} and {@code -suffix}.
+ * Requests for several ranges are answered with the whole file, which HTTP allows.
+ */
+final class ByteRange {
+
+    /** Returned by {@link #parse} for a range starting beyond the end of the file. */
+    static final ByteRange UNSATISFIABLE = new ByteRange(-1, 0);
+
+    final long start;
+    final long length;
+
+    private ByteRange(long start, long length) {
+        this.start = start;
+        this.length = length;
+    }
+
+    /** Value of the Content-Range header for a file of the given size. */
+    @NonNull
+    String toContentRange(long size) {
+        return "bytes " + start + "-" + (start + length - 1) + "/" + size;
+    }
+
+    /**
+     * Parse a Range header value for a file of the given size.
+     * @return The range, clipped to the file, {@link #UNSATISFIABLE}, or null if the whole
+     *         file is to be sent: no, an unsupported or a malformed header.
+     */
+    @Nullable
+    static ByteRange parse(@Nullable String value, long size) {
+        if (value == null || !value.startsWith("bytes="))
+            return null;
+        String spec = value.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0)
+            return null;
+
+        long first;
+        long last;
+        try {
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1).trim());
+                if (suffix <= 0)
+                    return suffix == 0 ? UNSATISFIABLE : null;
+                first = Math.max(0, size - suffix);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash).trim());
+                String end = spec.substring(dash + 1).trim();
+                last = end.isEmpty() ? size - 1 : Math.min(Long.parseLong(end), size - 1);
+                if (first < 0 || (!end.isEmpty() && Long.parseLong(end) < first))
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (first >= size)
+            return UNSATISFIABLE;
+        return new ByteRange(first, last - first + 1);
+    }
+}
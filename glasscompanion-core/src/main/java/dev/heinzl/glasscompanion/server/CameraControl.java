@@ -0,0 +1,138 @@
+package dev.heinzl.glasscompanion.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Remote control of the cameras and the torch, as offered by {@code /control}.
+ *
+ * Commands are applied in batches: all changes to one camera result in a single capture
+ * request update, and a remote operator needs a single round trip per interaction.
+ */
+public interface CameraControl {
+
+    /** Changes to the settings of one camera. Settings not given are kept. */
+    final class Command {
+        private final boolean reset;
+        @Nullable private final Float zoom;
+        private final boolean hasOffset;
+        private final int offsetX;
+        private final int offsetY;
+        private final boolean focus;
+
+        /**
+         * @param reset Reset zoom and offset before applying the other changes.
+         * @param zoom New zoom factor, or null to keep it.
+         * @param offset New image offset as x and y, or null to keep it.
+         * @param focus Trigger auto focus.
+         */
+        public Command(boolean reset, @Nullable Float zoom, @Nullable int[] offset, boolean focus) {
+            this.reset = reset;
+            this.zoom = zoom;
+            this.hasOffset = offset != null;
+            this.offsetX = offset != null ? offset[0] : 0;
+            this.offsetY = offset != null ? offset[1] : 0;
+            this.focus = focus;
+        }
+
+        public boolean isReset() {
+            return reset;
+        }
+
+        @Nullable
+        public Float getZoom() {
+            return zoom;
+        }
+
+        public boolean hasOffset() {
+            return hasOffset;
+        }
+
+        public int getOffsetX() {
+            return offsetX;
+        }
+
+        public int getOffsetY() {
+            return offsetY;
+        }
+
+        public boolean isFocus() {
+            return focus;
+        }
+    }
+
+    /** Settings of one camera and their limits. */
+    final class CameraState {
+        private final boolean available;
+        private final float zoom;
+        private final float maxZoom;
+        private final int offsetX;
+        private final int offsetY;
+        private final int maxOffsetX;
+        private final int maxOffsetY;
+        private final boolean autoFocus;
+
+        /**
+         * @param available Whether the camera is capturing and accepts commands.
+         * @param autoFocus Whether the camera supports triggering auto focus.
+         */
+        public CameraState(boolean available, float zoom, float maxZoom, int offsetX, int offsetY,
+                           int maxOffsetX, int maxOffsetY, boolean autoFocus) {
+            this.available = available;
+            this.zoom = zoom;
+            this.maxZoom = maxZoom;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.maxOffsetX = maxOffsetX;
+            this.maxOffsetY = maxOffsetY;
+            this.autoFocus = autoFocus;
+        }
+
+        public boolean isAvailable() {
+            return available;
+        }
+
+        public float getZoom() {
+            return zoom;
+        }
+
+        public float getMaxZoom() {
+            return maxZoom;
+        }
+
+        public int getOffsetX() {
+            return offsetX;
+        }
+
+        public int getOffsetY() {
+            return offsetY;
+        }
+
+        public int getMaxOffsetX() {
+            return maxOffsetX;
+        }
+
+        public int getMaxOffsetY() {
+            return maxOffsetY;
+        }
+
+        public boolean hasAutoFocus() {
+            return autoFocus;
+        }
+    }
+
+    /**
+     * Apply a batch of commands. Values out of range are clamped, commands for cameras which
+     * are not available are ignored. Called on a server thread.
+     * @param commands One command per camera, or null to leave a camera unchanged.
+     * @param torch New torch state, or null to keep it.
+     * @return The state of each camera after applying the commands.
+     * @throws IOException If the cameras did not respond in time.
+     */
+    @NonNull
+    CameraState[] apply(@NonNull Command[] commands, @Nullable Boolean torch) throws IOException;
+
+    boolean isTorchEnabled();
+}
@@ -0,0 +1,104 @@
+package dev.heinzl.glasscompanion.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The files saved on the device, e.g. clips, served as /captures.
+ *
+ * Captures may be spread over several directories, e.g. one per camera, and are listed
+ * together, so their names must be unique. Building the listing stats every file, hence it is
+ * cached and only rebuilt when a directory changed or the listing is older than a second,
+ * which also catches files still growing.
+ */
+final class CaptureDirectory {
+
+    /* Clips being written change their size, but not the directory. */
+    private static final long LISTING_MAX_AGE_MILLIS = 1000;
+
+    /** Listing of the captures as JSON with its entity tag. */
+    static final class Listing {
+        final byte[] json;
+        final String etag;
+
+        private Listing(byte[] json) {
+            this.json = json;
+            this.etag = "\"" + Integer.toHexString(Arrays.hashCode(json)) + "\"";
+        }
+    }
+
+    private final File[] directories;
+
+    /* Guarded by this. */
+    @Nullable private Listing listing;
+    private long listingStamp;
+    private long listingTime;
+
+    CaptureDirectory(@NonNull List<File> directories) {
+        this.directories = directories.toArray(new File[0]);
+    }
+
+    /** Listing of all captures, newest first, as {@code {"captures":[{"name", "size", "modified"}]}}. */
+    @NonNull
+    synchronized Listing getListing() {
+        long now = System.currentTimeMillis();
+        long stamp = 0;
+        for (File directory : directories)
+            stamp = 31 * stamp + directory.lastModified();
+        if (listing != null && stamp == listingStamp && now - listingTime < LISTING_MAX_AGE_MILLIS)
+            return listing;
+
+        List<File> files = new ArrayList<>();
+        for (File directory : directories) {
+            File[] entries = directory.listFiles();
+            if (entries == null)
+                continue;
+            for (File entry : entries) {
+                if (entry.isFile() && isValidName(entry.getName()))
+                    files.add(entry);
+            }
+        }
+        Collections.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+
+        StringBuilder json = new StringBuilder("{\"captures\":[");
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            if (i > 0)
+                json.append(',');
+            json.append("{\"name\":\"").append(file.getName())
+                    .append("\",\"size\":").append(file.length())
+                    .append(",\"modified\":").append(file.lastModified()).append('}');
+        }
+        json.append("]}");
+
+        listing = new Listing(json.toString().getBytes(StandardCharsets.UTF_8));
+        listingStamp = stamp;
+        listingTime = now;
+        return listing;
+    }
+
+    /** The capture of the given name, or null if there is none. */
+    @Nullable
+    File find(@NonNull String name) {
+        if (!isValidName(name))
+            return null;
+        for (File directory : directories) {
+            File file = new File(directory, name);
+            if (file.isFile())
+                return file;
+        }
+        return null;
+    }
+
+    /* Plain file names only, so requests cannot reach outside the directories; also keeps the JSON free of escapes. */
+    private static boolean isValidName(@NonNull String name) {
+        return !name.isEmpty() && !name.startsWith(".") && name.matches("[A-Za-z0-9._-]+");
+    }
+}
@@ -0,0 +1,52 @@
+package dev.heinzl.glasscompanion.server;
+
+import dev.heinzl.glasscompanion.stream.Frame;
+import dev.heinzl.glasscompanion.stream.LumaThumbnail;
+
+/**
+ * Per-connection filter suppressing frames which barely differ from the last frame sent,
+ * e.g. while the wearer looks at a static scene.
+ *
+ * Frames are compared against the last frame actually sent rather than the previous one, so
+ * slow drifts add up until they pass the threshold. A keep-alive frame is still sent at a
+ * minimum rate, which keeps the connection busy and lets clients detect a stalled stream.
+ */
+class ChangeDetector {
+
+    /* Brightness difference (0..255) of a thumbnail cell which counts as a change, above sensor noise. */
+    static final int LEVEL_THRESHOLD = 8;
+
+    private final double changedFractionThreshold;
+    private final long keepAliveNanos;
+
+    private LumaThumbnail reference;
+    private long lastSentTime;
+
+    /**
+     * @param thresholdPercent Share of the image which must change for a frame to be sent.
+     * @param keepAliveMillis Maximum time between two sent frames, even without changes.
+     */
+    ChangeDetector(int thresholdPercent, long keepAliveMillis) {
+        this.changedFractionThreshold = thresholdPercent / 100.0;
+        this.keepAliveNanos = keepAliveMillis * 1000000L;
+    }
+
+    /**
+     * Return true if the frame should be sent. Sent frames become the reference for the
+     * following ones. Only valid while holding a reference to the frame.
+     */
+    boolean shouldSend(Frame frame) {
+        long now = System.nanoTime();
+        LumaThumbnail thumbnail = frame.getLumaThumbnail();
+
+        boolean send = thumbnail == null
+                || reference == null
+                || now - lastSentTime >= keepAliveNanos
+                || thumbnail.changedFraction(reference, LEVEL_THRESHOLD) >= changedFractionThreshold;
+        if (send) {
+            reference = thumbnail;
+            lastSentTime = now;
+        }
+        return send;
+    }
+}
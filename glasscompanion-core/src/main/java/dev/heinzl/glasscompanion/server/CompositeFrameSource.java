@@ -0,0 +1,207 @@
+package dev.heinzl.glasscompanion.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import dev.heinzl.glasscompanion.stream.Frame;
+import dev.heinzl.glasscompanion.stream.FrameBuffer;
+import dev.heinzl.glasscompanion.stream.FrameLog;
+import dev.heinzl.glasscompanion.stream.FrameSource;
+import dev.heinzl.glasscompanion.stream.PreEventBuffer;
+import dev.heinzl.glasscompanion.stream.SnapshotCache;
+import dev.heinzl.glasscompanion.stream.StreamProfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Frames of two cameras composed into one image, side by side or picture in picture.
+ *
+ * Per stream profile a compositor thread pairs each frame of the first camera with the frame
+ * of the second camera nearest in time, composes and encodes them, and publishes the result
+ * to a frame buffer of its own. All clients of a profile share that single encode.
+ * The thread only runs, and only keeps the cameras capturing, while the composite has
+ * subscribers.
+ */
+class CompositeFrameSource implements FrameSource {
+
+    private static final Logger LOG = Logger.getLogger("CompositeFrameSource");
+
+    private static final int COMPOSITE_QUALITY = 85;
+
+    /* How long the compositor parks for a frame before re-checking whether it should stop. */
+    private static final long FRAME_WAIT_MILLIS = 1000;
+
+    private final FrameSource first;
+    private final FrameSource second;
+    private final boolean pictureInPicture;
+    private final JpegTranscoder transcoder;
+    private final Map<StreamProfile, Compositor> compositors = new EnumMap<>(StreamProfile.class);
+
+    /**
+     * @param first Camera shown on the left, or in full for picture in picture.
+     * @param second Camera shown on the right, or as the inset.
+     */
+    CompositeFrameSource(@NonNull FrameSource first, @NonNull FrameSource second, boolean pictureInPicture,
+                         @NonNull JpegTranscoder transcoder) {
+        this.first = first;
+        this.second = second;
+        this.pictureInPicture = pictureInPicture;
+        this.transcoder = transcoder;
+        for (StreamProfile profile : StreamProfile.values())
+            compositors.put(profile, new Compositor(profile));
+    }
+
+    @NonNull
+    @Override
+    public FrameBuffer getFrameBuffer(@NonNull StreamProfile profile) {
+        return compositors.get(profile).output;
+    }
+
+    @Nullable
+    @Override
+    public SnapshotCache getSnapshotCache() {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public FrameLog getFrameLog() {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public PreEventBuffer getPreEventBuffer() {
+        return null;
+    }
+
+    private final class Compositor implements FrameBuffer.SubscriberListener {
+
+        private final StreamProfile profile;
+        private final FrameBuffer output = new FrameBuffer();
+        @Nullable private Thread thread;
+
+        Compositor(StreamProfile profile) {
+            this.profile = profile;
+            output.setSubscriberListener(this);
+        }
+
+        @Override
+        public synchronized void onSubscribersChanged(@NonNull FrameBuffer buffer, boolean hasSubscribers) {
+            /* Go by the current count, as CameraStreamer does, rather than by the change notified. */
+            boolean subscribed = buffer.hasSubscribers();
+            if (subscribed && thread == null) {
+                thread = new Thread(this::run, "Compositor-" + profile.getName() + (pictureInPicture ? "-pip" : ""));
+                thread.start();
+            } else if (!subscribed && thread != null) {
+                thread.interrupt();
+                thread = null;
+            }
+        }
+
+        private void run() {
+            FrameBuffer firstBuffer = first.getFrameBuffer(profile);
+            FrameBuffer secondBuffer = second.getFrameBuffer(profile);
+            /* Per thread, a quickly restarted compositor may briefly overlap with the old one. */
+            ExposedByteArrayOutputStream encoded = new ExposedByteArrayOutputStream();
+            /* The compositor is a reader of both cameras, which keeps them capturing. */
+            firstBuffer.subscribe();
+            secondBuffer.subscribe();
+            try {
+                long lastSequence = 0;
+                long lastPublishTime = 0;
+                while (!Thread.currentThread().isInterrupted()) {
+                    Frame frame = firstBuffer.awaitFrameAfter(lastSequence, FRAME_WAIT_MILLIS);
+                    if (frame == null)
+                        continue;
+                    long interval = lastPublishTime > 0 ? frame.getPublishTime() - lastPublishTime : 0;
+                    lastSequence = frame.getSequence();
+                    lastPublishTime = frame.getPublishTime();
+
+                    Frame partner = null;
+                    try {
+                        partner = findNearest(secondBuffer, frame.getPublishTime(), interval);
+                        if (partner != null)
+                            compose(frame, partner, encoded);
+                    } finally {
+                        frame.release();
+                        if (partner != null)
+                            partner.release();
+                    }
+                }
+            } catch (InterruptedException e) {
+                /* Last subscriber left. */
+            } finally {
+                firstBuffer.unsubscribe();
+                secondBuffer.unsubscribe();
+            }
+        }
+
+        /**
+         * Find the frame of the other camera nearest to the given time. If its latest frame is
+         * older by more than half a frame interval, the next one is probably nearer, so wait
+         * up to that long for it.
+         * @param interval Frame interval of the first camera in nanoseconds, or 0 if unknown.
+         */
+        @Nullable
+        private Frame findNearest(FrameBuffer buffer, long time, long interval) throws InterruptedException {
+            Frame latest = buffer.getFrameAfter(0);
+            if (latest == null)
+                return buffer.awaitFrameAfter(0, FRAME_WAIT_MILLIS);
+
+            long age = time - latest.getPublishTime();
+            if (interval <= 0 || age <= interval / 2)
+                return latest;
+
+            long waitMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(interval / 2));
+            Frame next;
+            try {
+                next = buffer.awaitFrameAfter(latest.getSequence(), waitMillis);
+            } catch (InterruptedException e) {
+                latest.release();
+                throw e;
+            }
+            if (next == null)
+                return latest;
+            if (Math.abs(next.getPublishTime() - time) < age) {
+                latest.release();
+                return next;
+            }
+            next.release();
+            return latest;
+        }
+
+        private void compose(Frame frame, Frame partner, ExposedByteArrayOutputStream encoded) {
+            encoded.reset();
+            try {
+                transcoder.compose(frame.getData(), frame.getLength(), partner.getData(), partner.getLength(),
+                        pictureInPicture, COMPOSITE_QUALITY, encoded);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Cannot compose frame " + frame.getSequence(), e);
+                return;
+            }
+            /* The composite is as old as the older of its images. */
+            output.publish(ByteBuffer.wrap(encoded.getBuffer(), 0, encoded.size()),
+                    Math.min(frame.getCaptureTime(), partner.getCaptureTime()),
+                    Math.min(frame.getAvailableTime(), partner.getAvailableTime()));
+        }
+    }
+
+    /* Gives access to the internal buffer to avoid the copy made by toByteArray(). */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream() {
+            super(256 * 1024);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
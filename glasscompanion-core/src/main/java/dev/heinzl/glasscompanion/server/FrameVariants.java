@@ -0,0 +1,151 @@
+package dev.heinzl.glasscompanion.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import dev.heinzl.glasscompanion.stream.Frame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Re-encoded versions of the current frame of one camera, one per quality level and region
+ * of interest.
+ *
+ * All clients asking for the same quality and region share a single encode of each frame.
+ * Variants nobody asked for in a while are dropped.
+ */
+class FrameVariants {
+
+    private static final Logger LOG = Logger.getLogger("FrameVariants");
+
+    /* Variants unused for this long are removed when another variant is added. */
+    private static final long VARIANT_EXPIRY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /** Encoded image as written to clients. Immutable once created. */
+    static final class EncodedImage {
+        final long sequence;
+        final byte[] data;
+        final int length;
+
+        EncodedImage(long sequence, byte[] data, int length) {
+            this.sequence = sequence;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private static final class Key {
+        final int quality;
+        @Nullable final RegionOfInterest region;
+
+        Key(int quality, @Nullable RegionOfInterest region) {
+            this.quality = quality;
+            this.region = region;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return quality == other.quality && (region == null ? other.region == null : region.equals(other.region));
+        }
+
+        @Override
+        public int hashCode() {
+            return quality * 31 + (region != null ? region.hashCode() : 0);
+        }
+    }
+
+    /* Latest encode of one variant. Encoding is serialized per variant. */
+    private static final class Variant {
+        @Nullable EncodedImage image;
+        volatile long lastUsed;
+    }
+
+    private final JpegTranscoder transcoder;
+    private final Map<Key, Variant> variants = new HashMap<>();
+
+    FrameVariants(@NonNull JpegTranscoder transcoder) {
+        this.transcoder = transcoder;
+    }
+
+    /**
+     * Get the given frame encoded at the given quality, encoding it unless another client
+     * already did.
+     * @return The encoded image, or null if the frame cannot be transcoded.
+     */
+    @Nullable
+    EncodedImage encode(@NonNull Frame frame, int quality) {
+        return encode(frame, null, quality);
+    }
+
+    /**
+     * Get a region of the given frame encoded at the given quality, encoding it unless another
+     * client already did.
+     * @param region Region to crop, or null for the whole frame.
+     * @return The encoded image, or null if the frame cannot be transcoded.
+     */
+    @Nullable
+    EncodedImage encode(@NonNull Frame frame, @Nullable RegionOfInterest region, int quality) {
+        long now = System.nanoTime();
+        Key key = new Key(quality, region);
+        Variant variant;
+        synchronized (variants) {
+            variant = variants.get(key);
+            if (variant == null) {
+                removeExpired(now);
+                variant = new Variant();
+                variants.put(key, variant);
+            }
+            variant.lastUsed = now;
+        }
+
+        synchronized (variant) {
+            EncodedImage image = variant.image;
+            if (image != null && image.sequence >= frame.getSequence())
+                return image;
+
+            ExposedByteArrayOutputStream output = new ExposedByteArrayOutputStream(frame.getLength());
+            try {
+                if (region == null)
+                    transcoder.transcode(frame.getData(), frame.getLength(), quality, output);
+                else
+                    transcoder.crop(frame.getData(), frame.getLength(),
+                            region.x, region.y, region.width, region.height, quality, output);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Cannot transcode frame " + frame.getSequence(), e);
+                return null;
+            }
+            image = new EncodedImage(frame.getSequence(), output.getBuffer(), output.size());
+            variant.image = image;
+            return image;
+        }
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Variant> iterator = variants.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().lastUsed > VARIANT_EXPIRY_NANOS)
+                iterator.remove();
+        }
+    }
+
+    /* Gives access to the internal buffer to avoid the copy made by toByteArray(). */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package dev.heinzl.glasscompanion.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Helpers for HTTP date headers and conditional requests.
+ */
+final class HttpDates {
+
+    private static final String PATTERN = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private HttpDates() {
+    }
+
+    /* SimpleDateFormat is not thread-safe, hence a new instance for each use. */
+    private static SimpleDateFormat newFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(PATTERN, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    /** Format a time in milliseconds since the epoch as HTTP date. */
+    @NonNull
+    static String format(long millis) {
+        return newFormat().format(new Date(millis));
+    }
+
+    /** Parse an HTTP date, returning milliseconds since the epoch or -1 if absent or invalid. */
+    static long parse(@Nullable String value) {
+        if (value == null)
+            return -1;
+        try {
+            return newFormat().parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /** Check an If-None-Match header value against the current entity tag. */
+    static boolean matchesETag(@NonNull String ifNoneMatch, @NonNull String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/"))
+                candidate = candidate.substring(2);
+            if (candidate.equals("*") || candidate.equals(etag))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,45 @@
+package dev.heinzl.glasscompanion.server;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Re-encodes JPEG images, e.g. at a lower quality for slow clients, cropped to a region or
+ * composed of two cameras.
+ */
+public interface JpegTranscoder {
+
+    /**
+     * Decode the JPEG in {@code data[0..length)} and encode it again with the given quality.
+     * @param quality JPEG quality from 0 to 100.
+     * @throws IOException if the image cannot be decoded or the output cannot be written.
+     */
+    void transcode(@NonNull byte[] data, int length, int quality, @NonNull OutputStream output) throws IOException;
+
+    /**
+     * Decode a region of the JPEG in {@code data[0..length)} and encode it with the given quality.
+     * Implementations should decode only as much of the image as the region needs.
+     * @param x Left edge of the region in pixels.
+     * @param y Top edge of the region in pixels.
+     * @param width Width of the region, clipped to the image.
+     * @param height Height of the region, clipped to the image.
+     * @param quality JPEG quality from 0 to 100.
+     * @throws IOException if the image cannot be decoded, the region lies outside of the image
+     *                     or the output cannot be written.
+     */
+    void crop(@NonNull byte[] data, int length, int x, int y, int width, int height, int quality,
+              @NonNull OutputStream output) throws IOException;
+
+    /**
+     * Decode two JPEG images and encode them as one.
+     * @param pictureInPicture Draw the second image at a quarter of the width into the bottom
+     *                         right corner of the first one. Otherwise the second image is placed
+     *                         right of the first one, scaled to the same height.
+     * @param quality JPEG quality from 0 to 100.
+     * @throws IOException if an image cannot be decoded or the output cannot be written.
+     */
+    void compose(@NonNull byte[] first, int firstLength, @NonNull byte[] second, int secondLength,
+                 boolean pictureInPicture, int quality, @NonNull OutputStream output) throws IOException;
+}
@@ -0,0 +1,96 @@
+package dev.heinzl.glasscompanion.server;
+
+import androidx.annotation.Nullable;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parsed query string of a request URI, e.g. {@code /stream0?fps=5}, or a form encoded
+ * request body. Repeated parameters keep the last value.
+ */
+class QueryParameters {
+
+    private final Map<String, String> parameters = new HashMap<>();
+
+    /** @throws IllegalArgumentException If an escape is malformed. */
+    QueryParameters(URI uri) {
+        this(uri.getRawQuery());
+    }
+
+    /**
+     * Parse an encoded query, e.g. {@code zoom0=2&focus0}.
+     * @throws IllegalArgumentException If an escape is malformed, e.g. {@code zoom0=%zz}.
+     */
+    QueryParameters(@Nullable String query) {
+        if (query == null || query.isEmpty())
+            return;
+
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty())
+                continue;
+            int separator = pair.indexOf('=');
+            if (separator < 0)
+                parameters.put(decode(pair), "");
+            else
+                parameters.put(decode(pair.substring(0, separator)), decode(pair.substring(separator + 1)));
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Nullable
+    String get(String name) {
+        return parameters.get(name);
+    }
+
+    String get(String name, String defaultValue) {
+        String value = parameters.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /** Return true if the comma separated list in the parameter contains the item, e.g. {@code mode=adaptive,changes}. */
+    boolean contains(String name, String item) {
+        String value = parameters.get(name);
+        if (value == null)
+            return false;
+        for (String element : value.split(",")) {
+            if (element.trim().equals(item))
+                return true;
+        }
+        return false;
+    }
+
+    /** Integer value of the parameter, or the default if absent or malformed. */
+    int getInt(String name, int defaultValue) {
+        String value = parameters.get(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /** Long value of the parameter, or the default if absent or malformed. */
+    long getLong(String name, long defaultValue) {
+        String value = parameters.get(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
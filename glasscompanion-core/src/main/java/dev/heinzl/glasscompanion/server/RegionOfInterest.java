@@ -0,0 +1,86 @@
+package dev.heinzl.glasscompanion.server;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Rectangle of a frame a client asked for with {@code ?roi=x,y,w,h}, in pixels of the frame.
+ *
+ * Edges are widened to the next multiple of {@link #ALIGNMENT}. This matches the JPEG MCU
+ * size, so the region decoder does not need to decode partial blocks, and lets clients asking
+ * for almost the same region share one encode.
+ */
+final class RegionOfInterest {
+
+    static final int ALIGNMENT = 16;
+
+    /* JPEG images are at most 65535 pixels wide and high. */
+    private static final int MAX_EDGE = 65535;
+
+    final int x;
+    final int y;
+    final int width;
+    final int height;
+
+    private RegionOfInterest(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Parse "x,y,w,h".
+     * @return The aligned region, or null if the value is malformed or the region is empty.
+     */
+    @Nullable
+    static RegionOfInterest parse(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 4)
+            return null;
+        int[] numbers = new int[4];
+        try {
+            for (int i = 0; i < 4; i++)
+                numbers[i] = Integer.parseInt(parts[i].trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (numbers[0] < 0 || numbers[1] < 0 || numbers[2] <= 0 || numbers[3] <= 0
+                || numbers[2] > MAX_EDGE - numbers[0] || numbers[3] > MAX_EDGE - numbers[1])
+            return null;
+
+        int left = numbers[0] / ALIGNMENT * ALIGNMENT;
+        int top = numbers[1] / ALIGNMENT * ALIGNMENT;
+        int right = alignUp(numbers[0] + numbers[2]);
+        int bottom = alignUp(numbers[1] + numbers[3]);
+        return new RegionOfInterest(left, top, right - left, bottom - top);
+    }
+
+    /** Whether the region covers any pixel of a frame of the given size; it is clipped to the frame. */
+    boolean overlaps(int frameWidth, int frameHeight) {
+        return x < frameWidth && y < frameHeight;
+    }
+
+    private static int alignUp(int value) {
+        return (value + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof RegionOfInterest))
+            return false;
+        RegionOfInterest other = (RegionOfInterest) o;
+        return x == other.x && y == other.y && width == other.width && height == other.height;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((x * 31 + y) * 31 + width) * 31 + height;
+    }
+
+    @Override
+    public String toString() {
+        return x + "," + y + "," + width + "," + height;
+    }
+}
@@ -0,0 +1,1146 @@
+package dev.heinzl.glasscompanion.server;
+
+import dev.heinzl.glasscompanion.metrics.PrometheusWriter;
+import dev.heinzl.glasscompanion.stream.Frame;
+import dev.heinzl.glasscompanion.stream.FrameBuffer;
+import dev.heinzl.glasscompanion.stream.FrameLog;
+import dev.heinzl.glasscompanion.stream.FrameSource;
+import dev.heinzl.glasscompanion.stream.MultipartWriter;
+import dev.heinzl.glasscompanion.stream.PreEventBuffer;
+import dev.heinzl.glasscompanion.stream.Snapshot;
+import dev.heinzl.glasscompanion.stream.SnapshotCache;
+import dev.heinzl.glasscompanion.stream.StreamProfile;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class Server implements Runnable {
+
+    private static final String TAG = "Server";
+    private static final Logger LOG = Logger.getLogger(TAG);
+
+    /* Frame sources, usually the cameras of the headset, indexed as in the URL paths. */
+    private final FrameSource[] cameras;
+
+    /* Both cameras composed into one image, null with fewer than two cameras. */
+    private final FrameSource sideBySide;
+    private final FrameSource pictureInPicture;
+
+    /* Viewer pages, scripts and styles. */
+    private final StaticContent staticContent;
+
+    private volatile boolean serverWillBeStopped = false;
+
+    public static final int SERVER_PORT = 8080;
+
+    /* WebSocket streams are served on a port of their own, see WebSocketServer. */
+    public static final int WEBSOCKET_PORT = SERVER_PORT + 1;
+
+    /* Default number of concurrent stream connections over all cameras. */
+    public static final int DEFAULT_MAX_STREAM_CONNECTIONS = 24;
+
+    /* Default number of concurrent stream connections of one client address. */
+    public static final int DEFAULT_MAX_STREAMS_PER_CLIENT = 8;
+
+    /* A client which does not take a frame within this time has stopped reading and is evicted. */
+    private static final long WRITE_TIMEOUT_MILLIS = 10000;
+
+    /* Seconds a rejected client is asked to wait before retrying. */
+    static final String RETRY_AFTER_SECONDS = "5";
+
+    /* Camera label of the composite stream in the metrics. */
+    private static final String COMPOSITE_LABEL = "both";
+
+    /* Worker threads kept free for short requests so pages load while all stream slots are busy. */
+    private static final int PAGE_WORKER_THREADS = 2;
+
+    /*
+     * Worker threads for snapshot requests, which block while a full resolution still is
+     * captured. Further concurrent snapshot requests are rejected rather than taking the
+     * threads kept for pages, /metrics and /control.
+     */
+    private static final int SNAPSHOT_WORKER_THREADS = 2;
+    private final Semaphore snapshotWorkers = new Semaphore(SNAPSHOT_WORKER_THREADS);
+
+    private final int maxStreamConnections;
+    private final StreamConnections streamConnections;
+
+    private final JpegTranscoder transcoder;
+
+    private final StreamMetrics streamMetrics;
+
+    /* Files saved by the cameras, null if they save none. */
+    private final CaptureDirectory captureDirectory;
+
+    /* Remote control of the cameras, null if the cameras cannot be controlled. */
+    private final CameraControl cameraControl;
+
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+    private WebSocketServer webSocketServer = null;
+
+    public Server(FrameSource[] cameras, StaticContent staticContent, JpegTranscoder transcoder) {
+        this(cameras, staticContent, transcoder, DEFAULT_MAX_STREAM_CONNECTIONS, null);
+    }
+
+    public Server(FrameSource[] cameras, StaticContent staticContent, JpegTranscoder transcoder, CameraControl cameraControl) {
+        this(cameras, staticContent, transcoder, DEFAULT_MAX_STREAM_CONNECTIONS, cameraControl);
+    }
+
+    /**
+     * @param cameras Frame sources, served as /stream0, /stream1 and so on.
+     * @param transcoder Codec used to lower the quality of adaptive streams.
+     * @param maxStreamConnections Maximum number of concurrently open streams. Further stream
+     *                             requests are rejected with 503 until a slot becomes free.
+     * @param cameraControl Control of the cameras served as /control, or null for none.
+     */
+    public Server(FrameSource[] cameras, StaticContent staticContent, JpegTranscoder transcoder, int maxStreamConnections,
+                  CameraControl cameraControl) {
+        this(cameras, staticContent, transcoder, maxStreamConnections, DEFAULT_MAX_STREAMS_PER_CLIENT, cameraControl);
+    }
+
+    /**
+     * @param cameras Frame sources, served as /stream0, /stream1 and so on.
+     * @param transcoder Codec used to lower the quality of adaptive streams.
+     * @param maxStreamConnections Maximum number of concurrently open streams. Further stream
+     *                             requests are rejected with 503 until a slot becomes free.
+     * @param maxStreamsPerClient Maximum number of concurrently open streams of one client
+     *                            address. Further stream requests of the client are rejected
+     *                            with 429.
+     * @param cameraControl Control of the cameras served as /control, or null for none.
+     */
+    public Server(FrameSource[] cameras, StaticContent staticContent, JpegTranscoder transcoder, int maxStreamConnections,
+                  int maxStreamsPerClient, CameraControl cameraControl) {
+        this.cameras = cameras.clone();
+        this.staticContent = staticContent;
+        this.transcoder = transcoder;
+        this.cameraControl = cameraControl;
+        if (cameras.length >= 2) {
+            this.sideBySide = new CompositeFrameSource(cameras[0], cameras[1], false, transcoder);
+            this.pictureInPicture = new CompositeFrameSource(cameras[0], cameras[1], true, transcoder);
+        } else {
+            this.sideBySide = null;
+            this.pictureInPicture = null;
+        }
+        /* Metrics of the composite stream are kept after those of the cameras. */
+        String[] cameraLabels = new String[cameras.length + 1];
+        for (int i = 0; i < cameras.length; i++)
+            cameraLabels[i] = Integer.toString(i);
+        cameraLabels[cameras.length] = COMPOSITE_LABEL;
+        this.streamMetrics = new StreamMetrics(cameraLabels);
+
+        List<File> captureDirectories = new ArrayList<>();
+        for (FrameSource camera : cameras) {
+            PreEventBuffer preEventBuffer = camera.getPreEventBuffer();
+            if (preEventBuffer != null && !captureDirectories.contains(preEventBuffer.getClipDirectory()))
+                captureDirectories.add(preEventBuffer.getClipDirectory());
+        }
+        this.captureDirectory = captureDirectories.isEmpty() ? null : new CaptureDirectory(captureDirectories);
+        this.maxStreamConnections = maxStreamConnections;
+        this.streamConnections = new StreamConnections(maxStreamConnections, maxStreamsPerClient, WRITE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Bind and start the server. Synchronized with {@link #stopServer()}, so a server stopped
+     * while starting is not left running, and a stopped server is not started again.
+     * @throws IOException If a port cannot be bound, e.g. because it is in use. The server is
+     *                     stopped then.
+     */
+    public synchronized void start() throws IOException {
+        if (serverWillBeStopped)
+            return;
+
+        try {
+            startServers();
+        } catch (IOException e) {
+            stopServer();
+            throw e;
+        }
+    }
+
+    /** Start the server, logging a failure. See {@link #start()}. */
+    @Override
+    public void run() {
+        try {
+            start();
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Server could not be started", e);
+        }
+    }
+
+    private void startServers() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(SERVER_PORT),0);
+
+        server.createContext("/", new StaticHandler(null));
+        for (int i = 0; i < cameras.length; i++) {
+            server.createContext("/camera" + i, new StaticHandler("camera.html"));
+            server.createContext("/stream" + i, new StreamHandler(cameras[i], i));
+            server.createContext("/snapshot" + i, new SnapshotHandler(cameras[i]));
+            server.createContext("/replay" + i, new ReplayHandler(cameras[i]));
+        }
+        if (sideBySide != null) {
+            server.createContext("/cameraBoth", new StaticHandler("camera.html"));
+            server.createContext("/streamBoth", new CompositeStreamHandler());
+        }
+        server.createContext("/metrics", new MetricsHandler());
+        server.createContext("/clip", new ClipHandler());
+        if (captureDirectory != null)
+            server.createContext("/captures", new CapturesHandler());
+        if (cameraControl != null)
+            server.createContext("/control", new ControlHandler());
+
+        /*
+         * Each stream occupies its worker thread for the whole connection, hence the pool is
+         * sized to the stream limit plus a few threads for snapshots and everything else.
+         */
+        executor = Executors.newFixedThreadPool(maxStreamConnections + SNAPSHOT_WORKER_THREADS + PAGE_WORKER_THREADS);
+        server.setExecutor(executor);
+        server.start();
+        streamConnections.start();
+
+        webSocketServer = new WebSocketServer(WEBSOCKET_PORT, cameras, executor, streamConnections);
+        webSocketServer.start();
+    }
+
+    /**
+     * Stop the server. Stream loops see the flag at their next frame, and those blocked on a
+     * frame or a write are interrupted by shutting down the executor, so there is no need to
+     * wait for them.
+     */
+    public synchronized void stopServer() {
+        serverWillBeStopped = true;
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+
+        if (webSocketServer != null) {
+            webSocketServer.stop();
+            webSocketServer = null;
+        }
+
+        if (executor != null) {
+            /* Interrupt stream loops which are still writing. */
+            executor.shutdownNow();
+            executor = null;
+        }
+        streamConnections.stop();
+    }
+
+    private static void sendError(HttpExchange httpExchange, int code, String message) throws IOException {
+        byte[] response = message.getBytes();
+        httpExchange.sendResponseHeaders(code, response.length);
+        OutputStream outputStream = httpExchange.getResponseBody();
+        outputStream.write(response);
+        outputStream.close();
+    }
+
+    /** Parse the query of the request, or answer 400 and return null if it is malformed, e.g. {@code ?a=%zz}. */
+    private static QueryParameters parseQuery(HttpExchange httpExchange) throws IOException {
+        try {
+            return new QueryParameters(httpExchange.getRequestURI());
+        } catch (IllegalArgumentException e) {
+            sendError(httpExchange, 400, "Malformed query");
+            return null;
+        }
+    }
+
+    /**
+     * Admit a stream of the exchange, or answer why not and return null. A stalled stream is
+     * evicted by interrupting the calling thread, which closes the connection while it writes.
+     */
+    private StreamConnections.Connection openStream(HttpExchange httpExchange) throws IOException {
+        Thread writer = Thread.currentThread();
+        try {
+            return streamConnections.open(httpExchange.getRemoteAddress().getAddress().getHostAddress(), 0,
+                    writer::interrupt);
+        } catch (StreamConnections.RejectedException e) {
+            httpExchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+            sendError(httpExchange, e.getStatusCode(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Remote control of the cameras. GET returns the current state, POST applies a batch of
+     * form encoded commands and returns the resulting state, e.g.
+     * {@code zoom0=2&offset0=40,-20&focus0&zoom1=1.5&torch=on}:
+     * <ul>
+     *   <li>{@code reset<i>} resets zoom and offset of camera i before the other commands</li>
+     *   <li>{@code zoom<i>=factor} sets the zoom factor</li>
+     *   <li>{@code offset<i>=x,y} sets the image offset</li>
+     *   <li>{@code focus<i>} triggers auto focus</li>
+     *   <li>{@code torch=on|off} switches the torch of the headset</li>
+     * </ul>
+     * All commands for one camera are applied as a single capture request update.
+     * The state is returned as JSON.
+     */
+    class ControlHandler implements HttpHandler {
+
+        /* Commands are short, anything longer is not a command batch. */
+        private static final int MAX_BODY_LENGTH = 4096;
+
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            String method = httpExchange.getRequestMethod();
+            CameraControl.Command[] commands = new CameraControl.Command[cameras.length];
+            Boolean torch = null;
+
+            if ("POST".equals(method)) {
+                String body = readBody(httpExchange);
+                if (body == null) {
+                    sendError(httpExchange, 413, "Command batch too long");
+                    return;
+                }
+                try {
+                    QueryParameters parameters = new QueryParameters(body);
+                    for (int i = 0; i < cameras.length; i++)
+                        commands[i] = parseCommand(parameters, i);
+                    torch = parseTorch(parameters.get("torch"));
+                } catch (IllegalArgumentException e) {
+                    sendError(httpExchange, 400, e.getMessage());
+                    return;
+                }
+            } else if (!"GET".equals(method)) {
+                httpExchange.getResponseHeaders().set("Allow", "GET, POST");
+                sendError(httpExchange, 405, "Use GET or POST");
+                return;
+            }
+
+            CameraControl.CameraState[] states;
+            try {
+                states = cameraControl.apply(commands, torch);
+            } catch (IOException e) {
+                sendError(httpExchange, 503, e.getMessage());
+                return;
+            }
+
+            byte[] response = toJson(states, cameraControl.isTorchEnabled()).getBytes(StandardCharsets.UTF_8);
+            Headers headers = httpExchange.getResponseHeaders();
+            headers.set("Cache-Control", "no-cache, private");
+            headers.set("Content-Type", "application/json");
+            httpExchange.sendResponseHeaders(200, response.length);
+            OutputStream outputStream = httpExchange.getResponseBody();
+            outputStream.write(response);
+            outputStream.close();
+        }
+
+        /** Read the request body, or return null if it exceeds the maximum length. */
+        private String readBody(HttpExchange httpExchange) throws IOException {
+            byte[] buffer = new byte[MAX_BODY_LENGTH + 1];
+            int length = 0;
+            try (InputStream input = httpExchange.getRequestBody()) {
+                int read;
+                while (length < buffer.length && (read = input.read(buffer, length, buffer.length - length)) > 0)
+                    length += read;
+            }
+            if (length > MAX_BODY_LENGTH)
+                return null;
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Commands for one camera.
+         * @return The command, or null if there are none for this camera.
+         * @throws IllegalArgumentException If a value is malformed.
+         */
+        private CameraControl.Command parseCommand(QueryParameters parameters, int camera) {
+            String zoomValue = parameters.get("zoom" + camera);
+            String offsetValue = parameters.get("offset" + camera);
+            boolean reset = parameters.get("reset" + camera) != null;
+            boolean focus = parameters.get("focus" + camera) != null;
+            if (zoomValue == null && offsetValue == null && !reset && !focus)
+                return null;
+
+            Float zoom = null;
+            if (zoomValue != null) {
+                try {
+                    zoom = Float.parseFloat(zoomValue.trim());
+                } catch (NumberFormatException e) {
+                    zoom = Float.NaN;
+                }
+                if (!(zoom > 0) || zoom.isInfinite())
+                    throw new IllegalArgumentException("Invalid zoom" + camera + " " + zoomValue + ", expected a positive factor");
+            }
+
+            int[] offset = null;
+            if (offsetValue != null) {
+                String[] parts = offsetValue.split(",");
+                try {
+                    if (parts.length == 2)
+                        offset = new int[] {Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim())};
+                } catch (NumberFormatException e) {
+                    offset = null;
+                }
+                if (offset == null)
+                    throw new IllegalArgumentException("Invalid offset" + camera + " " + offsetValue + ", expected x,y");
+            }
+            return new CameraControl.Command(reset, zoom, offset, focus);
+        }
+
+        private Boolean parseTorch(String value) {
+            if (value == null)
+                return null;
+            switch (value.trim()) {
+                case "on":
+                case "true":
+                case "1":
+                    return true;
+                case "off":
+                case "false":
+                case "0":
+                    return false;
+                default:
+                    throw new IllegalArgumentException("Invalid torch " + value + ", expected on or off");
+            }
+        }
+
+        private String toJson(CameraControl.CameraState[] states, boolean torch) {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"torch\":").append(torch).append(",\"cameras\":[");
+            for (int i = 0; i < states.length; i++) {
+                CameraControl.CameraState state = states[i];
+                if (i > 0)
+                    json.append(',');
+                json.append("{\"camera\":").append(i)
+                        .append(",\"available\":").append(state.isAvailable())
+                        .append(",\"zoom\":").append(state.getZoom())
+                        .append(",\"maxZoom\":").append(state.getMaxZoom())
+                        .append(",\"offset\":[").append(state.getOffsetX()).append(',').append(state.getOffsetY()).append(']')
+                        .append(",\"maxOffset\":[").append(state.getMaxOffsetX()).append(',').append(state.getMaxOffsetY()).append(']')
+                        .append(",\"autoFocus\":").append(state.hasAutoFocus())
+                        .append('}');
+            }
+            return json.append("]}").toString();
+        }
+    }
+
+    /**
+     * Serves a file of the static content. Without a fixed file name the file is taken from the
+     * path: "/" is the index page and "/static/<name>" any other file.
+     */
+    class StaticHandler implements HttpHandler {
+
+        private static final String STATIC_PREFIX = "/static/";
+
+        private final String fileName;
+
+        StaticHandler(String fileName) {
+            this.fileName = fileName;
+        }
+
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+
+            String name = fileName;
+            if (name == null) {
+                String path = httpExchange.getRequestURI().getPath();
+                if (path.equals("/"))
+                    name = "index.html";
+                else if (path.startsWith(STATIC_PREFIX))
+                    name = path.substring(STATIC_PREFIX.length());
+            }
+
+            StaticContent.Resource resource = name != null ? staticContent.get(name) : null;
+            if (resource == null) {
+                sendError(httpExchange, 404, "Not found");
+                return;
+            }
+
+            Headers requestHeaders = httpExchange.getRequestHeaders();
+            boolean gzip = resource.gzipData != null && acceptsGzip(requestHeaders.getFirst("Accept-Encoding"));
+            byte[] body = gzip ? resource.gzipData : resource.data;
+            String etag = gzip ? resource.gzipETag : resource.etag;
+
+            Headers headers = httpExchange.getResponseHeaders();
+            /* Clients revalidate on every load, which costs a 304 without a body. */
+            headers.set("Cache-Control", "no-cache");
+            headers.set("ETag", etag);
+            headers.set("Vary", "Accept-Encoding");
+
+            String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+            if (ifNoneMatch != null && HttpDates.matchesETag(ifNoneMatch, etag)) {
+                httpExchange.sendResponseHeaders(304, -1);
+                httpExchange.close();
+                return;
+            }
+
+            headers.set("Content-Type", resource.contentType);
+            if (gzip)
+                headers.set("Content-Encoding", "gzip");
+
+            if ("HEAD".equals(httpExchange.getRequestMethod())) {
+                headers.set("Content-Length", Integer.toString(body.length));
+                httpExchange.sendResponseHeaders(200, -1);
+                httpExchange.close();
+                return;
+            }
+
+            httpExchange.sendResponseHeaders(200, body.length);
+            OutputStream outputStream = httpExchange.getResponseBody();
+            outputStream.write(body);
+            outputStream.close();
+        }
+
+        private boolean acceptsGzip(String acceptEncoding) {
+            if (acceptEncoding == null)
+                return false;
+            for (String coding : acceptEncoding.split(",")) {
+                String[] parts = coding.trim().split(";");
+                if (!parts[0].trim().equalsIgnoreCase("gzip"))
+                    continue;
+                /* "gzip;q=0" explicitly refuses gzip. */
+                return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+            return false;
+        }
+    }
+
+    /**
+     * POST saves the last seconds of every camera keeping them as clips, see
+     * {@link PreEventBuffer}. Answers 202 with the names of the clip files as JSON, as the
+     * clips are written in the background.
+     */
+    class ClipHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            if (!"POST".equals(httpExchange.getRequestMethod())) {
+                httpExchange.getResponseHeaders().set("Allow", "POST");
+                sendError(httpExchange, 405, "Use POST");
+                return;
+            }
+
+            StringBuilder json = new StringBuilder("{\"clips\":[");
+            int saved = 0;
+            for (int i = 0; i < cameras.length; i++) {
+                PreEventBuffer preEventBuffer = cameras[i].getPreEventBuffer();
+                File clip = preEventBuffer != null ? preEventBuffer.saveClip() : null;
+                if (clip == null)
+                    continue;
+                if (saved++ > 0)
+                    json.append(',');
+                json.append("{\"camera\":").append(i).append(",\"file\":\"").append(clip.getName()).append("\"}");
+            }
+            if (saved == 0) {
+                sendError(httpExchange, 503, "No frames to save");
+                return;
+            }
+
+            byte[] response = json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+            Headers headers = httpExchange.getResponseHeaders();
+            headers.set("Cache-Control", "no-cache, private");
+            headers.set("Content-Type", "application/json");
+            httpExchange.sendResponseHeaders(202, response.length);
+            OutputStream outputStream = httpExchange.getResponseBody();
+            outputStream.write(response);
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Lists the saved captures as JSON at /captures, see {@link CaptureDirectory}, and serves
+     * each of them at /captures/name. Downloads support Range requests, so they can be resumed
+     * or read in parts.
+     *
+     * Files are sent with FileChannel.transferTo in chunks, so even large clips need no more
+     * heap than a copy buffer. Downloads are admitted and supervised like streams, so they
+     * cannot take the worker threads of the live streams and stalled ones are evicted.
+     */
+    class CapturesHandler implements HttpHandler {
+
+        private static final String PREFIX = "/captures/";
+
+        /* Bytes transferred per write, each of which must finish within the write timeout. */
+        private static final long TRANSFER_CHUNK_BYTES = 1024 * 1024;
+
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            String method = httpExchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                httpExchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                sendError(httpExchange, 405, "Use GET or HEAD");
+                return;
+            }
+
+            String path = httpExchange.getRequestURI().getPath();
+            if (path.equals("/captures") || path.equals(PREFIX)) {
+                sendListing(httpExchange);
+                return;
+            }
+
+            File file = path.startsWith(PREFIX) ? captureDirectory.find(path.substring(PREFIX.length())) : null;
+            if (file == null) {
+                sendError(httpExchange, 404, "Not found");
+                return;
+            }
+            sendFile(httpExchange, file);
+        }
+
+        private void sendListing(HttpExchange httpExchange) throws IOException {
+            CaptureDirectory.Listing listing = captureDirectory.getListing();
+            Headers headers = httpExchange.getResponseHeaders();
+            headers.set("Cache-Control", "no-cache");
+            headers.set("ETag", listing.etag);
+
+            String ifNoneMatch = httpExchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null && HttpDates.matchesETag(ifNoneMatch, listing.etag)) {
+                httpExchange.sendResponseHeaders(304, -1);
+                httpExchange.close();
+                return;
+            }
+
+            headers.set("Content-Type", "application/json");
+            if ("HEAD".equals(httpExchange.getRequestMethod())) {
+                headers.set("Content-Length", Integer.toString(listing.json.length));
+                httpExchange.sendResponseHeaders(200, -1);
+                httpExchange.close();
+                return;
+            }
+            httpExchange.sendResponseHeaders(200, listing.json.length);
+            OutputStream outputStream = httpExchange.getResponseBody();
+            outputStream.write(listing.json);
+            outputStream.close();
+        }
+
+        private void sendFile(HttpExchange httpExchange, File file) throws IOException {
+            /* The size when the request arrived, clips may still be growing. */
+            long size = file.length();
+            long modified = file.lastModified();
+            String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"";
+
+            Headers requestHeaders = httpExchange.getRequestHeaders();
+            Headers headers = httpExchange.getResponseHeaders();
+            headers.set("Cache-Control", "no-cache, private");
+            headers.set("ETag", etag);
+            headers.set("Last-Modified", HttpDates.format(modified));
+            headers.set("Accept-Ranges", "bytes");
+
+            String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+            if (ifNoneMatch != null && HttpDates.matchesETag(ifNoneMatch, etag)) {
+                httpExchange.sendResponseHeaders(304, -1);
+                httpExchange.close();
+                return;
+            }
+
+            /* A range of a file which changed since the client got its first part would not fit together. */
+            ByteRange range = null;
+            String ifRange = requestHeaders.getFirst("If-Range");
+            if (ifRange == null || ifRange.trim().equals(etag) || HttpDates.parse(ifRange) / 1000 == modified / 1000)
+                range = ByteRange.parse(requestHeaders.getFirst("Range"), size);
+            if (range == ByteRange.UNSATISFIABLE) {
+                headers.set("Content-Range", "bytes */" + size);
+                sendError(httpExchange, 416, "Range not satisfiable");
+                return;
+            }
+
+            headers.set("Content-Type", contentType(file.getName()));
+            headers.set("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"");
+            int status = range != null ? 206 : 200;
+            long start = range != null ? range.start : 0;
+            long length = range != null ? range.length : size;
+            if (range != null)
+                headers.set("Content-Range", range.toContentRange(size));
+
+            if ("HEAD".equals(httpExchange.getRequestMethod())) {
+                headers.set("Content-Length", Long.toString(length));
+                httpExchange.sendResponseHeaders(status, -1);
+                httpExchange.close();
+                return;
+            }
+
+            StreamConnections.Connection connection = openStream(httpExchange);
+            if (connection == null)
+                return;
+            try (FileChannel channel = new FileInputStream(file).getChannel()) {
+                /* An empty body is announced with -1, 0 would mean chunked. */
+                httpExchange.sendResponseHeaders(status, length > 0 ? length : -1);
+                try (OutputStream outputStream = httpExchange.getResponseBody()) {
+                    WritableByteChannel target = Channels.newChannel(outputStream);
+                    long position = start;
+                    long end = start + length;
+                    while (position < end && !serverWillBeStopped) {
+                        long sent;
+                        connection.beginWrite();
+                        try {
+                            sent = channel.transferTo(position, Math.min(end - position, TRANSFER_CHUNK_BYTES), target);
+                        } finally {
+                            connection.endWrite();
+                        }
+                        if (sent <= 0)
+                            break;
+                        position += sent;
+                    }
+                }
+            } finally {
+                connection.close();
+            }
+        }
+
+        private String contentType(String name) {
+            if (name.endsWith(PreEventBuffer.CLIP_SUFFIX))
+                return "video/x-motion-jpeg";
+            if (name.endsWith(".jpg") || name.endsWith(".jpeg"))
+                return "image/jpeg";
+            return "application/octet-stream";
+        }
+    }
+
+    class SnapshotHandler implements HttpHandler {
+
+        /* How long a request waits for a new still before giving up. */
+        private static final long CAPTURE_TIMEOUT_MILLIS = 5000;
+
+        private final FrameSource camera;
+
+        SnapshotHandler(FrameSource camera) {
+            this.camera = camera;
+        }
+
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+
+            SnapshotCache snapshotCache = camera.getSnapshotCache();
+            if (snapshotCache == null) {
+                sendError(httpExchange, 404, "No snapshots available");
+                return;
+            }
+
+            if (!snapshotWorkers.tryAcquire()) {
+                httpExchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                sendError(httpExchange, 503, "Too many snapshot requests");
+                return;
+            }
+            Snapshot snapshot;
+            try {
+                snapshot = snapshotCache.acquire(CAPTURE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                snapshot = null;
+            } finally {
+                snapshotWorkers.release();
+            }
+
+            if (snapshot == null) {
+                sendError(httpExchange, 503, "No snapshot available");
+                return;
+            }
+
+            Headers headers = httpExchange.getResponseHeaders();
+            headers.set("Cache-Control", "no-cache, private");
+            headers.set("ETag", snapshot.getETag());
+            headers.set("Last-Modified", HttpDates.format(snapshot.getTimestamp()));
+
+            if (isNotModified(httpExchange.getRequestHeaders(), snapshot)) {
+                httpExchange.sendResponseHeaders(304, -1);
+                httpExchange.close();
+                return;
+            }
+
+            byte[] image = snapshot.getData();
+            headers.set("Content-Type", "image/jpeg");
+            httpExchange.sendResponseHeaders(200, image.length);
+            OutputStream outputStream = httpExchange.getResponseBody();
+            outputStream.write(image);
+            outputStream.close();
+        }
+
+        private boolean isNotModified(Headers requestHeaders, Snapshot snapshot) {
+            String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+            if (ifNoneMatch != null)
+                return HttpDates.matchesETag(ifNoneMatch, snapshot.getETag());
+
+            long ifModifiedSince = HttpDates.parse(requestHeaders.getFirst("If-Modified-Since"));
+            /* HTTP dates have a resolution of one second. */
+            return ifModifiedSince >= 0 && snapshot.getTimestamp() / 1000 <= ifModifiedSince / 1000;
+        }
+    }
+
+    /**
+     * Serves the counters and histograms of the capture and streaming pipeline in Prometheus
+     * text format. Everything is read from counters updated in place, so a scrape does not
+     * block capture or streaming.
+     */
+    class MetricsHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            PrometheusWriter writer = new PrometheusWriter();
+
+            writer.header("glasscompanion_frames_captured_total", "Frames delivered by the camera, per stream profile.", "counter");
+            for (int i = 0; i < cameras.length; i++) {
+                for (StreamProfile profile : StreamProfile.values())
+                    writer.sample("glasscompanion_frames_captured_total", cameras[i].getFrameBuffer(profile).getPublishedFrames(),
+                            "camera", Integer.toString(i), "profile", profile.getName());
+            }
+
+            writer.header("glasscompanion_frames_dropped_total", "Frames replaced before any reader took them.", "counter");
+            for (int i = 0; i < cameras.length; i++) {
+                for (StreamProfile profile : StreamProfile.values())
+                    writer.sample("glasscompanion_frames_dropped_total", cameras[i].getFrameBuffer(profile).getDroppedFrames(),
+                            "camera", Integer.toString(i), "profile", profile.getName());
+            }
+
+            writer.header("glasscompanion_frame_copy_seconds", "Time to copy a captured frame into the frame buffer.", "histogram");
+            for (int i = 0; i < cameras.length; i++) {
+                for (StreamProfile profile : StreamProfile.values())
+                    writer.histogram("glasscompanion_frame_copy_seconds", cameras[i].getFrameBuffer(profile).getCopyTime(),
+                            "camera", Integer.toString(i), "profile", profile.getName());
+            }
+
+            writer.header("glasscompanion_streams_open", "Currently open streams over all cameras.", "gauge");
+            writer.sample("glasscompanion_streams_open", (long) streamConnections.getOpenStreams());
+            writer.header("glasscompanion_streams_max", "Maximum number of concurrently open streams.", "gauge");
+            writer.sample("glasscompanion_streams_max", (long) streamConnections.getMaxStreams());
+            writer.header("glasscompanion_streams_max_per_client", "Maximum number of concurrently open streams of one client address.", "gauge");
+            writer.sample("glasscompanion_streams_max_per_client", (long) streamConnections.getMaxStreamsPerClient());
+
+            writer.header("glasscompanion_stream_rejected_total", "Stream requests rejected because a stream limit was reached.", "counter");
+            writer.sample("glasscompanion_stream_rejected_total", streamConnections.rejectedStreams.get(), "reason", "total");
+            writer.sample("glasscompanion_stream_rejected_total", streamConnections.rejectedClientStreams.get(), "reason", "client");
+            writer.header("glasscompanion_stream_evicted_total", "Streams closed because the client stopped reading or was not heard from.", "counter");
+            writer.sample("glasscompanion_stream_evicted_total", streamConnections.evictedStalled.get(), "reason", "stalled");
+            writer.sample("glasscompanion_stream_evicted_total", streamConnections.evictedIdle.get(), "reason", "idle");
+
+            streamMetrics.write(writer);
+
+            byte[] response = writer.toString().getBytes(StandardCharsets.UTF_8);
+            Headers headers = httpExchange.getResponseHeaders();
+            headers.set("Cache-Control", "no-cache, private");
+            headers.set("Content-Type", PrometheusWriter.CONTENT_TYPE);
+            httpExchange.sendResponseHeaders(200, response.length);
+            OutputStream outputStream = httpExchange.getResponseBody();
+            outputStream.write(response);
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Streams recorded frames as MJPEG in real time, starting at {@code ?from=<timestamp>}
+     * (milliseconds since the epoch, or negative for milliseconds before now).
+     * The stream ends when the end of the recording is reached.
+     */
+    class ReplayHandler implements HttpHandler {
+
+        /* Pauses in the recording longer than this are skipped during replay. */
+        private static final long MAX_REPLAY_GAP_MILLIS = 1000;
+
+        private final FrameSource camera;
+
+        ReplayHandler(FrameSource camera) {
+            this.camera = camera;
+        }
+
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+
+            FrameLog frameLog = camera.getFrameLog();
+            if (frameLog == null) {
+                sendError(httpExchange, 404, "No recordings available");
+                return;
+            }
+
+            QueryParameters query = parseQuery(httpExchange);
+            if (query == null)
+                return;
+            long from = query.getLong("from", 0);
+            if (from < 0)
+                from += System.currentTimeMillis();
+
+            StreamConnections.Connection connection = openStream(httpExchange);
+            if (connection == null)
+                return;
+
+            try (FrameLog.Cursor cursor = frameLog.openCursor(from)) {
+                Headers headers = httpExchange.getResponseHeaders();
+                headers.set("Cache-Control", "no-cache, private");
+                headers.set("Content-Type", MultipartWriter.CONTENT_TYPE);
+                httpExchange.sendResponseHeaders(200, 0);
+
+                try (OutputStream outputStream = httpExchange.getResponseBody()) {
+                    MultipartWriter multipartWriter = new MultipartWriter(outputStream);
+
+                    long firstTimestamp = -1;
+                    long lastTimestamp = -1;
+                    long startTime = 0;
+                    ByteBuffer image;
+                    while (!serverWillBeStopped && (image = cursor.next()) != null) {
+                        /* Keep the original timing between frames, but skip pauses in the recording. */
+                        long timestamp = cursor.getTimestamp();
+                        if (firstTimestamp < 0 || timestamp - lastTimestamp > MAX_REPLAY_GAP_MILLIS) {
+                            firstTimestamp = timestamp;
+                            startTime = System.nanoTime();
+                        }
+                        lastTimestamp = timestamp;
+                        long due = startTime + TimeUnit.MILLISECONDS.toNanos(timestamp - firstTimestamp);
+                        long delay = due - System.nanoTime();
+                        if (delay > 0) {
+                            try {
+                                TimeUnit.NANOSECONDS.sleep(delay);
+                            } catch (InterruptedException e) {
+                                break;
+                            }
+                        }
+
+                        connection.beginWrite();
+                        try {
+                            multipartWriter.writePart(image, TimeUnit.MILLISECONDS.toMicros(timestamp));
+                        } finally {
+                            connection.endWrite();
+                        }
+                    }
+                }
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Streams both cameras in one image, side by side or with {@code ?layout=pip} the second
+     * camera as an inset of the first one. Otherwise the same options as single camera streams
+     * apply.
+     */
+    class CompositeStreamHandler implements HttpHandler {
+
+        private final StreamHandler sideBySideHandler = new StreamHandler(sideBySide, cameras.length);
+        private final StreamHandler pictureInPictureHandler = new StreamHandler(pictureInPicture, cameras.length);
+
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            QueryParameters query = parseQuery(httpExchange);
+            if (query == null)
+                return;
+            String layout = query.get("layout", "side");
+            switch (layout) {
+                case "side":
+                    sideBySideHandler.handle(httpExchange);
+                    break;
+                case "pip":
+                    pictureInPictureHandler.handle(httpExchange);
+                    break;
+                default:
+                    sendError(httpExchange, 400, "Unknown layout " + layout + ", expected side or pip");
+                    break;
+            }
+        }
+    }
+
+    class StreamHandler implements HttpHandler {
+
+        private final FrameSource camera;
+        private final int cameraIndex;
+        private final StreamMetrics.CameraMetrics metrics;
+        private final Map<StreamProfile, FrameVariants> frameVariants = new EnumMap<>(StreamProfile.class);
+
+        StreamHandler(FrameSource camera, int cameraIndex) {
+            this.camera = camera;
+            this.cameraIndex = cameraIndex;
+            this.metrics = streamMetrics.camera(cameraIndex);
+            for (StreamProfile profile : StreamProfile.values())
+                frameVariants.put(profile, new FrameVariants(transcoder));
+        }
+
+        /* Upper bound for the frame rate a client may request via ?fps=. */
+        private static final int MAX_FPS = 60;
+
+        /* Default time to deliver one frame the adaptive mode aims for, see ?latency=. */
+        private static final int DEFAULT_TARGET_LATENCY_MILLIS = 200;
+
+        /* Default share of the image in percent which must change in mode=changes, see ?threshold=. */
+        private static final int DEFAULT_CHANGE_THRESHOLD_PERCENT = 1;
+
+        /* Default maximum time between frames in mode=changes, see ?keepalive=. */
+        private static final int DEFAULT_KEEPALIVE_MILLIS = 1000;
+
+        /* JPEG quality of cropped regions unless the adaptive mode chooses a lower one. */
+        private static final int REGION_QUALITY = 90;
+
+        /* How long a writer parks for a new frame before re-checking for server shutdown. */
+        private static final long FRAME_WAIT_MILLIS = 1000;
+
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+
+            QueryParameters query = parseQuery(httpExchange);
+            if (query == null)
+                return;
+
+            /*
+             * With /stream0?roi=x,y,w,h only that region of the frame is sent. Regions are cut
+             * from the high resolution profile unless another one is given.
+             */
+            RegionOfInterest region = null;
+            if (query.get("roi") != null) {
+                region = RegionOfInterest.parse(query.get("roi"));
+                if (region == null) {
+                    sendError(httpExchange, 400, "Invalid region " + query.get("roi") + ", expected x,y,w,h");
+                    return;
+                }
+            }
+
+            StreamProfile defaultProfile = region != null ? StreamProfile.HIGH : StreamProfile.DEFAULT;
+            StreamProfile profile = StreamProfile.fromName(query.get("profile", defaultProfile.getName()));
+            if (profile == null) {
+                sendError(httpExchange, 400, "Unknown profile " + query.get("profile"));
+                return;
+            }
+            if (region != null && !region.overlaps(profile.width, profile.height)) {
+                sendError(httpExchange, 400, "Region " + region + " is outside of the " +
+                        profile.width + "x" + profile.height + " frames of profile " + profile.getName());
+                return;
+            }
+
+            StreamConnections.Connection connection = openStream(httpExchange);
+            if (connection == null)
+                return;
+
+            FrameBuffer frameBuffer = camera.getFrameBuffer(profile);
+            StreamMetrics.Client client = streamMetrics.openClient(cameraIndex, profile.getName());
+            frameBuffer.subscribe();
+            try {
+                stream(httpExchange, query, region, frameBuffer, frameVariants.get(profile), client, connection);
+            } finally {
+                frameBuffer.unsubscribe();
+                streamMetrics.closeClient(client);
+                connection.close();
+            }
+        }
+
+        private void stream(HttpExchange httpExchange, QueryParameters query, RegionOfInterest region,
+                            FrameBuffer frameBuffer, FrameVariants frameVariants, StreamMetrics.Client client,
+                            StreamConnections.Connection connection) throws IOException {
+
+            Headers headers = httpExchange.getResponseHeaders();
+            headers.set("Cache-Control", "no-cache, private");
+            headers.set("Content-Type", MultipartWriter.CONTENT_TYPE);
+            httpExchange.sendResponseHeaders(200, 0);
+
+            /* Optional frame rate limit, e.g. /stream0?fps=5. Without it every frame is sent. */
+            int fps = query.getInt("fps", 0);
+            long frameIntervalNanos = fps > 0 ? 1000000000L / Math.min(fps, MAX_FPS) : 0;
+            long nextFrameDue = 0;
+
+            /*
+             * With /stream0?mode=adaptive, quality and frame rate follow the client's throughput.
+             * Otherwise the camera images are sent as they are.
+             */
+            AdaptiveQualityController controller = null;
+            if (query.contains("mode", "adaptive"))
+                controller = new AdaptiveQualityController(query.getInt("latency", DEFAULT_TARGET_LATENCY_MILLIS));
+
+            /*
+             * With /stream0?mode=changes, frames showing (almost) the same as the last one sent
+             * are suppressed, see ?threshold= and ?keepalive=. Modes can be combined with a comma.
+             */
+            ChangeDetector changeDetector = null;
+            if (query.contains("mode", "changes"))
+                changeDetector = new ChangeDetector(query.getInt("threshold", DEFAULT_CHANGE_THRESHOLD_PERCENT),
+                        query.getInt("keepalive", DEFAULT_KEEPALIVE_MILLIS));
+
+            /* Each connection keeps its own cursor into the shared frame buffer. */
+            long lastSequence = 0;
+
+            try (OutputStream outputStream = httpExchange.getResponseBody()) {
+                MultipartWriter multipartWriter = new MultipartWriter(outputStream);
+
+                while (!serverWillBeStopped) {
+
+                    Frame frame;
+                    try {
+                        long delay = nextFrameDue - System.nanoTime();
+                        if (frameIntervalNanos > 0 && delay > 0)
+                            TimeUnit.NANOSECONDS.sleep(delay);
+
+                        frame = frameBuffer.awaitFrameAfter(lastSequence, FRAME_WAIT_MILLIS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+
+                    if (frame == null) {
+                        continue;
+                    }
+
+                    if (lastSequence > 0)
+                        metrics.skippedFrames.add(frame.getSequence() - lastSequence - 1);
+                    lastSequence = frame.getSequence();
+
+                    if (controller != null && controller.shouldSkipFrame()) {
+                        frame.release();
+                        continue;
+                    }
+
+                    if (changeDetector != null && !changeDetector.shouldSend(frame)) {
+                        metrics.suppressedFrames.increment();
+                        frame.release();
+                        continue;
+                    }
+
+                    nextFrameDue = System.nanoTime() + frameIntervalNanos;
+
+                    try {
+                        byte[] image = frame.getData();
+                        int length = frame.getLength();
+                        int quality = controller != null ? controller.getQuality() : AdaptiveQualityController.ORIGINAL_QUALITY;
+                        if (region != null && quality == AdaptiveQualityController.ORIGINAL_QUALITY)
+                            quality = REGION_QUALITY;
+                        if (region != null || quality < AdaptiveQualityController.ORIGINAL_QUALITY) {
+                            FrameVariants.EncodedImage encoded = frameVariants.encode(frame, region, quality);
+                            if (encoded == null) {
+                                /* A region outside of a frame smaller than its profile fails on every frame, give up right away. */
+                                if (region != null)
+                                    break;
+                                continue;
+                            }
+                            image = encoded.data;
+                            length = encoded.length;
+                        }
+
+                        long start = System.nanoTime();
+                        metrics.waitTime.observeNanos(start - frame.getPublishTime());
+                        int sent;
+                        connection.beginWrite();
+                        try {
+                            sent = multipartWriter.writePart(image, length, frame.getCaptureTimestampMicros());
+                        } finally {
+                            connection.endWrite();
+                        }
+                        long written = System.nanoTime();
+                        long sendNanos = written - start;
+                        metrics.sendTime.observeNanos(sendNanos);
+                        metrics.observeLatency(frame, written);
+                        metrics.sentBytes.add(sent);
+                        client.sentBytes.add(sent);
+                        if (controller != null)
+                            controller.onFrameSent(sendNanos);
+                    } finally {
+                        frame.release();
+                    }
+                }
+
+            }
+        }
+    }
+}
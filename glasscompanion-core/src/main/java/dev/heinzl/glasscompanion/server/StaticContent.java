@@ -0,0 +1,136 @@
+package dev.heinzl.glasscompanion.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Immutable in-memory cache of the viewer's static files (HTML, JS, CSS).
+ *
+ * Everything that does not depend on the request is computed once when the content is loaded:
+ * the bytes, a gzip variant and strong entity tags. Serving a file then only means writing out
+ * one of two prepared arrays, or just headers if the client's copy is still current.
+ */
+public final class StaticContent {
+
+    /** One file, ready to be sent. */
+    static final class Resource {
+
+        final String contentType;
+        final byte[] data;
+        final String etag;
+
+        /* Null if compression does not make the file smaller. */
+        @Nullable final byte[] gzipData;
+        @Nullable final String gzipETag;
+
+        private Resource(String contentType, byte[] data) {
+            this.contentType = contentType;
+            this.data = data;
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            String tag = Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(data.length);
+            this.etag = "\"" + tag + "\"";
+
+            byte[] compressed = gzip(data);
+            if (compressed.length < data.length) {
+                /* Each representation needs its own strong entity tag. */
+                this.gzipData = compressed;
+                this.gzipETag = "\"" + tag + "-gzip\"";
+            } else {
+                this.gzipData = null;
+                this.gzipETag = null;
+            }
+        }
+    }
+
+    private final Map<String, Resource> resources;
+
+    /**
+     * @param files File contents by name, e.g. "index.html".
+     */
+    public StaticContent(@NonNull Map<String, byte[]> files) {
+        Map<String, Resource> resources = new HashMap<>();
+        for (Map.Entry<String, byte[]> file : files.entrySet())
+            resources.put(file.getKey(), new Resource(contentType(file.getKey()), file.getValue()));
+        this.resources = Collections.unmodifiableMap(resources);
+    }
+
+    /** Load all files of a directory (not recursive). */
+    @NonNull
+    public static StaticContent fromDirectory(@NonNull File directory) throws IOException {
+        File[] files = directory.listFiles(File::isFile);
+        if (files == null)
+            throw new IOException("Cannot list " + directory);
+        Map<String, byte[]> contents = new HashMap<>();
+        for (File file : files) {
+            try (InputStream input = new FileInputStream(file)) {
+                contents.put(file.getName(), readFully(input));
+            }
+        }
+        return new StaticContent(contents);
+    }
+
+    /** Get a file by name, or null if there is no such file. */
+    @Nullable
+    Resource get(@NonNull String name) {
+        return resources.get(name);
+    }
+
+    /** Read a stream to its end. */
+    @NonNull
+    public static byte[] readFully(@NonNull InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1)
+            output.write(buffer, 0, read);
+        return output.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(data);
+        } catch (IOException e) {
+            /* Not expected when writing to memory. */
+            throw new UncheckedIOException(e);
+        }
+        return output.toByteArray();
+    }
+
+    private static String contentType(String name) {
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        switch (extension) {
+            case "html":
+                return "text/html; charset=utf-8";
+            case "js":
+                return "application/javascript; charset=utf-8";
+            case "css":
+                return "text/css; charset=utf-8";
+            case "json":
+                return "application/json; charset=utf-8";
+            case "svg":
+                return "image/svg+xml";
+            case "png":
+                return "image/png";
+            case "ico":
+                return "image/x-icon";
+            default:
+                return "application/octet-stream";
+        }
+    }
+}
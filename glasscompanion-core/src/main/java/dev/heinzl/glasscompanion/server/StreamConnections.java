@@ -0,0 +1,235 @@
+package dev.heinzl.glasscompanion.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import dev.heinzl.glasscompanion.metrics.Counter;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Admission and supervision of the stream connections, shared by the HTTP and WebSocket
+ * servers.
+ *
+ * A stream is admitted while a slot is free, both in total and for the client address, so a
+ * single client, e.g. a browser with forgotten tabs, cannot take all slots. Rejected streams
+ * are answered right away with a status telling which limit was hit.
+ *
+ * Every stream has its own writer thread which takes the newest frame whenever it is ready
+ * to send, so its send queue holds a single frame and a slow client only skips frames without
+ * holding up anybody else. A client which stops reading, however, blocks its writer once the
+ * socket buffers are full, pinning the thread, the slot and the frame being written. The
+ * watchdog therefore evicts connections whose current write takes longer than the write
+ * timeout, and connections not heard from within their idle timeout, by running their
+ * eviction action: interrupting a writer blocked on an interruptible channel, or closing
+ * the socket.
+ */
+final class StreamConnections {
+
+    private static final String TAG = "StreamConnections";
+    private static final Logger LOG = Logger.getLogger(TAG);
+
+    /* How often the watchdog looks for stalled connections, bounding how late it evicts them. */
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    /** A stream which was not admitted, with the HTTP status code to answer. */
+    static final class RejectedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        RejectedException(int statusCode, @NonNull String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        int getStatusCode() {
+            return statusCode;
+        }
+    }
+
+    /** An admitted stream. Must be closed when the stream ends. */
+    final class Connection implements Closeable {
+        private final String client;
+        private final long idleTimeoutNanos;
+        private final Runnable evictAction;
+
+        private volatile boolean writing = false;
+        private volatile long writeStartTime;
+        private volatile long lastActivityTime = System.nanoTime();
+
+        /* Guarded by this, so a connection is not evicted after it was closed. */
+        private boolean closed = false;
+        private boolean evicted = false;
+
+        private Connection(String client, long idleTimeoutNanos, Runnable evictAction) {
+            this.client = client;
+            this.idleTimeoutNanos = idleTimeoutNanos;
+            this.evictAction = evictAction;
+        }
+
+        /** Start of a write to the client, which must end within the write timeout. */
+        void beginWrite() {
+            writeStartTime = System.nanoTime();
+            writing = true;
+        }
+
+        void endWrite() {
+            writing = false;
+        }
+
+        /** Note that the client was heard from, see the idle timeout. */
+        void onClientActivity() {
+            lastActivityTime = System.nanoTime();
+        }
+
+        /**
+         * Free the slot of the stream. The interrupt of an evicted writer is cleared, so it does
+         * not hit the next task of the thread.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                if (evicted)
+                    Thread.interrupted();
+            }
+            connections.remove(this);
+            release(client);
+        }
+
+        private synchronized boolean evict() {
+            if (closed || evicted)
+                return false;
+            evicted = true;
+            evictAction.run();
+            return true;
+        }
+    }
+
+    private final int maxStreams;
+    private final int maxStreamsPerClient;
+    private final long writeTimeoutNanos;
+
+    /* Open streams in total and per client address, guarded by this. */
+    private int openStreams = 0;
+    private final Map<String, Integer> clientStreams = new HashMap<>();
+
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    @Nullable private ScheduledExecutorService watchdog;
+
+    final Counter rejectedStreams = new Counter();
+    final Counter rejectedClientStreams = new Counter();
+    final Counter evictedStalled = new Counter();
+    final Counter evictedIdle = new Counter();
+
+    /**
+     * @param maxStreams Maximum number of open streams.
+     * @param maxStreamsPerClient Maximum number of open streams of one client address.
+     * @param writeTimeoutMillis Maximum time for writing one frame to a client.
+     */
+    StreamConnections(int maxStreams, int maxStreamsPerClient, long writeTimeoutMillis) {
+        this.maxStreams = maxStreams;
+        this.maxStreamsPerClient = maxStreamsPerClient;
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+    }
+
+    /** Start the watchdog. */
+    synchronized void start() {
+        if (watchdog != null)
+            return;
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(this::evictStalled, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop the watchdog. Open connections are left to the shutdown of their servers. */
+    synchronized void stop() {
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+            watchdog = null;
+        }
+    }
+
+    /**
+     * Admit a stream.
+     * @param client Address of the client, without the port.
+     * @param idleTimeoutMillis Maximum time without {@link Connection#onClientActivity()}, or 0
+     *                          for clients which are not expected to send anything.
+     * @param evictAction Ends the stream when it stalls. Called on the watchdog thread.
+     * @throws RejectedException If a limit is reached.
+     */
+    @NonNull
+    Connection open(@NonNull String client, long idleTimeoutMillis, @NonNull Runnable evictAction) throws RejectedException {
+        synchronized (this) {
+            if (openStreams >= maxStreams) {
+                rejectedStreams.increment();
+                throw new RejectedException(503, "Too many open streams (limit " + maxStreams + ")");
+            }
+            Integer count = clientStreams.get(client);
+            if (count == null)
+                count = 0;
+            if (count >= maxStreamsPerClient) {
+                rejectedClientStreams.increment();
+                throw new RejectedException(429, "Too many open streams from " + client +
+                        " (limit " + maxStreamsPerClient + "), close one of them first");
+            }
+            openStreams++;
+            clientStreams.put(client, count + 1);
+        }
+        Connection connection = new Connection(client, TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis), evictAction);
+        connections.add(connection);
+        return connection;
+    }
+
+    synchronized int getOpenStreams() {
+        return openStreams;
+    }
+
+    int getMaxStreams() {
+        return maxStreams;
+    }
+
+    int getMaxStreamsPerClient() {
+        return maxStreamsPerClient;
+    }
+
+    private synchronized void release(String client) {
+        openStreams--;
+        Integer count = clientStreams.get(client);
+        if (count == null || count <= 1)
+            clientStreams.remove(client);
+        else
+            clientStreams.put(client, count - 1);
+    }
+
+    private void evictStalled() {
+        long now = System.nanoTime();
+        for (Connection connection : connections) {
+            if (connection.writing && now - connection.writeStartTime > writeTimeoutNanos) {
+                if (connection.evict()) {
+                    evictedStalled.increment();
+                    LOG.info("Evicted stream of " + connection.client + ", not reading");
+                }
+            } else if (connection.idleTimeoutNanos > 0 && now - connection.lastActivityTime > connection.idleTimeoutNanos) {
+                if (connection.evict()) {
+                    evictedIdle.increment();
+                    LOG.info("Evicted stream of " + connection.client + ", idle");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package dev.heinzl.glasscompanion.server;
+
+import androidx.annotation.NonNull;
+
+import dev.heinzl.glasscompanion.metrics.Counter;
+import dev.heinzl.glasscompanion.metrics.Histogram;
+import dev.heinzl.glasscompanion.metrics.PrometheusWriter;
+import dev.heinzl.glasscompanion.stream.Frame;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counters and latency histograms of the stream writers, per camera, and send rates of the
+ * open connections per camera and profile. Connections are not told apart by client, which
+ * would add series with every connection.
+ */
+final class StreamMetrics {
+
+    static final class CameraMetrics {
+        /* From publishing a frame until a writer starts sending it. */
+        final Histogram waitTime = new Histogram(Histogram.LATENCY_BUCKETS);
+        /* Writing one multipart part to the connection. */
+        final Histogram sendTime = new Histogram(Histogram.LATENCY_BUCKETS);
+        final Counter sentBytes = new Counter();
+        /* Frames a connection never received because newer ones replaced them. */
+        final Counter skippedFrames = new Counter();
+        /* Frames not sent to a connection in mode=changes because the image did not change. */
+        final Counter suppressedFrames = new Counter();
+
+        /*
+         * From capture by the sensor until the frame reached each stage, observed for every
+         * frame sent so all stages cover the same frames and their differences are meaningful.
+         */
+        final Histogram availableLatency = new Histogram(Histogram.LATENCY_BUCKETS);
+        final Histogram copiedLatency = new Histogram(Histogram.LATENCY_BUCKETS);
+        final Histogram dequeuedLatency = new Histogram(Histogram.LATENCY_BUCKETS);
+        final Histogram writtenLatency = new Histogram(Histogram.LATENCY_BUCKETS);
+
+        /** Record the stages of a frame which was completely written at the given time. */
+        void observeLatency(@NonNull Frame frame, long writtenTime) {
+            long captureTime = frame.getCaptureTime();
+            availableLatency.observeNanos(frame.getAvailableTime() - captureTime);
+            copiedLatency.observeNanos(frame.getPublishTime() - captureTime);
+            dequeuedLatency.observeNanos(frame.getFirstTakenTime() - captureTime);
+            writtenLatency.observeNanos(writtenTime - captureTime);
+        }
+    }
+
+    /** One open stream connection. */
+    static final class Client {
+        final int camera;
+        final String profile;
+        final long connectedAt = System.nanoTime();
+        final Counter sentBytes = new Counter();
+
+        private Client(int camera, String profile) {
+            this.camera = camera;
+            this.profile = profile;
+        }
+    }
+
+    private final CameraMetrics[] cameras;
+    private final String[] cameraLabels;
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param cameraLabels Value of the camera label of each stream source, e.g. "0" or "both".
+     */
+    StreamMetrics(@NonNull String[] cameraLabels) {
+        this.cameraLabels = cameraLabels.clone();
+        cameras = new CameraMetrics[cameraLabels.length];
+        for (int i = 0; i < cameras.length; i++)
+            cameras[i] = new CameraMetrics();
+    }
+
+    @NonNull
+    CameraMetrics camera(int index) {
+        return cameras[index];
+    }
+
+    /** Register a connection. Must be paired with {@link #closeClient(Client)}. */
+    @NonNull
+    Client openClient(int camera, @NonNull String profile) {
+        Client client = new Client(camera, profile);
+        clients.add(client);
+        return client;
+    }
+
+    void closeClient(@NonNull Client client) {
+        clients.remove(client);
+    }
+
+    void write(@NonNull PrometheusWriter writer) {
+        writer.header("glasscompanion_stream_sent_bytes_total", "Bytes sent to stream clients.", "counter");
+        for (int i = 0; i < cameras.length; i++)
+            writer.sample("glasscompanion_stream_sent_bytes_total", cameras[i].sentBytes.get(), "camera", cameraLabels[i]);
+
+        writer.header("glasscompanion_stream_skipped_frames_total", "Frames stream clients did not receive because a newer frame replaced them.", "counter");
+        for (int i = 0; i < cameras.length; i++)
+            writer.sample("glasscompanion_stream_skipped_frames_total", cameras[i].skippedFrames.get(), "camera", cameraLabels[i]);
+
+        writer.header("glasscompanion_stream_suppressed_frames_total", "Frames not sent to change-detecting stream clients because the image did not change.", "counter");
+        for (int i = 0; i < cameras.length; i++)
+            writer.sample("glasscompanion_stream_suppressed_frames_total", cameras[i].suppressedFrames.get(), "camera", cameraLabels[i]);
+
+        writer.header("glasscompanion_frame_wait_seconds", "Time from publishing a frame until a stream writer starts sending it.", "histogram");
+        for (int i = 0; i < cameras.length; i++)
+            writer.histogram("glasscompanion_frame_wait_seconds", cameras[i].waitTime, "camera", cameraLabels[i]);
+
+        writer.header("glasscompanion_frame_send_seconds", "Time to write one frame to a stream client.", "histogram");
+        for (int i = 0; i < cameras.length; i++)
+            writer.histogram("glasscompanion_frame_send_seconds", cameras[i].sendTime, "camera", cameraLabels[i]);
+
+        writer.header("glasscompanion_frame_latency_seconds", "Time from capture by the sensor until a sent frame was received by the app (available), " +
+                "copied into the frame buffer (copied), taken by the first stream writer (dequeued) and written to the client (written).", "histogram");
+        for (int i = 0; i < cameras.length; i++) {
+            String[] stages = {"available", "copied", "dequeued", "written"};
+            Histogram[] histograms = {cameras[i].availableLatency, cameras[i].copiedLatency, cameras[i].dequeuedLatency, cameras[i].writtenLatency};
+            for (int stage = 0; stage < stages.length; stage++)
+                writer.histogram("glasscompanion_frame_latency_seconds", histograms[stage], "camera", cameraLabels[i], "stage", stages[stage]);
+        }
+
+        /* Number of connections and the sum of their send rates, by camera and profile label. */
+        long now = System.nanoTime();
+        Map<List<String>, double[]> groups = new HashMap<>();
+        for (Client client : clients) {
+            double seconds = Math.max(now - client.connectedAt, 1) / 1e9;
+            List<String> key = Arrays.asList(cameraLabels[client.camera], client.profile);
+            double[] group = groups.get(key);
+            if (group == null) {
+                group = new double[2];
+                groups.put(key, group);
+            }
+            group[0]++;
+            group[1] += client.sentBytes.get() / seconds;
+        }
+
+        writer.header("glasscompanion_stream_clients", "Open stream connections.", "gauge");
+        for (Map.Entry<List<String>, double[]> group : groups.entrySet())
+            writer.sample("glasscompanion_stream_clients", (long) group.getValue()[0], labels(group.getKey()));
+
+        writer.header("glasscompanion_client_bytes_per_second", "Average send rate of the open stream connections, each since it was opened.", "gauge");
+        for (Map.Entry<List<String>, double[]> group : groups.entrySet())
+            writer.sample("glasscompanion_client_bytes_per_second", group.getValue()[1] / group.getValue()[0], labels(group.getKey()));
+    }
+
+    private static String[] labels(List<String> group) {
+        return new String[] {"camera", group.get(0), "profile", group.get(1)};
+    }
+}
@@ -0,0 +1,576 @@
+package dev.heinzl.glasscompanion.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import dev.heinzl.glasscompanion.stream.Frame;
+import dev.heinzl.glasscompanion.stream.FrameBuffer;
+import dev.heinzl.glasscompanion.stream.FrameSource;
+import dev.heinzl.glasscompanion.stream.StreamProfile;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Minimal WebSocket server streaming camera frames as binary messages.
+ *
+ * The bundled HttpServer does not give access to the underlying socket, so WebSockets are
+ * served on a port of their own. Connect to {@code ws://phone-ip:8081/ws0} (or {@code /ws1}),
+ * optionally with {@code ?profile=<name>} as for MJPEG streams.
+ *
+ * Each frame is sent as one binary message: a header of {@value #FRAME_HEADER_SIZE} bytes
+ * followed by the JPEG image. The header contains, big endian:
+ * <ul>
+ *     <li>header version (1 byte, currently 1)</li>
+ *     <li>camera index (1 byte)</li>
+ *     <li>frame sequence number (8 bytes)</li>
+ *     <li>sensor capture timestamp in microseconds since the epoch (8 bytes), as the
+ *     {@code X-Timestamp} header of MJPEG streams</li>
+ * </ul>
+ * Gaps in sequence numbers indicate frames dropped for this client.
+ *
+ * Flow control is credit based when {@code ?credits=<n>} is given: the server sends at most
+ * n frames and then waits for the client to grant more by sending a text message containing
+ * a number. Frames captured in the meantime are dropped, so a slow client always gets the
+ * newest frame. Without the parameter, frames are sent as fast as the connection allows.
+ *
+ * The server pings idle connections and closes those whose client has not sent anything,
+ * not even a pong, within the idle timeout, see {@link StreamConnections}.
+ *
+ * Connections are admitted as soon as they are accepted, before the handshake, so neither
+ * clients which never send a request nor the reader thread of each connection can outgrow
+ * the stream limits. A client has a few seconds to send its request.
+ */
+class WebSocketServer {
+
+    private static final String TAG = "WebSocketServer";
+    private static final Logger LOG = Logger.getLogger(TAG);
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    static final int FRAME_HEADER_SIZE = 18;
+    private static final int FRAME_HEADER_VERSION = 1;
+
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    /* Limits for what clients may send. */
+    private static final int MAX_REQUEST_HEAD_BYTES = 8 * 1024;
+    private static final int MAX_CLIENT_PAYLOAD_BYTES = 1024;
+
+    /* Control frames carry their length in the second byte only, RFC 6455 section 5.5. */
+    private static final int MAX_CONTROL_PAYLOAD_BYTES = 125;
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+
+    private static final long FRAME_WAIT_MILLIS = 1000;
+
+    /* Clients send the request right after connecting, a slow one only holds its own slot this long. */
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    /* Clients answer pings, so one not heard from for a few ping intervals is gone. */
+    private static final long PING_INTERVAL_MILLIS = 10000;
+    private static final long IDLE_TIMEOUT_MILLIS = 3 * PING_INTERVAL_MILLIS;
+
+    /* Bytes queued in the socket per connection, about one high resolution frame. */
+    private static final int SEND_BUFFER_BYTES = 256 * 1024;
+
+    private final int port;
+    private final FrameSource[] cameras;
+    private final ExecutorService executor;
+    private final StreamConnections streamConnections;
+
+    @Nullable private ServerSocket serverSocket;
+    private volatile boolean stopped = false;
+    private final Set<Socket> sockets = Collections.synchronizedSet(new HashSet<>());
+
+    /**
+     * @param cameras Cameras, indexed as in the URL path.
+     * @param executor Executor running the admitted connections, one task per connection.
+     * @param streamConnections Stream admission shared with the HTTP server.
+     */
+    WebSocketServer(int port, @NonNull FrameSource[] cameras, @NonNull ExecutorService executor,
+                    @NonNull StreamConnections streamConnections) {
+        this.port = port;
+        this.cameras = cameras;
+        this.executor = executor;
+        this.streamConnections = streamConnections;
+    }
+
+    void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        new Thread(this::acceptConnections, TAG).start();
+    }
+
+    void stop() {
+        stopped = true;
+        closeQuietly(serverSocket);
+        synchronized (sockets) {
+            for (Socket socket : sockets)
+                closeQuietly(socket);
+        }
+    }
+
+    private void acceptConnections() {
+        ServerSocket listener = serverSocket;
+        while (!stopped && listener != null) {
+            Socket socket;
+            try {
+                socket = listener.accept();
+            } catch (IOException e) {
+                if (!stopped)
+                    LOG.log(Level.SEVERE, "Accept failed", e);
+                return;
+            }
+
+            StreamConnections.Connection admitted;
+            try {
+                admitted = streamConnections.open(socket.getInetAddress().getHostAddress(), IDLE_TIMEOUT_MILLIS,
+                        () -> closeQuietly(socket));
+            } catch (StreamConnections.RejectedException e) {
+                reject(socket, e);
+                continue;
+            }
+
+            sockets.add(socket);
+            try {
+                executor.execute(() -> serve(socket, admitted));
+            } catch (RejectedExecutionException e) {
+                sockets.remove(socket);
+                closeQuietly(socket);
+                admitted.close();
+            }
+        }
+    }
+
+    /*
+     * Answered as rejected MJPEG streams are, but on the accept thread without reading the
+     * request: the few bytes go into the empty send buffer of the new socket, so this does
+     * not block.
+     */
+    private static void reject(Socket socket, StreamConnections.RejectedException e) {
+        try {
+            sendHttpResponse(socket.getOutputStream(), e.getStatusCode(),
+                    e.getStatusCode() == 429 ? "Too Many Requests" : "Service Unavailable",
+                    "Retry-After: " + Server.RETRY_AFTER_SECONDS + "\r\n", e.getMessage());
+            socket.shutdownOutput();
+        } catch (IOException ignored) {
+            /* Client went away. */
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private void serve(Socket socket, StreamConnections.Connection admitted) {
+        try {
+            socket.setTcpNoDelay(true);
+            /* Bounded, so a client which stops reading blocks the writer soon and gets evicted. */
+            socket.setSendBufferSize(SEND_BUFFER_BYTES);
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            OutputStream output = socket.getOutputStream();
+
+            String[] requestLine = new String[1];
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            Map<String, String> headers = readRequestHead(input, requestLine);
+            socket.setSoTimeout(0);
+            String[] parts = requestLine[0] != null ? requestLine[0].split(" ") : new String[0];
+            if (parts.length < 2 || !"GET".equals(parts[0])) {
+                sendHttpError(output, 400, "Bad Request");
+                return;
+            }
+
+            URI uri;
+            QueryParameters query;
+            try {
+                uri = URI.create(parts[1]);
+                query = new QueryParameters(uri);
+            } catch (IllegalArgumentException e) {
+                sendHttpError(output, 400, "Bad Request");
+                return;
+            }
+            FrameSource camera = findCamera(uri.getPath());
+            StreamProfile profile = StreamProfile.fromName(query.get("profile", StreamProfile.DEFAULT.getName()));
+            String key = headers.get("sec-websocket-key");
+            if (camera == null || profile == null) {
+                sendHttpError(output, 404, "Not Found");
+                return;
+            }
+            if (key == null || !"websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+                sendHttpError(output, 400, "Bad Request");
+                return;
+            }
+
+            /* Watched like frame writes, the idle timeout has been running since the connection was accepted. */
+            admitted.beginWrite();
+            try {
+                output.write(("HTTP/1.1 101 Switching Protocols\r\n" +
+                        "Upgrade: websocket\r\n" +
+                        "Connection: Upgrade\r\n" +
+                        "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                output.flush();
+            } finally {
+                admitted.endWrite();
+            }
+
+            Connection connection = new Connection(socket, input, output, cameraIndexOf(camera),
+                    query.getInt("credits", -1), admitted);
+            connection.run(camera.getFrameBuffer(profile));
+        } catch (IOException e) {
+            /* Client went away, or did not send its request in time. */
+        } finally {
+            sockets.remove(socket);
+            closeQuietly(socket);
+            admitted.close();
+        }
+    }
+
+    @Nullable
+    private FrameSource findCamera(String path) {
+        for (int i = 0; i < cameras.length; i++) {
+            if (("/ws" + i).equals(path))
+                return cameras[i];
+        }
+        return null;
+    }
+
+    private int cameraIndexOf(FrameSource camera) {
+        for (int i = 0; i < cameras.length; i++) {
+            if (cameras[i] == camera)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * One open WebSocket, with the writer on the calling thread and a reader thread, which ends
+     * before the connection frees its slot.
+     */
+    private class Connection {
+
+        private final Socket socket;
+        private final InputStream input;
+        private final OutputStream output;
+        private final int cameraIndex;
+        private final StreamConnections.Connection admitted;
+
+        private final Object creditLock = new Object();
+        /* Remaining frames the client accepts, or -1 without flow control. */
+        private int credits;
+        private volatile boolean open = true;
+
+        private final byte[] header = new byte[10 + FRAME_HEADER_SIZE];
+        /* Writer thread only. */
+        private long lastPingTime = System.nanoTime();
+
+        Connection(Socket socket, InputStream input, OutputStream output, int cameraIndex, int initialCredits,
+                   StreamConnections.Connection admitted) {
+            this.socket = socket;
+            this.input = input;
+            this.output = output;
+            this.cameraIndex = cameraIndex;
+            this.credits = initialCredits;
+            this.admitted = admitted;
+        }
+
+        void run(FrameBuffer frameBuffer) throws IOException {
+            Thread reader = new Thread(this::readMessages, TAG + "-reader");
+            reader.start();
+
+            frameBuffer.subscribe();
+            try {
+                long lastSequence = 0;
+                while (open && !stopped) {
+                    pingIfDue();
+                    if (!awaitCredit())
+                        continue;
+
+                    Frame frame;
+                    try {
+                        frame = frameBuffer.awaitFrameAfter(lastSequence, FRAME_WAIT_MILLIS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (frame == null)
+                        continue;
+
+                    lastSequence = frame.getSequence();
+                    try {
+                        sendFrame(frame);
+                    } finally {
+                        frame.release();
+                    }
+                }
+            } finally {
+                open = false;
+                frameBuffer.unsubscribe();
+                closeQuietly(socket);
+                try {
+                    reader.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /** Wait up to one frame timeout for a credit and consume it. */
+        private boolean awaitCredit() {
+            synchronized (creditLock) {
+                if (credits < 0)
+                    return true;
+                if (credits == 0) {
+                    try {
+                        creditLock.wait(FRAME_WAIT_MILLIS);
+                    } catch (InterruptedException e) {
+                        open = false;
+                        return false;
+                    }
+                }
+                if (credits <= 0)
+                    return false;
+                credits--;
+                return true;
+            }
+        }
+
+        private void sendFrame(Frame frame) throws IOException {
+            int payloadLength = FRAME_HEADER_SIZE + frame.getLength();
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            buffer.put((byte) (0x80 | OPCODE_BINARY));
+            if (payloadLength < 126) {
+                buffer.put((byte) payloadLength);
+            } else if (payloadLength <= 0xFFFF) {
+                buffer.put((byte) 126);
+                buffer.putShort((short) payloadLength);
+            } else {
+                buffer.put((byte) 127);
+                buffer.putLong(payloadLength);
+            }
+            buffer.put((byte) FRAME_HEADER_VERSION);
+            buffer.put((byte) cameraIndex);
+            buffer.putLong(frame.getSequence());
+            buffer.putLong(frame.getCaptureTimestampMicros());
+
+            synchronized (output) {
+                admitted.beginWrite();
+                try {
+                    output.write(header, 0, buffer.position());
+                    output.write(frame.getData(), 0, frame.getLength());
+                    output.flush();
+                } finally {
+                    admitted.endWrite();
+                }
+            }
+        }
+
+        /* The pong proves the client is still there even while it is not granting credits. */
+        private void pingIfDue() throws IOException {
+            long now = System.nanoTime();
+            if (now - lastPingTime < TimeUnit.MILLISECONDS.toNanos(PING_INTERVAL_MILLIS))
+                return;
+            lastPingTime = now;
+            sendControl(OPCODE_PING, new byte[0]);
+        }
+
+        private void sendControl(int opcode, byte[] payload) throws IOException {
+            if (payload.length > MAX_CONTROL_PAYLOAD_BYTES)
+                throw new IllegalArgumentException("Control payload of " + payload.length + " bytes");
+            synchronized (output) {
+                output.write(0x80 | opcode);
+                output.write(payload.length);
+                output.write(payload);
+                output.flush();
+            }
+        }
+
+        /** Handle messages from the client until the connection closes. */
+        private void readMessages() {
+            DataInputStream in = new DataInputStream(input);
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            try {
+                while (open) {
+                    int first = in.readUnsignedByte();
+                    int second = in.readUnsignedByte();
+                    boolean fin = (first & 0x80) != 0;
+                    int opcode = first & 0x0F;
+                    long length = second & 0x7F;
+                    if (length == 126)
+                        length = in.readUnsignedShort();
+                    else if (length == 127)
+                        length = in.readLong();
+                    if (length > MAX_CLIENT_PAYLOAD_BYTES || (second & 0x80) == 0)
+                        break; /* Too large or unmasked, both not allowed here. */
+
+                    byte[] mask = new byte[4];
+                    in.readFully(mask);
+                    byte[] payload = new byte[(int) length];
+                    in.readFully(payload);
+                    for (int i = 0; i < payload.length; i++)
+                        payload[i] ^= mask[i & 3];
+                    admitted.onClientActivity();
+
+                    if ((opcode & 0x8) != 0 && (payload.length > MAX_CONTROL_PAYLOAD_BYTES || !fin)) {
+                        sendControl(OPCODE_CLOSE, new byte[] { (byte) (CLOSE_PROTOCOL_ERROR >> 8), (byte) CLOSE_PROTOCOL_ERROR });
+                        return;
+                    }
+                    switch (opcode) {
+                    case OPCODE_CLOSE:
+                        sendControl(OPCODE_CLOSE, payload);
+                        return;
+                    case OPCODE_PING:
+                        sendControl(OPCODE_PONG, payload);
+                        break;
+                    case OPCODE_PONG:
+                        break;
+                    default:
+                        /* Text, binary and continuation frames; only text carries credits. */
+                        message.write(payload, 0, payload.length);
+                        if (fin) {
+                            if (opcode == OPCODE_TEXT || opcode == 0)
+                                grantCredits(new String(message.toByteArray(), StandardCharsets.UTF_8));
+                            message.reset();
+                        }
+                        break;
+                    }
+                }
+            } catch (EOFException | SocketException e) {
+                /* Connection closed. */
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Reading from client failed", e);
+            } finally {
+                open = false;
+                synchronized (creditLock) {
+                    creditLock.notifyAll();
+                }
+                closeQuietly(socket);
+            }
+        }
+
+        private void grantCredits(String text) {
+            int granted;
+            try {
+                granted = Integer.parseInt(text.trim());
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (granted <= 0)
+                return;
+            synchronized (creditLock) {
+                if (credits >= 0) {
+                    credits = (int) Math.min(Integer.MAX_VALUE, (long) credits + granted);
+                    creditLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Read the request line and headers, returning headers with lower case names. */
+    private static Map<String, String> readRequestHead(InputStream input, String[] requestLine) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int total = 0;
+        while (true) {
+            int c = input.read();
+            if (c < 0)
+                throw new EOFException();
+            if (++total > MAX_REQUEST_HEAD_BYTES)
+                throw new IOException("Request head too large");
+            if (c != '\n') {
+                if (c != '\r')
+                    line.write(c);
+                continue;
+            }
+
+            String text = new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+            line.reset();
+            if (text.isEmpty())
+                return headers;
+            if (requestLine[0] == null) {
+                requestLine[0] = text;
+                continue;
+            }
+            int colon = text.indexOf(':');
+            if (colon > 0)
+                headers.put(text.substring(0, colon).trim().toLowerCase(Locale.ROOT), text.substring(colon + 1).trim());
+        }
+    }
+
+    private static void sendHttpError(OutputStream output, int code, String reason) throws IOException {
+        sendHttpResponse(output, code, reason, "", "");
+    }
+
+    /** Send a response closing the connection, headers being complete lines. */
+    private static void sendHttpResponse(OutputStream output, int code, String reason, String headers,
+                                         String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        output.write(("HTTP/1.1 " + code + " " + reason + "\r\n" + headers +
+                "Content-Length: " + body.length + "\r\n" +
+                "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        output.write(body);
+        output.flush();
+    }
+
+    /** Compute the Sec-WebSocket-Accept value for a client key. */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* java.util.Base64 requires API level 26, and the key is tiny. */
+    private static String base64(byte[] data) {
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xFF) << 16;
+            if (i + 1 < data.length)
+                b |= (data[i + 1] & 0xFF) << 8;
+            if (i + 2 < data.length)
+                b |= data[i + 2] & 0xFF;
+            out.append(alphabet.charAt((b >> 18) & 0x3F));
+            out.append(alphabet.charAt((b >> 12) & 0x3F));
+            out.append(i + 1 < data.length ? alphabet.charAt((b >> 6) & 0x3F) : '=');
+            out.append(i + 2 < data.length ? alphabet.charAt(b & 0x3F) : '=');
+        }
+        return out.toString();
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            /* Ignore. */
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One captured JPEG frame as published by a {@link FrameBuffer}.
+ *
+ * Frames are shared by reference between all readers of a buffer, hence the
+ * data array must never be modified after publishing.
+ *
+ * The data array is borrowed from a {@link FramePool} and reference counted: every holder of a
+ * frame must call {@link #release()} exactly once when done with it, after which the array
+ * may be reused for another frame.
+ *
+ * For latency tracing a frame carries the monotonic times of the stages it passed: capture
+ * by the sensor, delivery of the image to the app, copy into the buffer (publishing) and the
+ * first reader taking it.
+ */
+public final class Frame {
+
+    private final long sequence;
+    private final long timestamp;
+    private final long captureTimestampMicros;
+    private final long captureTime;
+    private final long availableTime;
+    private final long publishTime;
+    /* Set by the buffer before the frame is handed to the first reader. */
+    private long firstTakenTime;
+    private final byte[] data;
+    private final int length;
+    private final FramePool pool;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /* Computed on first use and shared by all readers, see getLumaThumbnail(). */
+    private volatile boolean thumbnailComputed;
+    private LumaThumbnail thumbnail;
+
+    Frame(long sequence, long timestamp, long captureTimestampMicros, long captureTime, long availableTime,
+          long publishTime, @NonNull byte[] data, int length, @NonNull FramePool pool) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.captureTimestampMicros = captureTimestampMicros;
+        this.captureTime = captureTime;
+        this.availableTime = availableTime;
+        this.publishTime = publishTime;
+        this.data = data;
+        this.length = length;
+        this.pool = pool;
+    }
+
+    /** Sequence number of this frame, strictly increasing per buffer and starting at 1. */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /** Wall clock time the frame was published, in milliseconds since the epoch. */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Wall clock time the image was captured, in microseconds since the epoch.
+     * Derived from {@link #getCaptureTime()}, so as precise as the system clock.
+     */
+    public long getCaptureTimestampMicros() {
+        return captureTimestampMicros;
+    }
+
+    /**
+     * Monotonic time the sensor started capturing the image, as given by {@link System#nanoTime()}.
+     * Equal to {@link #getAvailableTime()} if the producer does not know the capture time.
+     */
+    public long getCaptureTime() {
+        return captureTime;
+    }
+
+    /** Monotonic time the producer received the image, before copying it into the buffer. */
+    public long getAvailableTime() {
+        return availableTime;
+    }
+
+    /** Monotonic time the frame was published, i.e. copying it into the buffer completed. */
+    public long getPublishTime() {
+        return publishTime;
+    }
+
+    /** Monotonic time the first reader took the frame from the buffer, or 0 if none did yet. */
+    public long getFirstTakenTime() {
+        return firstTakenTime;
+    }
+
+    /* Called by the buffer with its lock held. */
+    void markTaken(long time) {
+        if (firstTakenTime == 0)
+            firstTakenTime = time;
+    }
+
+    /**
+     * JPEG encoded image data. Must be treated as read-only.
+     * Only the first {@link #getLength()} bytes are valid.
+     */
+    @NonNull
+    public byte[] getData() {
+        return data;
+    }
+
+    /** Length of the JPEG image in {@link #getData()}. */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Thumbnail for change detection, computed by the first reader asking for it.
+     * Only valid while holding a reference.
+     * @return The thumbnail, or null if the image format is not supported.
+     */
+    @Nullable
+    public LumaThumbnail getLumaThumbnail() {
+        if (!thumbnailComputed) {
+            synchronized (this) {
+                if (!thumbnailComputed) {
+                    thumbnail = LumaThumbnail.fromJpeg(data, length);
+                    thumbnailComputed = true;
+                }
+            }
+        }
+        return thumbnail;
+    }
+
+    /** Acquire an additional reference. Only valid while holding a reference already. */
+    Frame retain() {
+        if (references.getAndIncrement() <= 0)
+            throw new IllegalStateException("Frame already released");
+        return this;
+    }
+
+    /** Drop a reference. The data must not be accessed anymore afterwards. */
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0)
+            pool.recycle(data);
+        else if (remaining < 0)
+            throw new IllegalStateException("Frame released too often");
+    }
+}
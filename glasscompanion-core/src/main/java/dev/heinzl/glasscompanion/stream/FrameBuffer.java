@@ -0,0 +1,254 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import dev.heinzl.glasscompanion.metrics.Counter;
+import dev.heinzl.glasscompanion.metrics.Histogram;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Broadcast buffer holding the most recent frame of one camera.
+ *
+ * The producer publishes every captured frame, which replaces the previous one.
+ * Readers never remove frames: each reader keeps its own cursor (the sequence number of the
+ * last frame it has consumed) and asks for the next newer frame. Hence any number of readers
+ * see the full capture rate, all sharing the same frame instance.
+ *
+ * Readers may park in {@link #awaitFrameAfter(long, long)} until the next frame is published
+ * instead of polling.
+ *
+ * Frame data is copied exactly once, from the capture buffer into a pooled array. Frames
+ * handed out to readers are retained on their behalf and must be released after use.
+ *
+ * Readers announce themselves with {@link #subscribe()} so the producer can stop capturing
+ * frames nobody is interested in.
+ *
+ * The buffer counts published frames and frames that were replaced before any reader took
+ * them, and records how long copying a frame in takes. Frames remember when they were
+ * captured, copied and first taken by a reader, see {@link Frame}.
+ */
+public class FrameBuffer {
+
+    /**
+     * Notified when the first reader subscribes or the last one unsubscribes, in the order of
+     * these changes. Called on the subscribing thread, so it must return quickly.
+     */
+    public interface SubscriberListener {
+        void onSubscribersChanged(@NonNull FrameBuffer buffer, boolean hasSubscribers);
+    }
+
+    /* Idle frame buffers kept for reuse. Frames still held by slow readers are not counted. */
+    private static final int POOLED_FRAMES = 4;
+
+    private final FramePool pool = new FramePool(POOLED_FRAMES);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition frameAvailable = lock.newCondition();
+
+    @Nullable private Frame lastFrame;
+    /* Whether lastFrame has been handed out to at least one reader. */
+    private boolean lastFrameTaken;
+    private long sequence = 0;
+
+    private final Counter publishedFrames = new Counter();
+    private final Counter droppedFrames = new Counter();
+    private final Histogram copyTime = new Histogram(Histogram.FAST_BUCKETS);
+
+    /*
+     * Changes of the count and their notifications are serialized, so listeners are told of
+     * them in order and never see "no subscribers" after a newer "subscribers".
+     */
+    private final ReentrantLock subscriberLock = new ReentrantLock();
+    private volatile int subscribers = 0;
+    @Nullable private volatile SubscriberListener subscriberListener;
+
+    public void setSubscriberListener(@Nullable SubscriberListener listener) {
+        subscriberListener = listener;
+    }
+
+    /** Register a reader. Must be paired with {@link #unsubscribe()}. */
+    public void subscribe() {
+        subscriberLock.lock();
+        try {
+            if (subscribers++ == 0)
+                notifySubscribersChanged(true);
+        } finally {
+            subscriberLock.unlock();
+        }
+    }
+
+    /**
+     * Unregister a reader. When the last reader leaves, the buffered frame is dropped so the
+     * next subscriber does not start with an outdated image.
+     */
+    public void unsubscribe() {
+        subscriberLock.lock();
+        try {
+            if (--subscribers != 0)
+                return;
+
+            Frame previous;
+            lock.lock();
+            try {
+                previous = lastFrame;
+                lastFrame = null;
+            } finally {
+                lock.unlock();
+            }
+            if (previous != null)
+                previous.release();
+
+            notifySubscribersChanged(false);
+        } finally {
+            subscriberLock.unlock();
+        }
+    }
+
+    public boolean hasSubscribers() {
+        return subscribers > 0;
+    }
+
+    /* Called with subscriberLock held, listeners must not wait for other subscribers. */
+    private void notifySubscribersChanged(boolean hasSubscribers) {
+        SubscriberListener listener = subscriberListener;
+        if (listener != null)
+            listener.onSubscribersChanged(this, hasSubscribers);
+    }
+
+    /**
+     * Publish a new frame by copying the remaining bytes of the given buffer, for producers
+     * which do not know when the image was captured.
+     * The buffer's position is advanced to its limit.
+     * @return The sequence number assigned to the frame.
+     */
+    public long publish(@NonNull ByteBuffer data) {
+        return publish(data, 0, 0);
+    }
+
+    /**
+     * Publish a new frame by copying the remaining bytes of the given buffer.
+     * The buffer's position is advanced to its limit.
+     * @param captureTime Monotonic time the sensor captured the image, or 0 if unknown.
+     * @param availableTime Monotonic time the producer received the image, or 0 for now.
+     * @return The sequence number assigned to the frame.
+     */
+    public long publish(@NonNull ByteBuffer data, long captureTime, long availableTime) {
+        /* Read together, to map the monotonic capture time to the wall clock. */
+        long timestamp = System.currentTimeMillis();
+        long start = System.nanoTime();
+        if (availableTime == 0)
+            availableTime = start;
+        if (captureTime == 0)
+            captureTime = availableTime;
+        long captureTimestampMicros = timestamp * 1000 - (start - captureTime) / 1000;
+        int length = data.remaining();
+        byte[] array = pool.acquire(length);
+        data.get(array, 0, length);
+        long publishTime = System.nanoTime();
+        copyTime.observeNanos(publishTime - start);
+
+        Frame previous;
+        long published;
+        lock.lock();
+        try {
+            previous = lastFrame;
+            /* A frame nobody took while readers were waiting for it is lost for all of them. */
+            if (previous != null && !lastFrameTaken && subscribers > 0)
+                droppedFrames.increment();
+            lastFrame = new Frame(++sequence, timestamp, captureTimestampMicros, captureTime, availableTime,
+                    publishTime, array, length, pool);
+            lastFrameTaken = false;
+            published = sequence;
+            frameAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        publishedFrames.increment();
+
+        if (previous != null)
+            previous.release();
+        return published;
+    }
+
+    /**
+     * Get the most recent frame if it is newer than the reader's cursor.
+     * The returned frame is retained for the caller, who must {@link Frame#release()} it.
+     * @param lastSequence Sequence number of the last frame consumed by the reader, or 0.
+     * @return The most recent frame, or null if the reader is already up to date.
+     */
+    @Nullable
+    public Frame getFrameAfter(long lastSequence) {
+        lock.lock();
+        try {
+            if (lastFrame == null || lastFrame.getSequence() <= lastSequence)
+                return null;
+            return take();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a frame newer than the reader's cursor is available.
+     * Returns immediately if such a frame has already been published.
+     * The returned frame is retained for the caller, who must {@link Frame#release()} it.
+     * @param lastSequence Sequence number of the last frame consumed by the reader, or 0.
+     * @param timeoutMillis Maximum time to wait.
+     * @return The most recent frame, or null if no newer frame arrived within the timeout.
+     */
+    @Nullable
+    public Frame awaitFrameAfter(long lastSequence, long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while (lastFrame == null || lastFrame.getSequence() <= lastSequence) {
+                if (remaining <= 0)
+                    return null;
+                remaining = frameAvailable.awaitNanos(remaining);
+            }
+            return take();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Must be called with the lock held and a frame available. */
+    private Frame take() {
+        if (!lastFrameTaken) {
+            lastFrameTaken = true;
+            lastFrame.markTaken(System.nanoTime());
+        }
+        return lastFrame.retain();
+    }
+
+    /** Sequence number of the most recently published frame, or 0 if none yet. */
+    public long getSequence() {
+        lock.lock();
+        try {
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Number of frames published so far. */
+    public long getPublishedFrames() {
+        return publishedFrames.get();
+    }
+
+    /** Number of frames replaced by a newer one before any subscribed reader took them. */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /** Time taken to copy frames into the buffer. */
+    @NonNull
+    public Histogram getCopyTime() {
+        return copyTime;
+    }
+}
@@ -0,0 +1,338 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Append-only on-disk log of the JPEG frames of one camera.
+ *
+ * The log is split into segments named after the timestamp of their first frame. Each segment
+ * consists of a data file holding the concatenated JPEG images and an index file with one
+ * fixed-size entry per frame: timestamp (8 bytes), offset into the data file (8 bytes) and
+ * length (4 bytes), all big endian. Index entries are only written after the data they point
+ * to, so readers never see an entry for incomplete data.
+ *
+ * There is at most one {@link Writer} per log. Any number of {@link Cursor}s may read
+ * concurrently, also from the segment being written. Cursors memory-map the files, so reading
+ * does not load segments onto the heap.
+ */
+public class FrameLog {
+
+    static final String DATA_SUFFIX = ".mjpg";
+    static final String INDEX_SUFFIX = ".idx";
+    static final int INDEX_ENTRY_SIZE = 8 + 8 + 4;
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final long maxTotalBytes;
+
+    /**
+     * @param directory Directory holding the segments, created if necessary.
+     * @param maxSegmentBytes Size after which a new segment is started.
+     * @param maxTotalBytes Size of all segments after which the oldest segments are deleted.
+     */
+    public FrameLog(@NonNull File directory, long maxSegmentBytes, long maxTotalBytes) {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    @NonNull
+    public File getDirectory() {
+        return directory;
+    }
+
+    /** Start timestamps of all segments, oldest first. */
+    @NonNull
+    List<Long> listSegments() {
+        List<Long> segments = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null)
+            return segments;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(INDEX_SUFFIX))
+                continue;
+            try {
+                segments.add(Long.parseLong(name.substring(0, name.length() - INDEX_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                /* Not one of ours. */
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private File dataFile(long segment) {
+        return new File(directory, String.format(Locale.ROOT, "%016d", segment) + DATA_SUFFIX);
+    }
+
+    private File indexFile(long segment) {
+        return new File(directory, String.format(Locale.ROOT, "%016d", segment) + INDEX_SUFFIX);
+    }
+
+    /** Delete the oldest segments until the log fits in its size budget. */
+    private void enforceRetention(long keepSegment) {
+        List<Long> segments = listSegments();
+        long total = 0;
+        for (long segment : segments)
+            total += dataFile(segment).length() + indexFile(segment).length();
+        for (long segment : segments) {
+            if (total <= maxTotalBytes || segment == keepSegment)
+                break;
+            total -= dataFile(segment).length() + indexFile(segment).length();
+            /* Delete the index first so readers never find an index without data. */
+            //noinspection ResultOfMethodCallIgnored
+            indexFile(segment).delete();
+            //noinspection ResultOfMethodCallIgnored
+            dataFile(segment).delete();
+        }
+    }
+
+    /** Open the writer of this log. Frames are appended to a new segment. */
+    @NonNull
+    public Writer openWriter() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+        return new Writer();
+    }
+
+    /**
+     * Open a cursor positioned at the first frame at or after the given time.
+     * @param fromTimestamp Time in milliseconds since the epoch.
+     */
+    @NonNull
+    public Cursor openCursor(long fromTimestamp) {
+        return new Cursor(fromTimestamp);
+    }
+
+    /**
+     * Sequential, buffered writer. Data and index are kept in memory until {@link #flush()},
+     * which writes both in large chunks; callers are expected to flush periodically.
+     * Not thread-safe.
+     */
+    public class Writer implements Closeable {
+
+        private static final int DATA_BUFFER_SIZE = 256 * 1024;
+        private static final int INDEX_BUFFER_ENTRIES = 256;
+
+        private final ByteBuffer pendingIndex = ByteBuffer.allocate(INDEX_BUFFER_ENTRIES * INDEX_ENTRY_SIZE);
+
+        @Nullable private OutputStream data;
+        @Nullable private OutputStream index;
+        private long segment;
+        private long segmentBytes;
+
+        private Writer() {
+        }
+
+        /** Append one frame, starting a new segment if the current one is full. */
+        public void append(@NonNull Frame frame) throws IOException {
+            if (data == null || segmentBytes >= maxSegmentBytes)
+                startSegment(frame.getTimestamp());
+
+            if (!pendingIndex.hasRemaining())
+                flush();
+
+            data.write(frame.getData(), 0, frame.getLength());
+            pendingIndex.putLong(frame.getTimestamp());
+            pendingIndex.putLong(segmentBytes);
+            pendingIndex.putInt(frame.getLength());
+            segmentBytes += frame.getLength();
+        }
+
+        /** Write all buffered frames to disk, making them visible to cursors. */
+        public void flush() throws IOException {
+            if (data == null || index == null)
+                return;
+            /* Data first, so index entries never point beyond the end of the data file. */
+            data.flush();
+            index.write(pendingIndex.array(), 0, pendingIndex.position());
+            index.flush();
+            pendingIndex.clear();
+        }
+
+        private void startSegment(long timestamp) throws IOException {
+            closeSegment();
+            /* Keep segment names unique even if frames share a timestamp. */
+            segment = Math.max(timestamp, segment + 1);
+            segmentBytes = 0;
+            data = new BufferedOutputStream(new FileOutputStream(dataFile(segment)), DATA_BUFFER_SIZE);
+            index = new FileOutputStream(indexFile(segment));
+            enforceRetention(segment);
+        }
+
+        private void closeSegment() throws IOException {
+            if (data == null || index == null)
+                return;
+            try {
+                flush();
+            } finally {
+                data.close();
+                index.close();
+                data = null;
+                index = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeSegment();
+        }
+    }
+
+    /**
+     * Reads frames in order, moving on to later segments as needed.
+     * Not thread-safe.
+     */
+    public class Cursor implements Closeable {
+
+        private final long fromTimestamp;
+
+        private long segment = -1;
+        @Nullable private MappedByteBuffer index;
+        @Nullable private MappedByteBuffer data;
+        private int entry;
+
+        private long timestamp;
+
+        private Cursor(long fromTimestamp) {
+            this.fromTimestamp = fromTimestamp;
+        }
+
+        /** Timestamp of the frame returned by the last call to {@link #next()}. */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Get the next frame.
+         * @return A read-only view on the mapped JPEG data, or null if the end of the log has
+         *         been reached. The view is valid until the cursor is closed.
+         */
+        @Nullable
+        public ByteBuffer next() throws IOException {
+            if (segment < 0 && !seek())
+                return null;
+
+            while (true) {
+                if (index == null || entry >= index.limit() / INDEX_ENTRY_SIZE) {
+                    /* The current segment may still be growing. */
+                    if (mapSegment(segment) && index != null && entry < index.limit() / INDEX_ENTRY_SIZE)
+                        continue;
+                    Long next = nextSegment(segment);
+                    if (next == null)
+                        return null;
+                    segment = next;
+                    entry = 0;
+                    mapSegment(segment);
+                    continue;
+                }
+
+                int position = entry * INDEX_ENTRY_SIZE;
+                long frameTimestamp = index.getLong(position);
+                long offset = index.getLong(position + 8);
+                int length = index.getInt(position + 16);
+                entry++;
+
+                if (data == null || offset + length > data.limit())
+                    mapSegment(segment);
+                if (data == null || offset + length > data.limit())
+                    return null;
+
+                timestamp = frameTimestamp;
+                ByteBuffer frame = data.duplicate();
+                frame.position((int) offset);
+                frame.limit((int) (offset + length));
+                return frame.slice();
+            }
+        }
+
+        /** Position on the first frame at or after the start time. */
+        private boolean seek() throws IOException {
+            List<Long> segments = listSegments();
+            if (segments.isEmpty())
+                return false;
+
+            /* Last segment starting at or before the requested time, or the oldest one. */
+            long candidate = segments.get(0);
+            for (long s : segments) {
+                if (s <= fromTimestamp)
+                    candidate = s;
+            }
+            segment = candidate;
+            mapSegment(segment);
+            if (index == null)
+                return true;
+
+            /* Binary search over the index for the first entry at or after the start time. */
+            int low = 0;
+            int high = index.limit() / INDEX_ENTRY_SIZE;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (index.getLong(mid * INDEX_ENTRY_SIZE) < fromTimestamp)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            entry = low;
+            return true;
+        }
+
+        @Nullable
+        private Long nextSegment(long current) {
+            for (long s : listSegments()) {
+                if (s > current)
+                    return s;
+            }
+            return null;
+        }
+
+        /**
+         * (Re-)map the index and data files of a segment.
+         * @return True if the mapping grew compared to before.
+         */
+        private boolean mapSegment(long s) throws IOException {
+            int previousEntries = index != null ? index.limit() / INDEX_ENTRY_SIZE : 0;
+            index = map(indexFile(s), INDEX_ENTRY_SIZE);
+            data = map(dataFile(s), 1);
+            int entries = index != null ? index.limit() / INDEX_ENTRY_SIZE : 0;
+            return entries > previousEntries;
+        }
+
+        /** Map a file read-only, rounded down to a multiple of the unit size. */
+        @Nullable
+        private MappedByteBuffer map(File file, int unit) throws IOException {
+            if (!file.exists())
+                return null;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileChannel channel = raf.getChannel()) {
+                long size = channel.size() / unit * unit;
+                /* The mapping stays valid after the channel is closed. */
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+
+        @Override
+        public void close() {
+            /* Mappings are released by the garbage collector. */
+            index = null;
+            data = null;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of reusable frame buffers to avoid allocating a new array for every captured frame.
+ *
+ * Buffers are plain heap arrays rather than direct buffers: the HTTP server writes through an
+ * {@link java.io.OutputStream}, so a heap array can be handed to the socket without a further
+ * copy. The pool only keeps a bounded number of idle buffers; anything beyond is left to the GC.
+ */
+public class FramePool {
+
+    /* Buffer capacities are rounded up to this granularity so they fit subsequent frames. */
+    private static final int CAPACITY_GRANULARITY = 64 * 1024;
+
+    private final int maxIdleBuffers;
+    private final ArrayDeque<byte[]> idleBuffers = new ArrayDeque<>();
+
+    /**
+     * @param maxIdleBuffers Maximum number of idle buffers kept for reuse.
+     */
+    public FramePool(int maxIdleBuffers) {
+        this.maxIdleBuffers = maxIdleBuffers;
+    }
+
+    /** Get a buffer of at least the requested capacity, reusing an idle one if possible. */
+    @NonNull
+    public byte[] acquire(int capacity) {
+        synchronized (idleBuffers) {
+            byte[] buffer;
+            while ((buffer = idleBuffers.pollFirst()) != null) {
+                if (buffer.length >= capacity)
+                    return buffer;
+                /* Too small for the current frame size, let it go. */
+            }
+        }
+        int rounded = (capacity + CAPACITY_GRANULARITY - 1) / CAPACITY_GRANULARITY * CAPACITY_GRANULARITY;
+        return new byte[Math.max(rounded, CAPACITY_GRANULARITY)];
+    }
+
+    /** Return a buffer which is no longer referenced by any frame. */
+    public void recycle(@NonNull byte[] buffer) {
+        synchronized (idleBuffers) {
+            if (idleBuffers.size() < maxIdleBuffers)
+                idleBuffers.addFirst(buffer);
+        }
+    }
+}
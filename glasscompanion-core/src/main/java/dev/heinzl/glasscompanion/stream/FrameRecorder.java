@@ -0,0 +1,134 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the frames of a {@link FrameBuffer} into a {@link FrameLog} on a background thread.
+ *
+ * The recorder is just another reader of the buffer: if storage cannot keep up, frames are
+ * skipped rather than slowing down capture. Frames are written through the log's buffered
+ * writer and flushed about once per second, so disk writes are large and sequential.
+ */
+public class FrameRecorder {
+
+    private static final String TAG = "FrameRecorder";
+
+    /* java.util.logging keeps this module free of Android; on a device it ends up in logcat. */
+    private static final Logger LOG = Logger.getLogger(TAG);
+
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final long FRAME_WAIT_MILLIS = 500;
+
+    private final FrameBuffer frameBuffer;
+    private final FrameLog frameLog;
+
+    /* The recording thread, each one records only while it is the current one. */
+    @Nullable private volatile Thread thread;
+    /* The last thread started, possibly still closing its segment, guarded by this. */
+    @Nullable private Thread started;
+
+    public FrameRecorder(@NonNull FrameBuffer frameBuffer, @NonNull FrameLog frameLog) {
+        this.frameBuffer = frameBuffer;
+        this.frameLog = frameLog;
+    }
+
+    public boolean isRecording() {
+        return thread != null;
+    }
+
+    /** Start recording. Do nothing if already recording. */
+    public void start() {
+        while (true) {
+            Thread previous;
+            synchronized (this) {
+                if (thread != null)
+                    return;
+                previous = started;
+                if (previous == null || !previous.isAlive()) {
+                    thread = started = new Thread(this::record, TAG);
+                    started.start();
+                    return;
+                }
+            }
+            /* A recording stopped on another thread is still closing its segment. */
+            awaitTermination(previous);
+        }
+    }
+
+    /**
+     * Stop recording and wait until the recording thread has flushed and closed the log, so a
+     * recording started next does not write to the same segment concurrently. Only the wait
+     * for a frame is interrupted, the log is written with stream I/O which interrupts do not
+     * abort, so no buffered frames are lost.
+     */
+    public void stop() {
+        Thread stopping;
+        synchronized (this) {
+            stopping = thread;
+            thread = null;
+        }
+        if (stopping != null)
+            stopping.interrupt();
+        awaitTermination(stopping);
+    }
+
+    private static void awaitTermination(@Nullable Thread recorder) {
+        if (recorder == null || recorder == Thread.currentThread())
+            return;
+        boolean interrupted = false;
+        while (recorder.isAlive()) {
+            try {
+                recorder.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void record() {
+        frameBuffer.subscribe();
+        try (FrameLog.Writer writer = frameLog.openWriter()) {
+            long lastSequence = 0;
+            long lastFlush = System.currentTimeMillis();
+
+            while (thread == Thread.currentThread()) {
+                Frame frame;
+                try {
+                    frame = frameBuffer.awaitFrameAfter(lastSequence, FRAME_WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                if (frame != null) {
+                    lastSequence = frame.getSequence();
+                    try {
+                        writer.append(frame);
+                    } finally {
+                        frame.release();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastFlush >= FLUSH_INTERVAL_MILLIS) {
+                    writer.flush();
+                    lastFlush = now;
+                }
+            }
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Recording to " + frameLog.getDirectory() + " failed", e);
+        } finally {
+            frameBuffer.unsubscribe();
+            synchronized (this) {
+                if (thread == Thread.currentThread())
+                    thread = null;
+            }
+        }
+    }
+}
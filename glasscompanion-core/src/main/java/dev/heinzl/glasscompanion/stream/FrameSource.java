@@ -0,0 +1,35 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Something that produces frames for the server, usually a camera.
+ *
+ * The server only reads from the buffers and caches of a source, so any producer can stand in
+ * for a camera, e.g. to run the server without a headset.
+ */
+public interface FrameSource {
+
+    /** Buffer receiving the frames of the given stream profile. */
+    @NonNull
+    FrameBuffer getFrameBuffer(@NonNull StreamProfile profile);
+
+    /** Buffer receiving the frames of the default profile. */
+    @NonNull
+    default FrameBuffer getFrameBuffer() {
+        return getFrameBuffer(StreamProfile.DEFAULT);
+    }
+
+    /** Cache of full resolution stills, or null if the source has no stills. */
+    @Nullable
+    SnapshotCache getSnapshotCache();
+
+    /** Log of recorded frames, or null if the source does not record. */
+    @Nullable
+    FrameLog getFrameLog();
+
+    /** Buffer of the last seconds of frames, saved as clips, or null if the source keeps none. */
+    @Nullable
+    PreEventBuffer getPreEventBuffer();
+}
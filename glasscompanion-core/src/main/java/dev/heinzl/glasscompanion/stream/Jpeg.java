@@ -0,0 +1,86 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal JPEG parsing helpers.
+ */
+public final class Jpeg {
+
+    private static final int MARKER = 0xFF;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int TEM = 0x01;
+    private static final int RST0 = 0xD0;
+    private static final int RST7 = 0xD7;
+
+    private Jpeg() {
+    }
+
+    /**
+     * Find the length of the JPEG image starting at the buffer's position, up to and including
+     * the EOI marker.
+     *
+     * Camera buffers are usually larger than the encoded image and padded with garbage.
+     * The header segments are skipped using their length fields, so EOI markers of embedded
+     * thumbnails are not mistaken for the end of the image. Only the entropy-coded data is
+     * scanned byte by byte.
+     *
+     * The buffer's position and limit are not modified.
+     *
+     * @return The image length in bytes, or the number of remaining bytes if no EOI was found.
+     */
+    public static int findEndOfImage(@NonNull ByteBuffer buffer) {
+        final int start = buffer.position();
+        final int limit = buffer.limit();
+
+        if (limit - start < 4 || (buffer.get(start) & 0xFF) != MARKER || (buffer.get(start + 1) & 0xFF) != SOI)
+            return limit - start;
+
+        int i = start + 2;
+        boolean inScan = false;
+        while (i + 1 < limit) {
+            if (inScan) {
+                /* Entropy-coded data: look for a marker that is neither stuffing nor a restart. */
+                if ((buffer.get(i) & 0xFF) != MARKER) {
+                    i++;
+                    continue;
+                }
+                int marker = buffer.get(i + 1) & 0xFF;
+                if (marker == 0x00 || marker == MARKER || (marker >= RST0 && marker <= RST7)) {
+                    i += marker == MARKER ? 1 : 2;
+                    continue;
+                }
+                inScan = false;
+                continue;
+            }
+
+            if ((buffer.get(i) & 0xFF) != MARKER) {
+                /* Corrupt stream, give up. */
+                return limit - start;
+            }
+            int marker = buffer.get(i + 1) & 0xFF;
+            if (marker == MARKER) {
+                /* Fill byte. */
+                i++;
+                continue;
+            }
+            if (marker == EOI)
+                return i + 2 - start;
+            if (marker == TEM || (marker >= RST0 && marker <= RST7)) {
+                i += 2;
+                continue;
+            }
+            if (i + 3 >= limit)
+                break;
+            int segmentLength = ((buffer.get(i + 2) & 0xFF) << 8) | (buffer.get(i + 3) & 0xFF);
+            i += 2 + segmentLength;
+            if (marker == SOS)
+                inScan = true;
+        }
+        return limit - start;
+    }
+}
@@ -0,0 +1,415 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Extracts the average brightness of every 8x8 luma block of a baseline JPEG.
+ *
+ * Only the entropy-coded data is walked: DC coefficients are decoded and AC coefficients are
+ * skipped, there is no inverse DCT and no color conversion. This is a small fraction of the
+ * cost of decoding the image and yields a 1/8 scale grayscale image.
+ *
+ * Progressive and lossless JPEGs and scans not containing the luma component are not
+ * supported; {@link #decode} returns null for those.
+ */
+final class JpegDcDecoder {
+
+    private static final int SOF0 = 0xC0;
+    private static final int SOF1 = 0xC1;
+    private static final int DHT = 0xC4;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int DQT = 0xDB;
+    private static final int DRI = 0xDD;
+
+    /* Huffman codes up to this length are decoded with a single table lookup. */
+    private static final int LOOKAHEAD_BITS = 8;
+
+    /** Block means of the luma component, row by row. */
+    static final class Result {
+        final int widthInBlocks;
+        final int heightInBlocks;
+        final int[] levels;
+
+        Result(int widthInBlocks, int heightInBlocks, int[] levels) {
+            this.widthInBlocks = widthInBlocks;
+            this.heightInBlocks = heightInBlocks;
+            this.levels = levels;
+        }
+    }
+
+    /** Canonical Huffman table as in ITU T.81 F.2.2.3, with a lookup table for short codes. */
+    private static final class HuffmanTable {
+        final int[] maxCode = new int[18];
+        final int[] valueOffset = new int[17];
+        final int[] values;
+        /* Indexed by the next LOOKAHEAD_BITS bits: code length << 8 | value, or 0 for longer codes. */
+        final int[] lookup = new int[1 << LOOKAHEAD_BITS];
+
+        HuffmanTable(byte[] counts, int[] values) {
+            this.values = values;
+            int code = 0;
+            int index = 0;
+            for (int length = 1; length <= 16; length++) {
+                int count = counts[length - 1] & 0xFF;
+                valueOffset[length] = index - code;
+                for (int i = 0; i < count && length <= LOOKAHEAD_BITS; i++) {
+                    int shift = LOOKAHEAD_BITS - length;
+                    int first = (code + i) << shift;
+                    for (int j = 0; j < 1 << shift; j++)
+                        lookup[first + j] = length << 8 | values[index + i];
+                }
+                code += count;
+                index += count;
+                maxCode[length] = count > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    private final byte[] data;
+    private final int end;
+    private int position;
+
+    /* Bit reader state, the lowest bitCount bits of bitBuffer are not consumed yet. */
+    private int bitBuffer;
+    private int bitCount;
+    private boolean markerReached;
+
+    private final int[] dcQuantization = new int[4];
+    private final HuffmanTable[] dcTables = new HuffmanTable[4];
+    private final HuffmanTable[] acTables = new HuffmanTable[4];
+
+    private int width;
+    private int height;
+    private int componentCount;
+    private int[] componentIds;
+    private int[] horizontalSampling;
+    private int[] verticalSampling;
+    private int[] quantizationTable;
+    private int restartInterval;
+
+    private JpegDcDecoder(byte[] data, int length) {
+        this.data = data;
+        this.end = length;
+    }
+
+    /**
+     * Decode the luma block means of {@code data[0..length)}.
+     * @return The block means, or null if the image is not a supported JPEG.
+     */
+    @Nullable
+    static Result decode(@NonNull byte[] data, int length) {
+        try {
+            return new JpegDcDecoder(data, length).decode();
+        } catch (IndexOutOfBoundsException | IllegalStateException e) {
+            /* Truncated or corrupt image. */
+            return null;
+        }
+    }
+
+    @Nullable
+    private Result decode() {
+        if (end < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != SOI)
+            return null;
+        position = 2;
+
+        while (position < end) {
+            if ((data[position] & 0xFF) != 0xFF)
+                return null;
+            int marker = data[position + 1] & 0xFF;
+            position += 2;
+            if (marker == 0xFF) {
+                /* Fill byte. */
+                position--;
+                continue;
+            }
+            if (marker == EOI)
+                return null;
+
+            int segmentLength = readUnsignedShort(position);
+            int segmentEnd = position + segmentLength;
+            switch (marker) {
+                case DQT:
+                    readQuantizationTables(position + 2, segmentEnd);
+                    break;
+                case DHT:
+                    readHuffmanTables(position + 2, segmentEnd);
+                    break;
+                case SOF0:
+                case SOF1:
+                    readFrameHeader(position + 2);
+                    break;
+                case DRI:
+                    restartInterval = readUnsignedShort(position + 2);
+                    break;
+                case SOS:
+                    return readScan(position + 2, segmentEnd);
+                default:
+                    /* Other frame types are not supported, anything else is irrelevant. */
+                    if (marker >= 0xC0 && marker <= 0xCF && marker != DHT && marker != 0xC8 && marker != 0xCC)
+                        return null;
+                    break;
+            }
+            position = segmentEnd;
+        }
+        return null;
+    }
+
+    private int readUnsignedShort(int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private void readQuantizationTables(int offset, int segmentEnd) {
+        while (offset < segmentEnd) {
+            int precisionAndId = data[offset++] & 0xFF;
+            int id = precisionAndId & 0x0F;
+            boolean sixteenBit = (precisionAndId >> 4) != 0;
+            /* The first entry in zigzag order is the DC quantizer. */
+            dcQuantization[id & 3] = sixteenBit ? readUnsignedShort(offset) : data[offset] & 0xFF;
+            offset += sixteenBit ? 128 : 64;
+        }
+    }
+
+    private void readHuffmanTables(int offset, int segmentEnd) {
+        while (offset < segmentEnd) {
+            int classAndId = data[offset++] & 0xFF;
+            byte[] counts = new byte[16];
+            System.arraycopy(data, offset, counts, 0, 16);
+            offset += 16;
+            int total = 0;
+            for (byte count : counts)
+                total += count & 0xFF;
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++)
+                values[i] = data[offset++] & 0xFF;
+            HuffmanTable table = new HuffmanTable(counts, values);
+            if ((classAndId >> 4) == 0)
+                dcTables[classAndId & 3] = table;
+            else
+                acTables[classAndId & 3] = table;
+        }
+    }
+
+    private void readFrameHeader(int offset) {
+        height = readUnsignedShort(offset + 1);
+        width = readUnsignedShort(offset + 3);
+        componentCount = data[offset + 5] & 0xFF;
+        componentIds = new int[componentCount];
+        horizontalSampling = new int[componentCount];
+        verticalSampling = new int[componentCount];
+        quantizationTable = new int[componentCount];
+        offset += 6;
+        for (int i = 0; i < componentCount; i++) {
+            componentIds[i] = data[offset] & 0xFF;
+            horizontalSampling[i] = Math.max((data[offset + 1] & 0xFF) >> 4, 1);
+            verticalSampling[i] = Math.max(data[offset + 1] & 0x0F, 1);
+            quantizationTable[i] = data[offset + 2] & 3;
+            offset += 3;
+        }
+    }
+
+    @Nullable
+    private Result readScan(int offset, int segmentEnd) {
+        if (componentIds == null || width == 0 || height == 0)
+            return null;
+
+        int scanCount = data[offset++] & 0xFF;
+        int[] scanComponents = new int[scanCount];
+        HuffmanTable[] scanDcTables = new HuffmanTable[scanCount];
+        HuffmanTable[] scanAcTables = new HuffmanTable[scanCount];
+        for (int i = 0; i < scanCount; i++) {
+            int id = data[offset] & 0xFF;
+            int tables = data[offset + 1] & 0xFF;
+            offset += 2;
+            scanComponents[i] = -1;
+            for (int c = 0; c < componentCount; c++) {
+                if (componentIds[c] == id)
+                    scanComponents[i] = c;
+            }
+            if (scanComponents[i] < 0)
+                return null;
+            scanDcTables[i] = dcTables[tables >> 4 & 3];
+            scanAcTables[i] = acTables[tables & 3];
+            if (scanDcTables[i] == null || scanAcTables[i] == null)
+                return null;
+        }
+        /* The luma component is the first one of the frame. */
+        if (scanComponents[0] != 0)
+            return null;
+        position = segmentEnd;
+
+        int maxH = 1;
+        int maxV = 1;
+        for (int c = 0; c < componentCount; c++) {
+            maxH = Math.max(maxH, horizontalSampling[c]);
+            maxV = Math.max(maxV, verticalSampling[c]);
+        }
+
+        int mcusX;
+        int mcusY;
+        int[] blocksH = new int[scanCount];
+        int[] blocksV = new int[scanCount];
+        if (scanCount == 1) {
+            /* Non-interleaved: one block per MCU over the component's own size. */
+            int componentWidth = (width * horizontalSampling[0] + maxH - 1) / maxH;
+            int componentHeight = (height * verticalSampling[0] + maxV - 1) / maxV;
+            mcusX = (componentWidth + 7) / 8;
+            mcusY = (componentHeight + 7) / 8;
+            blocksH[0] = 1;
+            blocksV[0] = 1;
+        } else {
+            mcusX = (width + 8 * maxH - 1) / (8 * maxH);
+            mcusY = (height + 8 * maxV - 1) / (8 * maxV);
+            for (int i = 0; i < scanCount; i++) {
+                blocksH[i] = horizontalSampling[scanComponents[i]];
+                blocksV[i] = verticalSampling[scanComponents[i]];
+            }
+        }
+
+        int lumaWidth = mcusX * blocksH[0];
+        int lumaHeight = mcusY * blocksV[0];
+        int[] levels = new int[lumaWidth * lumaHeight];
+        int quantizer = dcQuantization[quantizationTable[0]];
+
+        int[] predictors = new int[scanCount];
+        int mcuCount = mcusX * mcusY;
+        for (int mcu = 0; mcu < mcuCount; mcu++) {
+            if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                restart();
+                for (int i = 0; i < scanCount; i++)
+                    predictors[i] = 0;
+            }
+
+            int mcuX = mcu % mcusX;
+            int mcuY = mcu / mcusX;
+            for (int i = 0; i < scanCount; i++) {
+                for (int v = 0; v < blocksV[i]; v++) {
+                    for (int h = 0; h < blocksH[i]; h++) {
+                        predictors[i] += decodeDifference(scanDcTables[i]);
+                        skipAcCoefficients(scanAcTables[i]);
+                        if (i == 0) {
+                            /* The DC coefficient is eight times the block mean, level shifted by 128. */
+                            int level = predictors[0] * quantizer / 8 + 128;
+                            int x = mcuX * blocksH[0] + h;
+                            int y = mcuY * blocksV[0] + v;
+                            levels[y * lumaWidth + x] = Math.max(0, Math.min(255, level));
+                        }
+                    }
+                }
+            }
+        }
+
+        /* Drop padding blocks beyond the image. */
+        int visibleWidth = Math.min(lumaWidth, (width * horizontalSampling[0] / maxH + 7) / 8);
+        int visibleHeight = Math.min(lumaHeight, (height * verticalSampling[0] / maxV + 7) / 8);
+        if (visibleWidth == lumaWidth && visibleHeight == lumaHeight)
+            return new Result(lumaWidth, lumaHeight, levels);
+        int[] visible = new int[visibleWidth * visibleHeight];
+        for (int y = 0; y < visibleHeight; y++)
+            System.arraycopy(levels, y * lumaWidth, visible, y * visibleWidth, visibleWidth);
+        return new Result(visibleWidth, visibleHeight, visible);
+    }
+
+    /** Skip to the data after the next restart marker and reset the bit reader. */
+    private void restart() {
+        bitBuffer = 0;
+        bitCount = 0;
+        markerReached = false;
+        while (position + 1 < end) {
+            if ((data[position] & 0xFF) == 0xFF) {
+                int marker = data[position + 1] & 0xFF;
+                if (marker >= 0xD0 && marker <= 0xD7) {
+                    position += 2;
+                    return;
+                }
+            }
+            position++;
+        }
+        throw new IllegalStateException("Missing restart marker");
+    }
+
+    /** Next byte of entropy-coded data, or zero once a marker is reached. */
+    private int readByte() {
+        if (markerReached || position >= end)
+            return 0;
+        int value = data[position++] & 0xFF;
+        if (value == 0xFF) {
+            int next = position < end ? data[position] & 0xFF : 0;
+            if (next == 0) {
+                /* Stuffed byte. */
+                position++;
+            } else {
+                /* A marker ends the entropy-coded segment; pad with zero bits. */
+                position--;
+                markerReached = true;
+                value = 0;
+            }
+        }
+        return value;
+    }
+
+    private int peekBits(int count) {
+        while (bitCount < count) {
+            bitBuffer = (bitBuffer << 8) | readByte();
+            bitCount += 8;
+        }
+        return (bitBuffer >>> (bitCount - count)) & ((1 << count) - 1);
+    }
+
+    private void skipBits(int count) {
+        peekBits(count);
+        bitCount -= count;
+    }
+
+    private int readBits(int count) {
+        int value = peekBits(count);
+        bitCount -= count;
+        return value;
+    }
+
+    private int decodeSymbol(HuffmanTable table) {
+        int entry = table.lookup[peekBits(LOOKAHEAD_BITS)];
+        if (entry != 0) {
+            bitCount -= entry >> 8;
+            return entry & 0xFF;
+        }
+        for (int length = LOOKAHEAD_BITS + 1; length <= 16; length++) {
+            int code = peekBits(length);
+            if (code <= table.maxCode[length]) {
+                bitCount -= length;
+                return table.values[table.valueOffset[length] + code];
+            }
+        }
+        throw new IllegalStateException("Invalid Huffman code");
+    }
+
+    private int decodeDifference(HuffmanTable table) {
+        int size = decodeSymbol(table);
+        if (size == 0)
+            return 0;
+        int bits = readBits(size);
+        /* Values with a leading zero bit are negative (T.81 F.2.2.1). */
+        return bits < (1 << (size - 1)) ? bits - (1 << size) + 1 : bits;
+    }
+
+    private void skipAcCoefficients(HuffmanTable table) {
+        int k = 1;
+        while (k < 64) {
+            int symbol = decodeSymbol(table);
+            int run = symbol >> 4;
+            int size = symbol & 0x0F;
+            if (size == 0) {
+                if (run != 15)
+                    break;
+                k += 16;
+            } else {
+                k += run + 1;
+                skipBits(size);
+            }
+        }
+    }
+}
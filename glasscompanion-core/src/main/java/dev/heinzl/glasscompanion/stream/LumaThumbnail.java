@@ -0,0 +1,79 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Small grayscale image of a frame, used to tell whether the scene changed between frames.
+ *
+ * Built from the DC coefficients of the JPEG (see {@link JpegDcDecoder}), so it costs a walk
+ * over the entropy-coded data but no actual decoding.
+ */
+public final class LumaThumbnail {
+
+    /* Maximum size of a thumbnail. Each cell covers 20x20 pixels of a 640x480 frame. */
+    static final int MAX_WIDTH = 32;
+    static final int MAX_HEIGHT = 24;
+
+    private final int width;
+    private final int height;
+    private final int[] levels;
+
+    private LumaThumbnail(int width, int height, int[] levels) {
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+    }
+
+    /**
+     * Compute the thumbnail of a JPEG image.
+     * @return The thumbnail, or null if the image format is not supported.
+     */
+    @Nullable
+    public static LumaThumbnail fromJpeg(@NonNull byte[] data, int length) {
+        JpegDcDecoder.Result blocks = JpegDcDecoder.decode(data, length);
+        if (blocks == null || blocks.widthInBlocks == 0 || blocks.heightInBlocks == 0)
+            return null;
+
+        /* Average the block means into at most MAX_WIDTH x MAX_HEIGHT cells. */
+        int width = Math.min(blocks.widthInBlocks, MAX_WIDTH);
+        int height = Math.min(blocks.heightInBlocks, MAX_HEIGHT);
+        int[] sums = new int[width * height];
+        int[] counts = new int[width * height];
+        for (int y = 0; y < blocks.heightInBlocks; y++) {
+            int row = y * height / blocks.heightInBlocks * width;
+            for (int x = 0; x < blocks.widthInBlocks; x++) {
+                int cell = row + x * width / blocks.widthInBlocks;
+                sums[cell] += blocks.levels[y * blocks.widthInBlocks + x];
+                counts[cell]++;
+            }
+        }
+        for (int i = 0; i < sums.length; i++)
+            sums[i] /= counts[i];
+        return new LumaThumbnail(width, height, sums);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Share of cells whose brightness differs by more than {@code levelThreshold} (0..255)
+     * from the other thumbnail.
+     * @return The changed share between 0 and 1, or 1 if the thumbnails have different sizes.
+     */
+    public double changedFraction(@NonNull LumaThumbnail other, int levelThreshold) {
+        if (other.width != width || other.height != height)
+            return 1;
+        int changed = 0;
+        for (int i = 0; i < levels.length; i++) {
+            if (Math.abs(levels[i] - other.levels[i]) > levelThreshold)
+                changed++;
+        }
+        return (double) changed / levels.length;
+    }
+}
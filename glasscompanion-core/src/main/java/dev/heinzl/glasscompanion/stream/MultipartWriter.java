@@ -0,0 +1,122 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes JPEG images as parts of an MJPEG (multipart/x-mixed-replace) stream.
+ *
+ * The constant part of each part header is encoded once; per frame only the content length
+ * and timestamp are formatted into a reused array, so writing a part does not allocate.
+ *
+ * Each part carries an {@code X-Timestamp} header with the capture time of the image in
+ * seconds since the epoch with microseconds, e.g. {@code 1650000000.123456}, as also sent by
+ * other MJPEG servers. Clients compare it with their own clock to measure the latency.
+ * Not thread-safe, use one writer per connection.
+ */
+public final class MultipartWriter {
+
+    public static final String BOUNDARY = "--boundary";
+    public static final String CONTENT_TYPE = "multipart/x-mixed-replace;boundary=" + BOUNDARY;
+
+    private static final String NL = "\r\n";
+    private static final byte[] PART_HEAD = (BOUNDARY + NL +
+            "Connection: keep-alive" + NL +
+            "Content-Type: image/jpeg" + NL +
+            "Content-Length: ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIMESTAMP_HEAD = (NL + "X-Timestamp: ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NL_BYTES = NL.getBytes(StandardCharsets.US_ASCII);
+
+    /* Enough digits for any int length and for the seconds of any long timestamp. */
+    private static final int MAX_LENGTH_DIGITS = 10;
+    private static final int MAX_SECONDS_DIGITS = 13;
+    private static final int MICROSECOND_DIGITS = 6;
+
+    private final OutputStream output;
+    private final byte[] head = new byte[PART_HEAD.length + MAX_LENGTH_DIGITS + TIMESTAMP_HEAD.length +
+            MAX_SECONDS_DIGITS + 1 + MICROSECOND_DIGITS + 2 * NL_BYTES.length];
+    private WritableByteChannel channel;
+
+    public MultipartWriter(@NonNull OutputStream output) {
+        this.output = output;
+        System.arraycopy(PART_HEAD, 0, head, 0, PART_HEAD.length);
+    }
+
+    /**
+     * Write one image as a part.
+     * @param timestampMicros Capture time in microseconds since the epoch.
+     * @return The number of bytes written, including framing.
+     */
+    public int writePart(@NonNull byte[] data, int length, long timestampMicros) throws IOException {
+        int headLength = formatHead(length, timestampMicros);
+        output.write(head, 0, headLength);
+        output.write(data, 0, length);
+        output.write(NL_BYTES);
+        return headLength + length + NL_BYTES.length;
+    }
+
+    /**
+     * Write the remaining bytes of a buffer as a part, e.g. a memory-mapped frame.
+     * The buffer's position is advanced to its limit.
+     * @param timestampMicros Capture time in microseconds since the epoch.
+     * @return The number of bytes written, including framing.
+     */
+    public int writePart(@NonNull ByteBuffer data, long timestampMicros) throws IOException {
+        int length = data.remaining();
+        int headLength = formatHead(length, timestampMicros);
+        output.write(head, 0, headLength);
+        if (data.hasArray()) {
+            output.write(data.array(), data.arrayOffset() + data.position(), length);
+            data.position(data.limit());
+        } else {
+            /* The channel copies direct buffers out in small chunks. */
+            if (channel == null)
+                channel = Channels.newChannel(output);
+            while (data.hasRemaining())
+                channel.write(data);
+        }
+        output.write(NL_BYTES);
+        return headLength + length + NL_BYTES.length;
+    }
+
+    /** Format the content length, timestamp and blank line after the constant head, returning its length. */
+    private int formatHead(int length, long timestampMicros) {
+        int offset = formatDigits(length, 0, PART_HEAD.length);
+
+        System.arraycopy(TIMESTAMP_HEAD, 0, head, offset, TIMESTAMP_HEAD.length);
+        offset += TIMESTAMP_HEAD.length;
+        long micros = Math.max(0, timestampMicros);
+        offset = formatDigits(micros / 1000000, 0, offset);
+        head[offset++] = '.';
+        offset = formatDigits(micros % 1000000, MICROSECOND_DIGITS, offset);
+
+        for (int i = 0; i < 2; i++) {
+            System.arraycopy(NL_BYTES, 0, head, offset, NL_BYTES.length);
+            offset += NL_BYTES.length;
+        }
+        return offset;
+    }
+
+    /**
+     * Format a non-negative number in decimal at the given offset of the head, padded with
+     * leading zeros to at least the given number of digits.
+     * @return The offset after the last digit.
+     */
+    private int formatDigits(long value, int minDigits, int offset) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10)
+            digits++;
+        digits = Math.max(digits, minDigits);
+        for (int position = offset + digits - 1; position >= offset; position--) {
+            head[position] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
+    }
+}
@@ -0,0 +1,243 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import dev.heinzl.glasscompanion.metrics.Counter;
+import dev.heinzl.glasscompanion.metrics.Histogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Encodes captured images to JPEG on a worker pool and publishes them to a {@link FrameBuffer}
+ * in capture order.
+ *
+ * Several images of one stream are encoded at the same time, so encoding scales with the
+ * number of cores instead of being limited by one thread. The pool may be shared by several
+ * encoders.
+ *
+ * Images wait for a worker in a short queue. When the queue is full the oldest waiting image
+ * is dropped, and images which waited longer than the maximum age are dropped when a worker
+ * gets to them, both before spending time on encoding them. A worker finishing an image
+ * before the images captured earlier waits for them to be published or dropped.
+ */
+public final class ParallelJpegEncoder {
+
+    private static final Logger LOG = Logger.getLogger("ParallelJpegEncoder");
+
+    /** One captured image waiting to be encoded. */
+    public interface Job {
+        /** Encode the image as JPEG. Called on a worker thread. */
+        void encode(@NonNull OutputStream output) throws IOException;
+
+        /** Called exactly once when the job is encoded or dropped, e.g. to recycle its buffers. */
+        void release();
+    }
+
+    private static final class Pending {
+        final Job job;
+        final long sequence;
+        final long captureTime;
+        final long availableTime;
+        final long submitTime;
+
+        Pending(Job job, long sequence, long captureTime, long availableTime, long submitTime) {
+            this.job = job;
+            this.sequence = sequence;
+            this.captureTime = captureTime;
+            this.availableTime = availableTime;
+            this.submitTime = submitTime;
+        }
+    }
+
+    /* Encoded images are only held until published, so one buffer per worker thread suffices. */
+    private static final ThreadLocal<ExposedByteArrayOutputStream> OUTPUT = new ThreadLocal<ExposedByteArrayOutputStream>() {
+        @Override
+        protected ExposedByteArrayOutputStream initialValue() {
+            return new ExposedByteArrayOutputStream();
+        }
+    };
+
+    private final FrameBuffer target;
+    private final Executor executor;
+    private final int maxPending;
+    private final long maxAgeNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    /* Dropped images after nextToPublish, which later images must not wait for. */
+    private final Set<Long> dropped = new HashSet<>();
+    private long nextSequence = 0;
+    private long nextToPublish = 0;
+    private boolean closed = false;
+
+    private final Counter staleFrames = new Counter();
+    private final Histogram encodeTime = new Histogram(Histogram.LATENCY_BUCKETS);
+
+    /**
+     * @param target Buffer receiving the encoded frames.
+     * @param executor Worker pool, usually sized to the number of cores.
+     * @param maxPending Maximum number of images waiting for a worker.
+     * @param maxAgeMillis Images waiting longer than this are dropped.
+     */
+    public ParallelJpegEncoder(@NonNull FrameBuffer target, @NonNull Executor executor, int maxPending, long maxAgeMillis) {
+        this.target = target;
+        this.executor = executor;
+        this.maxPending = Math.max(1, maxPending);
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    /** Queue an image for encoding. The job is released right away if the encoder is closed. */
+    public void submit(@NonNull Job job) {
+        submit(job, 0, 0);
+    }
+
+    /**
+     * Queue an image for encoding. The job is released right away if the encoder is closed.
+     * @param captureTime Monotonic time the sensor captured the image, or 0 if unknown.
+     * @param availableTime Monotonic time the image was received, or 0 for now.
+     */
+    public void submit(@NonNull Job job, long captureTime, long availableTime) {
+        Pending oldest = null;
+        lock.lock();
+        try {
+            if (closed) {
+                job.release();
+                return;
+            }
+            if (pending.size() >= maxPending) {
+                oldest = pending.pollFirst();
+                drop(oldest.sequence);
+            }
+            long now = System.nanoTime();
+            pending.addLast(new Pending(job, nextSequence++, captureTime, availableTime != 0 ? availableTime : now, now));
+        } finally {
+            lock.unlock();
+        }
+
+        if (oldest != null) {
+            staleFrames.increment();
+            oldest.job.release();
+        }
+        executor.execute(this::encodeNext);
+    }
+
+    /** Drop all waiting images. Images being encoded are finished but not published. */
+    public void close() {
+        ArrayDeque<Pending> remaining;
+        lock.lock();
+        try {
+            closed = true;
+            remaining = new ArrayDeque<>(pending);
+            pending.clear();
+            for (Pending p : remaining)
+                drop(p.sequence);
+        } finally {
+            lock.unlock();
+        }
+        for (Pending p : remaining)
+            p.job.release();
+    }
+
+    /** Images dropped before encoding because newer ones were waiting or they were too old. */
+    public long getStaleFrames() {
+        return staleFrames.get();
+    }
+
+    /** Time to encode one image. */
+    @NonNull
+    public Histogram getEncodeTime() {
+        return encodeTime;
+    }
+
+    /* Runs on a worker: encode the oldest waiting image, if any is left. */
+    private void encodeNext() {
+        Pending next;
+        lock.lock();
+        try {
+            next = pending.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+        /* Another worker took it, or it was dropped in the meantime. */
+        if (next == null)
+            return;
+
+        ExposedByteArrayOutputStream output = null;
+        try {
+            if (System.nanoTime() - next.submitTime > maxAgeNanos) {
+                staleFrames.increment();
+            } else {
+                ExposedByteArrayOutputStream buffer = OUTPUT.get();
+                buffer.reset();
+                long start = System.nanoTime();
+                next.job.encode(buffer);
+                encodeTime.observeNanos(System.nanoTime() - start);
+                output = buffer;
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cannot encode frame", e);
+        } finally {
+            next.job.release();
+            publishInOrder(next, output);
+        }
+    }
+
+    /** Publish the encoded image once all images captured before it are published or dropped. */
+    private void publishInOrder(Pending image, @Nullable ExposedByteArrayOutputStream output) {
+        lock.lock();
+        try {
+            /* The images before this one were taken by other workers earlier, so they finish. */
+            while (nextToPublish != image.sequence)
+                published.awaitUninterruptibly();
+            if (output != null && !closed)
+                target.publish(ByteBuffer.wrap(output.getBuffer(), 0, output.size()), image.captureTime, image.availableTime);
+            nextToPublish++;
+            skipDropped();
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Must be called with the lock held. */
+    private void drop(long sequence) {
+        if (sequence == nextToPublish) {
+            nextToPublish++;
+            skipDropped();
+            published.signalAll();
+        } else {
+            dropped.add(sequence);
+        }
+    }
+
+    /* Must be called with the lock held. */
+    private void skipDropped() {
+        while (dropped.remove(nextToPublish))
+            nextToPublish++;
+    }
+
+    /* Gives access to the internal buffer to avoid the copy made by toByteArray(). */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream() {
+            super(64 * 1024);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the frames of the last seconds of a {@link FrameBuffer} in memory, so they can be
+ * saved as a clip after something happened.
+ *
+ * The images are copied into one direct buffer of fixed size, allocated off the Java heap,
+ * so the window neither grows beyond its byte budget nor adds garbage collection work. The
+ * oldest frames are dropped when the window is over its duration or the buffer is full.
+ * Keeping frames means subscribing to the buffer, i.e. capturing all the time; sources start
+ * the buffer along with the camera, so a clip always has the whole window, and the memory is
+ * only allocated between {@link #start()} and {@link #stop()}.
+ *
+ * Like {@link FrameRecorder}, the buffer is filled by a reader thread of its own and never
+ * slows down capture. Clips are written one after the other on a thread of their own as well:
+ * the lock is held only to copy one frame out of the ring, so filling goes on while a clip is
+ * written. Frames overwritten before the clip writer got to them are left out of the clip.
+ * A clip is written under a hidden name and renamed once complete, so it is never listed or
+ * downloaded half written.
+ *
+ * Clips are MJPEG files, i.e. the concatenated JPEG images, as the data files of a
+ * {@link FrameLog}.
+ */
+public class PreEventBuffer {
+
+    private static final String TAG = "PreEventBuffer";
+    private static final Logger LOG = Logger.getLogger(TAG);
+
+    public static final String CLIP_SUFFIX = ".mjpg";
+
+    private static final long FRAME_WAIT_MILLIS = 500;
+
+    /* Frame rate the index is sized for, frames beyond it drop the oldest ones early. */
+    private static final int MAX_FPS = 60;
+
+    private final FrameBuffer frameBuffer;
+    private final File clipDirectory;
+    private final String clipPrefix;
+    private final long windowMillis;
+
+    private final int capacityBytes;
+
+    private final ExecutorService clipWriter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG + "Save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /* Ring of image data, null while stopped, and index of the frames in it, guarded by lock. */
+    private final ReentrantLock lock = new ReentrantLock();
+    @Nullable private ByteBuffer data;
+    private final long[] timestamps;
+    private final int[] offsets;
+    private final int[] lengths;
+    /* Frames held are those numbered from first (inclusive) to end (exclusive), slot number % index size. */
+    private long first = 0;
+    private long end = 0;
+    private int writePosition = 0;
+
+    /* The filling thread, each one fills only while it is the current one. */
+    @Nullable private volatile Thread thread;
+    /* The last thread started, possibly still appending a frame, guarded by this. */
+    @Nullable private Thread started;
+
+    /**
+     * @param frameBuffer Buffer whose frames are kept.
+     * @param capacityBytes Size of the ring, the upper bound of memory used for images.
+     * @param windowMillis Age after which frames are dropped.
+     * @param clipDirectory Directory clips are saved to, created if necessary.
+     * @param clipPrefix Start of the clip file names, e.g. the camera.
+     */
+    public PreEventBuffer(@NonNull FrameBuffer frameBuffer, int capacityBytes, long windowMillis,
+                          @NonNull File clipDirectory, @NonNull String clipPrefix) {
+        this.frameBuffer = frameBuffer;
+        this.clipDirectory = clipDirectory;
+        this.clipPrefix = clipPrefix;
+        this.windowMillis = windowMillis;
+        this.capacityBytes = capacityBytes;
+        int maxFrames = (int) (windowMillis * MAX_FPS / 1000) + 1;
+        this.timestamps = new long[maxFrames];
+        this.offsets = new int[maxFrames];
+        this.lengths = new int[maxFrames];
+    }
+
+    @NonNull
+    public File getClipDirectory() {
+        return clipDirectory;
+    }
+
+    /* Package-private for tests. */
+    boolean isStarted() {
+        return thread != null;
+    }
+
+    /** Start keeping frames, allocating the ring. Do nothing if already started. */
+    public void start() {
+        while (true) {
+            Thread previous;
+            synchronized (this) {
+                if (thread != null)
+                    return;
+                previous = started;
+                if (previous == null || !previous.isAlive()) {
+                    lock.lock();
+                    try {
+                        data = ByteBuffer.allocateDirect(capacityBytes);
+                    } finally {
+                        lock.unlock();
+                    }
+                    thread = started = new Thread(this::fill, TAG);
+                    started.start();
+                    return;
+                }
+            }
+            /* Stopped on another thread, which is still releasing the ring. */
+            awaitTermination(previous);
+        }
+    }
+
+    /**
+     * Stop keeping frames and wait until the filling thread is done, so a buffer started next
+     * has the ring to itself. The frames are dropped and the ring is left to the garbage
+     * collector, clips still being written lose the frames they did not copy yet.
+     */
+    public void stop() {
+        Thread stopping;
+        synchronized (this) {
+            stopping = thread;
+            thread = null;
+        }
+        if (stopping == null)
+            return;
+        stopping.interrupt();
+        awaitTermination(stopping);
+        lock.lock();
+        try {
+            data = null;
+            first = end;
+            writePosition = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void awaitTermination(@Nullable Thread filler) {
+        if (filler == null || filler == Thread.currentThread())
+            return;
+        boolean interrupted = false;
+        while (filler.isAlive()) {
+            try {
+                filler.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Save the frames currently held as a clip. Returns right away, the clip is written on a
+     * background thread and the file appears once it is complete.
+     * @return The clip file, or null if no frames are held.
+     */
+    @Nullable
+    public File saveClip() {
+        long from;
+        long to;
+        int maxLength = 0;
+        lock.lock();
+        try {
+            from = first;
+            to = end;
+            for (long number = from; number < to; number++)
+                maxLength = Math.max(maxLength, lengths[slot(number)]);
+        } finally {
+            lock.unlock();
+        }
+        if (from == to)
+            return null;
+
+        File clip = new File(clipDirectory, clipPrefix + "-" +
+                new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US).format(new Date()) + CLIP_SUFFIX);
+        int frameBytes = maxLength;
+        clipWriter.execute(() -> writeClip(clip, from, to, frameBytes));
+        return clip;
+    }
+
+    private void fill() {
+        frameBuffer.subscribe();
+        try {
+            long lastSequence = 0;
+            while (thread == Thread.currentThread()) {
+                Frame frame;
+                try {
+                    frame = frameBuffer.awaitFrameAfter(lastSequence, FRAME_WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (frame == null)
+                    continue;
+
+                lastSequence = frame.getSequence();
+                try {
+                    append(frame);
+                } finally {
+                    frame.release();
+                }
+            }
+        } finally {
+            frameBuffer.unsubscribe();
+            synchronized (this) {
+                if (thread == Thread.currentThread())
+                    thread = null;
+            }
+        }
+    }
+
+    /** Copy a frame into the ring, dropping the frames it displaces. Package-private for tests. */
+    void append(@NonNull Frame frame) {
+        int length = frame.getLength();
+        if (length > capacityBytes)
+            return;
+
+        lock.lock();
+        try {
+            ByteBuffer data = this.data;
+            if (data == null)
+                return;
+            /* Frames are not split, one which does not fit before the end of the ring starts over at 0. */
+            int position = writePosition;
+            boolean wrapped = position + length > data.capacity();
+            if (wrapped)
+                position = 0;
+
+            /*
+             * Drop frames the new one overwrites, those out of the window, and the oldest one if
+             * the index is full. On wrapping, frames left behind the write position are older
+             * than those at the start of the ring, so they go first.
+             */
+            while (first < end) {
+                int slot = slot(first);
+                boolean overlaps = offsets[slot] < position + length && position < offsets[slot] + lengths[slot];
+                boolean behind = wrapped && offsets[slot] >= writePosition;
+                boolean expired = frame.getTimestamp() - timestamps[slot] > windowMillis;
+                if (!overlaps && !behind && !expired && end - first < timestamps.length)
+                    break;
+                first++;
+            }
+
+            int slot = slot(end);
+            data.position(position);
+            data.put(frame.getData(), 0, length);
+            timestamps[slot] = frame.getTimestamp();
+            offsets[slot] = position;
+            lengths[slot] = length;
+            end++;
+            writePosition = position + length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Write the given frames to the clip, frames overwritten by then are skipped. */
+    private void writeClip(@NonNull File clip, long from, long to, int maxLength) {
+        if (!clipDirectory.isDirectory() && !clipDirectory.mkdirs()) {
+            LOG.severe("Cannot create " + clipDirectory);
+            return;
+        }
+
+        /* Hidden while written, see CaptureDirectory. */
+        File partial = new File(clipDirectory, "." + clip.getName());
+        ByteBuffer frame = ByteBuffer.allocateDirect(maxLength);
+        long missed = 0;
+        try (FileChannel channel = new FileOutputStream(partial).getChannel()) {
+            for (long number = from; number < to; number++) {
+                lock.lock();
+                try {
+                    if (number < first || data == null) {
+                        /* Overwritten or stopped in the meantime. */
+                        missed++;
+                        continue;
+                    }
+                    int slot = slot(number);
+                    ByteBuffer source = data.duplicate();
+                    source.limit(offsets[slot] + lengths[slot]).position(offsets[slot]);
+                    frame.clear();
+                    frame.put(source);
+                    frame.flip();
+                } finally {
+                    lock.unlock();
+                }
+                while (frame.hasRemaining())
+                    channel.write(frame);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Saving clip " + clip + " failed", e);
+            if (!partial.delete())
+                LOG.warning("Cannot delete " + partial);
+            return;
+        }
+        if (!partial.renameTo(clip)) {
+            LOG.severe("Cannot rename " + partial + " to " + clip.getName());
+            if (!partial.delete())
+                LOG.warning("Cannot delete " + partial);
+            return;
+        }
+        if (missed > 0)
+            LOG.warning("Clip " + clip.getName() + " lacks " + missed + " frames overwritten while saving");
+    }
+
+    private int slot(long number) {
+        return (int) (number % timestamps.length);
+    }
+}
@@ -0,0 +1,36 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A full resolution still image as cached by {@link SnapshotCache}. Immutable.
+ */
+public final class Snapshot {
+
+    private final byte[] data;
+    private final long timestamp;
+    private final String etag;
+
+    Snapshot(@NonNull byte[] data, long timestamp, long generation) {
+        this.data = data;
+        this.timestamp = timestamp;
+        this.etag = "\"" + Long.toHexString(timestamp) + "-" + Long.toHexString(generation) + "\"";
+    }
+
+    /** JPEG encoded image data. Must be treated as read-only. */
+    @NonNull
+    public byte[] getData() {
+        return data;
+    }
+
+    /** Wall clock time the still was received, in milliseconds since the epoch. */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /** Strong entity tag identifying this still, including quotes. */
+    @NonNull
+    public String getETag() {
+        return etag;
+    }
+}
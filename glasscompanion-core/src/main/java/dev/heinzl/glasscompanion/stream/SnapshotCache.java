@@ -0,0 +1,133 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of the most recent still capture of one camera.
+ *
+ * Requests within {@code maxAgeMillis} of the last still are served from the cache. Otherwise
+ * a capture is triggered, unless one is already in progress, in which case the request waits
+ * for that capture. Hence any number of concurrent requests cost at most one capture.
+ */
+public class SnapshotCache {
+
+    /** Starts a still capture, which must end in {@link #publish} or {@link #captureFailed}. */
+    public interface Trigger {
+        void requestCapture();
+    }
+
+    private final Trigger trigger;
+    private final long maxAgeMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition captureDone = lock.newCondition();
+
+    @Nullable private Snapshot latest;
+    private long latestAttempt = 0;
+    /* Number of finished capture attempts, successful or not. */
+    private long attempts = 0;
+    private boolean captureInProgress = false;
+    private long captureStartedAt = 0;
+
+    /**
+     * @param trigger Called to start a new still capture.
+     * @param maxAgeMillis Age up to which a cached still is served without capturing anew.
+     */
+    public SnapshotCache(@NonNull Trigger trigger, long maxAgeMillis) {
+        this.trigger = trigger;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Get a still no older than the maximum age, capturing a new one if needed.
+     * @param timeoutMillis Maximum time to wait for a capture.
+     * @return A still, or null if none could be captured within the timeout.
+     */
+    @Nullable
+    public Snapshot acquire(long timeoutMillis) throws InterruptedException {
+        boolean startCapture = false;
+        long waitForAttempt;
+
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            if (latest != null && now - latest.getTimestamp() <= maxAgeMillis)
+                return latest;
+
+            /* Restart captures which apparently got lost. */
+            if (!captureInProgress || now - captureStartedAt > timeoutMillis) {
+                captureInProgress = true;
+                captureStartedAt = now;
+                startCapture = true;
+            }
+            waitForAttempt = attempts + 1;
+        } finally {
+            lock.unlock();
+        }
+
+        if (startCapture)
+            trigger.requestCapture();
+
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while (attempts < waitForAttempt) {
+                if (remaining <= 0)
+                    return null;
+                remaining = captureDone.awaitNanos(remaining);
+            }
+            return latestAttempt >= waitForAttempt ? latest : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Return the cached still without triggering a capture, or null if there is none. */
+    @Nullable
+    public Snapshot getLatest() {
+        lock.lock();
+        try {
+            return latest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Store a newly captured still by copying the remaining bytes of the given buffer and wake up
+     * all waiting requests.
+     */
+    public void publish(@NonNull ByteBuffer data) {
+        byte[] array = new byte[data.remaining()];
+        data.get(array);
+
+        lock.lock();
+        try {
+            attempts++;
+            latest = new Snapshot(array, System.currentTimeMillis(), attempts);
+            latestAttempt = attempts;
+            captureInProgress = false;
+            captureDone.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Report that the requested capture could not be taken, failing all waiting requests. */
+    public void captureFailed() {
+        lock.lock();
+        try {
+            attempts++;
+            captureInProgress = false;
+            captureDone.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
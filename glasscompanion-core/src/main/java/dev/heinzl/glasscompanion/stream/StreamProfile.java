@@ -0,0 +1,48 @@
+package dev.heinzl.glasscompanion.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+
+/**
+ * Named stream resolutions offered by every camera, selected with {@code ?profile=<name>}.
+ *
+ * As for the preview, the camera may pick a different capture size if the requested one is
+ * not supported, preserving the 4:3 aspect ratio.
+ */
+public enum StreamProfile {
+    LOW(320, 240),
+    MEDIUM(640, 480),
+    HIGH(1920, 1440),
+    ;
+
+    /** Profile used when the client does not ask for one. */
+    public static final StreamProfile DEFAULT = MEDIUM;
+
+    public final int width;
+    public final int height;
+
+    StreamProfile(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /** Name as used in URLs. */
+    @NonNull
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /** Look up a profile by its URL name, ignoring case. Return null if there is none. */
+    @Nullable
+    public static StreamProfile fromName(@Nullable String name) {
+        if (name == null)
+            return null;
+        for (StreamProfile profile : values()) {
+            if (profile.name().equalsIgnoreCase(name))
+                return profile;
+        }
+        return null;
+    }
+}
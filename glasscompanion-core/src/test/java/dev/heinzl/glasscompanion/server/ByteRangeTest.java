@@ -0,0 +1,72 @@
+package dev.heinzl.glasscompanion.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ByteRangeTest {
+
+    private static final long SIZE = 1000;
+
+    @Test
+    public void closedRange() {
+        ByteRange range = ByteRange.parse("bytes=100-199", SIZE);
+        assertEquals(100, range.start);
+        assertEquals(100, range.length);
+        assertEquals("bytes 100-199/1000", range.toContentRange(SIZE));
+    }
+
+    @Test
+    public void closedRangeIsClippedToTheFile() {
+        ByteRange range = ByteRange.parse("bytes=900-5000", SIZE);
+        assertEquals(900, range.start);
+        assertEquals(100, range.length);
+        assertEquals("bytes 900-999/1000", range.toContentRange(SIZE));
+    }
+
+    @Test
+    public void openEndedRange() {
+        ByteRange range = ByteRange.parse("bytes=250-", SIZE);
+        assertEquals(250, range.start);
+        assertEquals(750, range.length);
+    }
+
+    @Test
+    public void suffixRange() {
+        ByteRange range = ByteRange.parse("bytes=-300", SIZE);
+        assertEquals(700, range.start);
+        assertEquals(300, range.length);
+        assertEquals("bytes 700-999/1000", range.toContentRange(SIZE));
+    }
+
+    @Test
+    public void suffixLongerThanTheFileIsTheWholeFile() {
+        ByteRange range = ByteRange.parse("bytes=-5000", SIZE);
+        assertEquals(0, range.start);
+        assertEquals(SIZE, range.length);
+    }
+
+    @Test
+    public void rangeBeyondTheEndIsUnsatisfiable() {
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=1000-", SIZE));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=1000-2000", SIZE));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=0-", 0));
+    }
+
+    @Test
+    public void emptySuffixIsUnsatisfiable() {
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", SIZE));
+    }
+
+    @Test
+    public void unsupportedOrMalformedHeadersMeanTheWholeFile() {
+        assertNull(ByteRange.parse(null, SIZE));
+        assertNull(ByteRange.parse("items=0-10", SIZE));
+        assertNull(ByteRange.parse("bytes=0-10,20-30", SIZE));
+        assertNull(ByteRange.parse("bytes=10", SIZE));
+        assertNull(ByteRange.parse("bytes=a-b", SIZE));
+        assertNull(ByteRange.parse("bytes=200-100", SIZE));
+    }
+}
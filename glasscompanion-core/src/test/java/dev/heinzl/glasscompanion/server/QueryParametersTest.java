@@ -0,0 +1,71 @@
+package dev.heinzl.glasscompanion.server;
+
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QueryParametersTest {
+
+    @Test
+    public void parsesTheQueryOfAUri() {
+        QueryParameters query = new QueryParameters(URI.create("/stream0?fps=5&profile=low"));
+        assertEquals("5", query.get("fps"));
+        assertEquals("low", query.get("profile"));
+        assertNull(query.get("roi"));
+    }
+
+    @Test
+    public void uriWithoutQueryHasNoParameters() {
+        QueryParameters query = new QueryParameters(URI.create("/stream0"));
+        assertNull(query.get("fps"));
+        assertEquals("medium", query.get("profile", "medium"));
+    }
+
+    @Test
+    public void decodesNamesAndValues() {
+        QueryParameters query = new QueryParameters("roi=0%2C0%2C64%2C64&a+b=c+d");
+        assertEquals("0,0,64,64", query.get("roi"));
+        assertEquals("c d", query.get("a b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedEscapesAreRejected() {
+        new QueryParameters("zoom0=%zz");
+    }
+
+    @Test
+    public void parameterWithoutValueIsEmpty() {
+        QueryParameters query = new QueryParameters("focus0&&zoom0=2");
+        assertEquals("", query.get("focus0"));
+        assertEquals("2", query.get("zoom0"));
+    }
+
+    @Test
+    public void repeatedParameterKeepsTheLastValue() {
+        assertEquals("3", new QueryParameters("fps=1&fps=3").get("fps"));
+    }
+
+    @Test
+    public void numbersFallBackToTheDefault() {
+        QueryParameters query = new QueryParameters("credits=%2010%20&fps=fast&from=-60000");
+        assertEquals(10, query.getInt("credits", -1));
+        assertEquals(30, query.getInt("fps", 30));
+        assertEquals(30, query.getInt("missing", 30));
+        assertEquals(-60000, query.getLong("from", 0));
+        assertEquals(7, query.getLong("fps", 7));
+    }
+
+    @Test
+    public void containsFindsItemsOfACommaSeparatedList() {
+        QueryParameters query = new QueryParameters("mode=adaptive,%20changes");
+        assertTrue(query.contains("mode", "adaptive"));
+        assertTrue(query.contains("mode", "changes"));
+        assertFalse(query.contains("mode", "change"));
+        assertFalse(query.contains("other", "adaptive"));
+    }
+}
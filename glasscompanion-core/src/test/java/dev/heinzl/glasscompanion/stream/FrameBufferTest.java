@@ -0,0 +1,176 @@
+package dev.heinzl.glasscompanion.stream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FrameBufferTest {
+
+    private static long publish(FrameBuffer buffer, int value) {
+        return buffer.publish(ByteBuffer.wrap(new byte[] { (byte) value, (byte) value, (byte) value }));
+    }
+
+    @Test
+    public void readerGetsEachFrameOnce() {
+        FrameBuffer buffer = new FrameBuffer();
+        buffer.subscribe();
+        assertNull(buffer.getFrameAfter(0));
+
+        long sequence = publish(buffer, 1);
+        assertEquals(1, sequence);
+        Frame frame = buffer.getFrameAfter(0);
+        assertNotNull(frame);
+        assertEquals(1, frame.getSequence());
+        assertArrayEquals(new byte[] { 1, 1, 1 }, Arrays.copyOf(frame.getData(), frame.getLength()));
+        frame.release();
+
+        assertNull(buffer.getFrameAfter(1));
+        buffer.unsubscribe();
+    }
+
+    @Test
+    public void captureTimeIsMappedToTheWallClock() {
+        FrameBuffer buffer = new FrameBuffer();
+        buffer.subscribe();
+        long before = System.currentTimeMillis() * 1000;
+        long captureTime = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(50);
+        buffer.publish(ByteBuffer.wrap(new byte[1000000]), captureTime, 0);
+        long after = System.currentTimeMillis() * 1000;
+
+        /* Captured 50ms before publishing started, not counting the copy. */
+        Frame frame = buffer.getFrameAfter(0);
+        long micros = frame.getCaptureTimestampMicros();
+        assertTrue(micros + " not within " + before + " and " + after,
+                micros >= before - 50000 - 1000 && micros <= after - 50000 + 1000);
+        frame.release();
+        buffer.unsubscribe();
+    }
+
+    @Test
+    public void readersKeepTheirOwnCursors() {
+        FrameBuffer buffer = new FrameBuffer();
+        buffer.subscribe();
+        buffer.subscribe();
+        publish(buffer, 1);
+
+        Frame first = buffer.getFrameAfter(0);
+        publish(buffer, 2);
+        publish(buffer, 3);
+
+        /* A slow reader skips to the newest frame, which both readers share. */
+        Frame fast = buffer.getFrameAfter(first.getSequence());
+        Frame slow = buffer.getFrameAfter(0);
+        assertEquals(3, fast.getSequence());
+        assertSame(fast, slow);
+        assertEquals(3, buffer.getSequence());
+
+        first.release();
+        fast.release();
+        slow.release();
+        buffer.unsubscribe();
+        buffer.unsubscribe();
+    }
+
+    @Test
+    public void countsFramesNoSubscriberTook() {
+        FrameBuffer unwatched = new FrameBuffer();
+        publish(unwatched, 1);
+        publish(unwatched, 2);
+        assertEquals(0, unwatched.getDroppedFrames());
+
+        FrameBuffer buffer = new FrameBuffer();
+        buffer.subscribe();
+        publish(buffer, 1);
+        buffer.getFrameAfter(0).release();
+        publish(buffer, 2);
+        publish(buffer, 3);
+        buffer.getFrameAfter(1).release();
+        publish(buffer, 4);
+        assertEquals(4, buffer.getPublishedFrames());
+        assertEquals(1, buffer.getDroppedFrames());
+        buffer.unsubscribe();
+    }
+
+    @Test
+    public void lastUnsubscribeDropsTheFrame() {
+        FrameBuffer buffer = new FrameBuffer();
+        buffer.subscribe();
+        assertTrue(buffer.hasSubscribers());
+        publish(buffer, 1);
+        buffer.unsubscribe();
+        assertFalse(buffer.hasSubscribers());
+        assertNull(buffer.getFrameAfter(0));
+    }
+
+    @Test
+    public void listenerHearsOfFirstAndLastSubscriber() {
+        FrameBuffer buffer = new FrameBuffer();
+        StringBuilder events = new StringBuilder();
+        buffer.setSubscriberListener((b, hasSubscribers) -> events.append(hasSubscribers ? '+' : '-'));
+        buffer.subscribe();
+        buffer.subscribe();
+        buffer.unsubscribe();
+        buffer.unsubscribe();
+        assertEquals("+-", events.toString());
+    }
+
+    @Test
+    public void awaitReturnsAPublishedFrameRightAway() throws InterruptedException {
+        FrameBuffer buffer = new FrameBuffer();
+        buffer.subscribe();
+        publish(buffer, 1);
+        Frame frame = buffer.awaitFrameAfter(0, 0);
+        assertEquals(1, frame.getSequence());
+        frame.release();
+        buffer.unsubscribe();
+    }
+
+    @Test
+    public void awaitTimesOutWithoutANewerFrame() throws InterruptedException {
+        FrameBuffer buffer = new FrameBuffer();
+        buffer.subscribe();
+        publish(buffer, 1);
+        long start = System.nanoTime();
+        assertNull(buffer.awaitFrameAfter(1, 50));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        buffer.unsubscribe();
+    }
+
+    @Test
+    public void awaitWakesUpOnPublish() throws Exception {
+        FrameBuffer buffer = new FrameBuffer();
+        buffer.subscribe();
+        CountDownLatch waiting = new CountDownLatch(1);
+        AtomicReference<Frame> received = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            waiting.countDown();
+            try {
+                received.set(buffer.awaitFrameAfter(0, 10000));
+            } catch (InterruptedException e) {
+                /* Leaves received empty. */
+            }
+        });
+        reader.start();
+        waiting.await();
+        publish(buffer, 7);
+        reader.join(10000);
+
+        Frame frame = received.get();
+        assertNotNull(frame);
+        assertEquals(7, frame.getData()[0]);
+        frame.release();
+        buffer.unsubscribe();
+    }
+}
@@ -0,0 +1,128 @@
+package dev.heinzl.glasscompanion.stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class FrameLogTest {
+
+    private static final int FRAME_BYTES = 100;
+    private static final long START = 1000000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FramePool pool = new FramePool(0);
+
+    /* Frame n is captured at START + 10 * n and filled with n. */
+    private Frame frame(int n) {
+        byte[] data = new byte[FRAME_BYTES];
+        Arrays.fill(data, (byte) n);
+        return new Frame(n + 1, START + 10 * n, (START + 10 * n) * 1000, 0, 0, 0, data, data.length, pool);
+    }
+
+    private static void assertFrame(int n, FrameLog.Cursor cursor, ByteBuffer image) {
+        assertNotNull("frame " + n, image);
+        assertEquals(START + 10 * n, cursor.getTimestamp());
+        byte[] expected = new byte[FRAME_BYTES];
+        Arrays.fill(expected, (byte) n);
+        byte[] actual = new byte[image.remaining()];
+        image.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    private static void write(FrameLog log, Frame... frames) throws IOException {
+        try (FrameLog.Writer writer = log.openWriter()) {
+            for (Frame frame : frames)
+                writer.append(frame);
+        }
+    }
+
+    @Test
+    public void framesRoundTripAcrossSegments() throws IOException {
+        FrameLog log = new FrameLog(folder.newFolder("log"), 3 * FRAME_BYTES, Long.MAX_VALUE);
+        Frame[] frames = new Frame[10];
+        for (int n = 0; n < frames.length; n++)
+            frames[n] = frame(n);
+        write(log, frames);
+
+        List<Long> segments = log.listSegments();
+        assertEquals(Arrays.asList(START, START + 30, START + 60, START + 90), segments);
+        File index = new File(log.getDirectory(), String.format(Locale.ROOT, "%016d", START) + FrameLog.INDEX_SUFFIX);
+        assertEquals(3 * FrameLog.INDEX_ENTRY_SIZE, index.length());
+
+        FrameLog.Cursor cursor = log.openCursor(0);
+        for (int n = 0; n < frames.length; n++)
+            assertFrame(n, cursor, cursor.next());
+        assertNull(cursor.next());
+        cursor.close();
+    }
+
+    @Test
+    public void cursorStartsAtTheFirstFrameAtOrAfterTheTime() throws IOException {
+        FrameLog log = new FrameLog(folder.newFolder("log"), 3 * FRAME_BYTES, Long.MAX_VALUE);
+        Frame[] frames = new Frame[10];
+        for (int n = 0; n < frames.length; n++)
+            frames[n] = frame(n);
+        write(log, frames);
+
+        FrameLog.Cursor cursor = log.openCursor(START + 45);
+        assertFrame(5, cursor, cursor.next());
+        assertFrame(6, cursor, cursor.next());
+
+        cursor = log.openCursor(START + 60);
+        assertFrame(6, cursor, cursor.next());
+
+        cursor = log.openCursor(START + 1000);
+        assertNull(cursor.next());
+    }
+
+    @Test
+    public void cursorSeesFramesOnceFlushed() throws IOException {
+        FrameLog log = new FrameLog(folder.newFolder("log"), Long.MAX_VALUE, Long.MAX_VALUE);
+        FrameLog.Writer writer = log.openWriter();
+        FrameLog.Cursor cursor = log.openCursor(0);
+
+        writer.append(frame(0));
+        writer.append(frame(1));
+        assertNull(cursor.next());
+
+        writer.flush();
+        assertFrame(0, cursor, cursor.next());
+        assertFrame(1, cursor, cursor.next());
+        assertNull(cursor.next());
+
+        /* The segment being written keeps growing. */
+        writer.append(frame(2));
+        writer.flush();
+        assertFrame(2, cursor, cursor.next());
+        writer.close();
+    }
+
+    @Test
+    public void oldestSegmentsAreDeletedOverBudget() throws IOException {
+        long segmentBytes = 2 * FRAME_BYTES + 2 * FrameLog.INDEX_ENTRY_SIZE;
+        FrameLog log = new FrameLog(folder.newFolder("log"), 2 * FRAME_BYTES, segmentBytes);
+        Frame[] frames = new Frame[8];
+        for (int n = 0; n < frames.length; n++)
+            frames[n] = frame(n);
+        write(log, frames);
+
+        /* Retention runs when a segment starts, it keeps the new one and what fits in the budget. */
+        assertEquals(Arrays.asList(START + 40, START + 60), log.listSegments());
+        FrameLog.Cursor cursor = log.openCursor(0);
+        assertFrame(4, cursor, cursor.next());
+    }
+}
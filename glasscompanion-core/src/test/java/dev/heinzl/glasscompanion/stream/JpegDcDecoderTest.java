@@ -0,0 +1,92 @@
+package dev.heinzl.glasscompanion.stream;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JpegDcDecoderTest {
+
+    /* Block means are rounded by the encoder and the decoder. */
+    private static final int TOLERANCE = 2;
+
+    private static int[] randomLevels(int count) {
+        Random random = new Random(count);
+        int[] levels = new int[count];
+        for (int i = 0; i < levels.length; i++)
+            levels[i] = random.nextInt(256);
+        return levels;
+    }
+
+    private static void assertDecodes(int widthInBlocks, int heightInBlocks, int[] levels, byte[] jpeg) {
+        JpegDcDecoder.Result result = JpegDcDecoder.decode(jpeg, jpeg.length);
+        assertNotNull(result);
+        assertEquals(widthInBlocks, result.widthInBlocks);
+        assertEquals(heightInBlocks, result.heightInBlocks);
+        for (int i = 0; i < levels.length; i++) {
+            assertTrue("block " + i + ": expected " + levels[i] + " but was " + result.levels[i],
+                    Math.abs(levels[i] - result.levels[i]) <= TOLERANCE);
+        }
+    }
+
+    private static void assertDecodes(int widthInBlocks, int heightInBlocks, boolean color, int restartInterval) throws IOException {
+        int[] levels = randomLevels(widthInBlocks * heightInBlocks);
+        BufferedImage image = TestJpegs.blocks(widthInBlocks, heightInBlocks, levels, color);
+        if (color)
+            assertEquals("22,11,11", TestJpegs.samplingFactors(image));
+        byte[] jpeg = TestJpegs.encode(image, restartInterval);
+        if (restartInterval > 0)
+            assertTrue(TestJpegs.countRestartMarkers(jpeg) > 0);
+        assertDecodes(widthInBlocks, heightInBlocks, levels, jpeg);
+    }
+
+    @Test
+    public void grayImage() throws IOException {
+        assertDecodes(6, 4, false, 0);
+    }
+
+    @Test
+    public void grayImageWithRestartIntervals() throws IOException {
+        assertDecodes(6, 4, false, 5);
+    }
+
+    @Test
+    public void colorImageWith420Sampling() throws IOException {
+        assertDecodes(8, 6, true, 0);
+    }
+
+    @Test
+    public void colorImageWith420SamplingAndRestartIntervals() throws IOException {
+        assertDecodes(8, 6, true, 3);
+        assertDecodes(8, 6, true, 1);
+    }
+
+    @Test
+    public void paddingOfPartialMcusIsDropped() throws IOException {
+        /* 40x24 pixels are 3x2 MCUs of 16x16 pixels, of which 5x3 luma blocks are visible. */
+        assertDecodes(5, 3, true, 0);
+        assertDecodes(5, 3, true, 2);
+    }
+
+    @Test
+    public void truncatedImageIsRejected() throws IOException {
+        int[] levels = randomLevels(48);
+        byte[] jpeg = TestJpegs.encode(TestJpegs.blocks(8, 6, levels, true), 0);
+        assertNull(JpegDcDecoder.decode(jpeg, 100));
+    }
+
+    @Test
+    public void otherDataIsRejected() {
+        byte[] data = new byte[256];
+        Arrays.fill(data, (byte) 0x55);
+        assertNull(JpegDcDecoder.decode(data, data.length));
+        assertNull(JpegDcDecoder.decode(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9 }, 4));
+    }
+}
@@ -0,0 +1,86 @@
+package dev.heinzl.glasscompanion.stream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JpegTest {
+
+    private static byte[] image(int restartInterval) throws IOException {
+        int[] levels = new int[48];
+        for (int i = 0; i < levels.length; i++)
+            levels[i] = i * 5;
+        return TestJpegs.encode(TestJpegs.blocks(8, 6, levels, true), restartInterval);
+    }
+
+    /* The image followed by the padding of a camera buffer, which may contain anything. */
+    private static ByteBuffer padded(byte[] jpeg) {
+        byte[] data = Arrays.copyOf(jpeg, jpeg.length + 1000);
+        for (int i = jpeg.length; i < data.length; i += 2) {
+            data[i] = (byte) 0xFF;
+            data[i + 1] = (byte) 0xD9;
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    @Test
+    public void findsTheEndOfAPaddedImage() throws IOException {
+        byte[] jpeg = image(0);
+        assertEquals(jpeg.length, Jpeg.findEndOfImage(padded(jpeg)));
+    }
+
+    @Test
+    public void skipsRestartMarkers() throws IOException {
+        byte[] jpeg = image(1);
+        assertTrue(TestJpegs.countRestartMarkers(jpeg) > 0);
+        assertEquals(jpeg.length, Jpeg.findEndOfImage(padded(jpeg)));
+    }
+
+    @Test
+    public void skipsEmbeddedThumbnails() throws IOException {
+        byte[] jpeg = image(0);
+        byte[] thumbnail = image(0);
+        /* An APP1 segment right after SOI carrying a whole image, as EXIF thumbnails do. */
+        ByteArrayOutputStream withThumbnail = new ByteArrayOutputStream();
+        withThumbnail.write(jpeg, 0, 2);
+        withThumbnail.write(0xFF);
+        withThumbnail.write(0xE1);
+        withThumbnail.write((thumbnail.length + 2) >> 8);
+        withThumbnail.write(thumbnail.length + 2);
+        withThumbnail.write(thumbnail, 0, thumbnail.length);
+        withThumbnail.write(jpeg, 2, jpeg.length - 2);
+        byte[] image = withThumbnail.toByteArray();
+
+        assertEquals(image.length, Jpeg.findEndOfImage(padded(image)));
+    }
+
+    @Test
+    public void startsAtThePositionAndLeavesTheBufferAsIs() throws IOException {
+        byte[] jpeg = image(0);
+        ByteBuffer buffer = ByteBuffer.allocate(jpeg.length + 300);
+        buffer.position(100);
+        buffer.put(jpeg);
+        buffer.position(100);
+        buffer.limit(jpeg.length + 200);
+
+        assertEquals(jpeg.length, Jpeg.findEndOfImage(buffer));
+        assertEquals(100, buffer.position());
+        assertEquals(jpeg.length + 200, buffer.limit());
+    }
+
+    @Test
+    public void withoutEndOfImageAllBytesAreTheImage() throws IOException {
+        byte[] jpeg = image(0);
+        ByteBuffer truncated = ByteBuffer.wrap(jpeg, 0, jpeg.length - 2);
+        assertEquals(jpeg.length - 2, Jpeg.findEndOfImage(truncated));
+
+        ByteBuffer other = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 });
+        assertEquals(5, Jpeg.findEndOfImage(other));
+    }
+}
@@ -0,0 +1,170 @@
+package dev.heinzl.glasscompanion.stream;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelJpegEncoderTest {
+
+    /* Records the images published, in order. */
+    private static final class RecordingBuffer extends FrameBuffer {
+        final List<Integer> published = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public long publish(ByteBuffer data, long captureTime, long availableTime) {
+            published.add(data.duplicate().getInt());
+            return super.publish(data, captureTime, availableTime);
+        }
+    }
+
+    /* "Encodes" its number, taking the given time. */
+    private static final class NumberJob implements ParallelJpegEncoder.Job {
+        final int number;
+        final long encodeMillis;
+        final AtomicInteger releases = new AtomicInteger();
+
+        NumberJob(int number, long encodeMillis) {
+            this.number = number;
+            this.encodeMillis = encodeMillis;
+        }
+
+        @Override
+        public void encode(OutputStream output) throws IOException {
+            try {
+                Thread.sleep(encodeMillis);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            output.write(ByteBuffer.allocate(4).putInt(number).array());
+        }
+
+        @Override
+        public void release() {
+            releases.incrementAndGet();
+        }
+    }
+
+    /* Runs tasks when the test says so. */
+    private static final class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+        }
+    }
+
+    private static void assertReleasedOnce(List<NumberJob> jobs) {
+        for (NumberJob job : jobs)
+            assertEquals("releases of job " + job.number, 1, job.releases.get());
+    }
+
+    @Test
+    public void publishesInSubmissionOrder() throws InterruptedException {
+        RecordingBuffer target = new RecordingBuffer();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        ParallelJpegEncoder encoder = new ParallelJpegEncoder(target, pool, 100, 60000);
+
+        /* Encode times vary, so workers finish out of order. */
+        Random random = new Random(1);
+        List<NumberJob> jobs = new ArrayList<>();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            NumberJob job = new NumberJob(i, random.nextInt(10));
+            jobs.add(job);
+            expected.add(i);
+            encoder.submit(job);
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(expected, target.published);
+        assertReleasedOnce(jobs);
+        assertEquals(0, encoder.getStaleFrames());
+    }
+
+    @Test
+    public void fullQueueDropsTheOldestImages() {
+        RecordingBuffer target = new RecordingBuffer();
+        ManualExecutor executor = new ManualExecutor();
+        ParallelJpegEncoder encoder = new ParallelJpegEncoder(target, executor, 2, 60000);
+
+        List<NumberJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            NumberJob job = new NumberJob(i, 0);
+            jobs.add(job);
+            encoder.submit(job);
+        }
+        /* Dropped right away, before any worker ran. */
+        assertEquals(3, encoder.getStaleFrames());
+        for (int i = 0; i < 3; i++)
+            assertEquals(1, jobs.get(i).releases.get());
+
+        executor.runAll();
+        assertEquals(Arrays.asList(3, 4), target.published);
+        assertReleasedOnce(jobs);
+    }
+
+    @Test
+    public void oldImagesAreDroppedWithoutHoldingUpLaterOnes() throws InterruptedException {
+        RecordingBuffer target = new RecordingBuffer();
+        ManualExecutor executor = new ManualExecutor();
+        ParallelJpegEncoder encoder = new ParallelJpegEncoder(target, executor, 10, 50);
+
+        List<NumberJob> jobs = new ArrayList<>();
+        jobs.add(new NumberJob(0, 0));
+        encoder.submit(jobs.get(0));
+        Thread.sleep(100);
+        jobs.add(new NumberJob(1, 0));
+        encoder.submit(jobs.get(1));
+
+        executor.runAll();
+        assertEquals(Collections.singletonList(1), target.published);
+        assertEquals(1, encoder.getStaleFrames());
+        assertReleasedOnce(jobs);
+    }
+
+    @Test
+    public void closeReleasesWaitingImages() {
+        RecordingBuffer target = new RecordingBuffer();
+        ManualExecutor executor = new ManualExecutor();
+        ParallelJpegEncoder encoder = new ParallelJpegEncoder(target, executor, 10, 60000);
+
+        List<NumberJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            NumberJob job = new NumberJob(i, 0);
+            jobs.add(job);
+            encoder.submit(job);
+        }
+        encoder.close();
+        NumberJob late = new NumberJob(3, 0);
+        jobs.add(late);
+        encoder.submit(late);
+
+        executor.runAll();
+        assertTrue(target.published.isEmpty());
+        assertReleasedOnce(jobs);
+    }
+}
@@ -0,0 +1,162 @@
+package dev.heinzl.glasscompanion.stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PreEventBufferTest {
+
+    private static final int CAPACITY = 1000;
+    private static final long WINDOW_MILLIS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FramePool pool = new FramePool(0);
+    private final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    private PreEventBuffer buffer;
+
+    @Before
+    public void setUp() throws IOException {
+        /* Nothing is published, frames are appended by the tests. */
+        buffer = new PreEventBuffer(new FrameBuffer(), CAPACITY, WINDOW_MILLIS, folder.newFolder("clips"), "camera0");
+        buffer.start();
+    }
+
+    @After
+    public void tearDown() {
+        buffer.stop();
+    }
+
+    /* Frame n is filled with n. */
+    private Frame frame(int n, int length, long timestamp) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) n);
+        return new Frame(n + 1, timestamp, timestamp * 1000, 0, 0, 0, data, length, pool);
+    }
+
+    private void expect(int n, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) n);
+        expected.write(data, 0, length);
+    }
+
+    /** Save a clip and wait until the background writer is done with it. */
+    private byte[] saveClip() throws Exception {
+        File clip = buffer.saveClip();
+        assertNotNull(clip);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (clip.length() != expected.size() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        return Files.readAllBytes(clip.toPath());
+    }
+
+    @Test
+    public void nothingToSaveWithoutFrames() {
+        assertNull(buffer.saveClip());
+    }
+
+    @Test
+    public void clipHoldsTheFramesInOrder() throws Exception {
+        buffer.append(frame(1, 100, 0));
+        buffer.append(frame(2, 200, 40));
+        buffer.append(frame(3, 300, 80));
+        expect(1, 100);
+        expect(2, 200);
+        expect(3, 300);
+        assertArrayEquals(expected.toByteArray(), saveClip());
+    }
+
+    @Test
+    public void wrappingOverwritesTheOldestFrames() throws Exception {
+        for (int n = 0; n < 5; n++)
+            buffer.append(frame(n, 300, 40 * n));
+        /* Frame 3 starts over at 0 replacing frame 0, frame 4 replaces frame 1. */
+        expect(2, 300);
+        expect(3, 300);
+        expect(4, 300);
+        assertArrayEquals(expected.toByteArray(), saveClip());
+    }
+
+    @Test
+    public void framesLeftFromTheLastLapAreDroppedFirst() throws Exception {
+        buffer.append(frame(0, 400, 0));
+        buffer.append(frame(1, 400, 40));
+        buffer.append(frame(2, 150, 80));
+        buffer.append(frame(3, 400, 120));
+        buffer.append(frame(4, 100, 160));
+        /* Frame 2 remains at the end of the ring, behind frames 3 and 4 at its start. */
+        expect(2, 150);
+        expect(3, 400);
+        expect(4, 100);
+        assertArrayEquals(expected.toByteArray(), saveClip());
+
+        /* Wrapping again must drop frame 2 before the frames it overwrites. */
+        buffer.append(frame(5, 600, 200));
+        expected.reset();
+        expect(5, 600);
+        assertArrayEquals(expected.toByteArray(), saveClip());
+    }
+
+    @Test
+    public void framesOutOfTheWindowAreDropped() throws Exception {
+        buffer.append(frame(1, 100, 0));
+        buffer.append(frame(2, 100, WINDOW_MILLIS / 2));
+        buffer.append(frame(3, 100, WINDOW_MILLIS + 1));
+        expect(2, 100);
+        expect(3, 100);
+        assertArrayEquals(expected.toByteArray(), saveClip());
+    }
+
+    @Test
+    public void framesLargerThanTheRingAreSkipped() throws Exception {
+        buffer.append(frame(1, 100, 0));
+        buffer.append(frame(2, CAPACITY + 1, 40));
+        expect(1, 100);
+        assertArrayEquals(expected.toByteArray(), saveClip());
+    }
+
+    @Test
+    public void stopDropsTheFrames() throws Exception {
+        assertTrue(buffer.isStarted());
+        buffer.append(frame(1, 100, 0));
+        buffer.stop();
+        assertFalse(buffer.isStarted());
+        assertNull(buffer.saveClip());
+
+        /* Frames arriving while stopped are ignored. */
+        buffer.append(frame(2, 100, 40));
+        assertNull(buffer.saveClip());
+
+        buffer.start();
+        buffer.append(frame(3, 100, 80));
+        expect(3, 100);
+        assertArrayEquals(expected.toByteArray(), saveClip());
+    }
+
+    @Test
+    public void restartsLeaveNoFillingThreadBehind() {
+        FrameBuffer frames = new FrameBuffer();
+        PreEventBuffer restarted = new PreEventBuffer(frames, CAPACITY, WINDOW_MILLIS, folder.getRoot(), "camera1");
+        for (int i = 0; i < 100; i++) {
+            restarted.start();
+            restarted.stop();
+        }
+        /* Every filling thread ended and unsubscribed. */
+        assertFalse(frames.hasSubscribers());
+    }
+}
@@ -0,0 +1,111 @@
+package dev.heinzl.glasscompanion.stream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/** JPEG images encoded with ImageIO, as test input. */
+final class TestJpegs {
+
+    private static final String METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    private TestJpegs() {
+    }
+
+    /**
+     * Image made of 8x8 blocks of uniform gray, block (x, y) having the level given by
+     * {@code levels[y * widthInBlocks + x]}.
+     * @param color Whether to make a three component image, which ImageIO encodes with 4:2:0
+     *              chroma subsampling, instead of a gray scale one.
+     */
+    static BufferedImage blocks(int widthInBlocks, int heightInBlocks, int[] levels, boolean color) {
+        BufferedImage image = new BufferedImage(widthInBlocks * 8, heightInBlocks * 8,
+                color ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int level = levels[y / 8 * widthInBlocks + x / 8];
+                /* Set raster samples, setRGB would convert levels of gray images to linear. */
+                if (color) {
+                    for (int band = 0; band < 3; band++)
+                        image.getRaster().setSample(x, y, band, level);
+                } else {
+                    image.getRaster().setSample(x, y, 0, level);
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Encode at the highest quality, i.e. with DC quantizers of 1.
+     * @param restartInterval MCUs between restart markers, or 0 for none.
+     */
+    static byte[] encode(BufferedImage image, int restartInterval) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(1f);
+            IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+            if (restartInterval > 0) {
+                Node root = metadata.getAsTree(METADATA_FORMAT);
+                Node markers = ((Element) root).getElementsByTagName("markerSequence").item(0);
+                IIOMetadataNode dri = new IIOMetadataNode("dri");
+                dri.setAttribute("interval", Integer.toString(restartInterval));
+                markers.insertBefore(dri, markers.getFirstChild());
+                metadata.setFromTree(METADATA_FORMAT, root);
+            }
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(image, null, metadata), param);
+            }
+            return output.toByteArray();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /** Sampling factors of the frame components as comma separated "HV" pairs, e.g. "22,11,11" for 4:2:0. */
+    static String samplingFactors(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try {
+            IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), writer.getDefaultWriteParam());
+            NodeList components = ((Element) metadata.getAsTree(METADATA_FORMAT)).getElementsByTagName("componentSpec");
+            StringBuilder factors = new StringBuilder();
+            for (int i = 0; i < components.getLength(); i++) {
+                Element component = (Element) components.item(i);
+                if (i > 0)
+                    factors.append(',');
+                factors.append(component.getAttribute("HsamplingFactor")).append(component.getAttribute("VsamplingFactor"));
+            }
+            return factors.toString();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /** Number of restart markers in the image. */
+    static int countRestartMarkers(byte[] jpeg) {
+        int count = 0;
+        for (int i = 0; i + 1 < jpeg.length; i++) {
+            if ((jpeg[i] & 0xFF) == 0xFF && (jpeg[i + 1] & 0xF8) == 0xD0)
+                count++;
+        }
+        return count;
+    }
+}
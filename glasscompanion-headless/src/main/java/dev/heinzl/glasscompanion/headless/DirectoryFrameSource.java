@@ -0,0 +1,47 @@
+package dev.heinzl.glasscompanion.headless;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Plays the JPEG files of a directory in name order at a fixed rate, starting over at the end.
+ *
+ * All images are loaded into memory up front, so disk speed does not show up in measurements
+ * of the server.
+ */
+class DirectoryFrameSource extends ScheduledFrameSource {
+
+    private final List<ByteBuffer> images = new ArrayList<>();
+    private int next = 0;
+
+    DirectoryFrameSource(@NonNull File directory, int fps) throws IOException {
+        super(fps);
+        File[] files = directory.listFiles((dir, name) -> {
+            String lowerCase = name.toLowerCase(Locale.ROOT);
+            return lowerCase.endsWith(".jpg") || lowerCase.endsWith(".jpeg");
+        });
+        if (files == null)
+            throw new IOException("Cannot list " + directory);
+        Arrays.sort(files);
+        for (File file : files)
+            images.add(ByteBuffer.wrap(Files.readAllBytes(file.toPath())).asReadOnlyBuffer());
+        if (images.isEmpty())
+            throw new IOException("No JPEG files in " + directory);
+    }
+
+    @NonNull
+    @Override
+    protected ByteBuffer nextImage() {
+        ByteBuffer image = images.get(next);
+        next = (next + 1) % images.size();
+        return image;
+    }
+}
@@ -0,0 +1,113 @@
+package dev.heinzl.glasscompanion.headless;
+
+import dev.heinzl.glasscompanion.server.Server;
+import dev.heinzl.glasscompanion.server.StaticContent;
+import dev.heinzl.glasscompanion.stream.PreEventBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs the streaming server without a headset.
+ *
+ * Options (all optional):
+ * <pre>
+ *   --source synthetic|directory  Where frames come from (default synthetic)
+ *   --dir PATH                    Directory of JPEG files for the directory source
+ *   --width N --height N          Resolution of synthetic frames (default 640x480)
+ *   --fps N                       Frame rate of each camera (default 30)
+ *   --jpeg-size N                 Pad synthetic frames to N bytes (default 0, no padding)
+ *   --cameras N                   Number of cameras to serve (default 2)
+ *   --max-streams N               Limit of concurrently open streams
+ *   --max-streams-per-client N    Limit of concurrently open streams of one client address
+ *   --www PATH                    Viewer pages (default glasscompanion/src/main/assets/www)
+ *   --captures PATH               Directory clips are saved to (default captures)
+ *   --pre-event-seconds N         Seconds of frames kept for clips, 0 for none (default 10)
+ * </pre>
+ */
+public class HeadlessServer {
+
+    private static final String DEFAULT_WWW = "glasscompanion/src/main/assets/www";
+
+    /* Memory for the frames kept for clips, per camera. */
+    private static final int PRE_EVENT_BYTES = 32 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+
+        int fps = Integer.parseInt(options.getOrDefault("fps", "30"));
+        int cameraCount = Integer.parseInt(options.getOrDefault("cameras", "2"));
+        int maxStreams = Integer.parseInt(options.getOrDefault("max-streams",
+                Integer.toString(Server.DEFAULT_MAX_STREAM_CONNECTIONS)));
+        int maxStreamsPerClient = Integer.parseInt(options.getOrDefault("max-streams-per-client",
+                Integer.toString(Server.DEFAULT_MAX_STREAMS_PER_CLIENT)));
+
+        ScheduledFrameSource[] sources = new ScheduledFrameSource[cameraCount];
+        int preEventSeconds = Integer.parseInt(options.getOrDefault("pre-event-seconds", "10"));
+        File captures = new File(options.getOrDefault("captures", "captures"));
+        for (int i = 0; i < cameraCount; i++) {
+            sources[i] = createSource(options, fps);
+            if (preEventSeconds > 0)
+                sources[i].setPreEventBuffer(new PreEventBuffer(sources[i].getFrameBuffer(), PRE_EVENT_BYTES,
+                        preEventSeconds * 1000L, captures, "camera" + i));
+        }
+
+        StaticContent staticContent;
+        File www = new File(options.getOrDefault("www", DEFAULT_WWW));
+        if (www.isDirectory()) {
+            staticContent = StaticContent.fromDirectory(www);
+        } else {
+            System.err.println("No viewer pages at " + www + ", serving streams only");
+            staticContent = new StaticContent(Collections.emptyMap());
+        }
+
+        Server server = new Server(sources, staticContent, new ImageIOJpegTranscoder(), maxStreams,
+                maxStreamsPerClient, new SimulatedCameraControl(cameraCount));
+        server.start();
+        for (ScheduledFrameSource source : sources)
+            source.start();
+        System.out.println("Serving " + cameraCount + " cameras on port " + Server.SERVER_PORT);
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (ScheduledFrameSource source : sources)
+                source.stop();
+            server.stopServer();
+            stopped.countDown();
+        }));
+        stopped.await();
+    }
+
+    private static ScheduledFrameSource createSource(Map<String, String> options, int fps) throws IOException {
+        String source = options.getOrDefault("source", "synthetic");
+        switch (source) {
+            case "synthetic":
+                return new SyntheticFrameSource(
+                        Integer.parseInt(options.getOrDefault("width", "640")),
+                        Integer.parseInt(options.getOrDefault("height", "480")),
+                        fps,
+                        Integer.parseInt(options.getOrDefault("jpeg-size", "0")));
+            case "directory":
+                String directory = options.get("dir");
+                if (directory == null)
+                    throw new IllegalArgumentException("--source directory needs --dir");
+                return new DirectoryFrameSource(new File(directory), fps);
+            default:
+                throw new IllegalArgumentException("Unknown source " + source);
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length)
+                throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+}
@@ -0,0 +1,111 @@
+package dev.heinzl.glasscompanion.headless;
+
+import androidx.annotation.NonNull;
+
+import dev.heinzl.glasscompanion.server.JpegTranscoder;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * {@link JpegTranscoder} based on the Java image I/O codecs.
+ */
+class ImageIOJpegTranscoder implements JpegTranscoder {
+
+    /* The picture in picture inset is a quarter of the width, offset from the edges by 1/64. */
+    private static final int INSET_SCALE = 4;
+    private static final int INSET_MARGIN_SCALE = 64;
+
+    @Override
+    public void transcode(@NonNull byte[] data, int length, int quality, @NonNull OutputStream output) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data, 0, length));
+        if (image == null)
+            throw new IOException("Cannot decode JPEG image");
+        encode(image, quality / 100.0f, output);
+    }
+
+    @Override
+    public void crop(@NonNull byte[] data, int length, int x, int y, int width, int height, int quality,
+                     @NonNull OutputStream output) throws IOException {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        BufferedImage image;
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(data, 0, length))) {
+            reader.setInput(stream, true, true);
+            Rectangle region = new Rectangle(x, y, width, height).intersection(
+                    new Rectangle(reader.getWidth(0), reader.getHeight(0)));
+            if (region.isEmpty())
+                throw new IOException("Region outside of the image");
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(region);
+            image = reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+        encode(image, quality / 100.0f, output);
+    }
+
+    @Override
+    public void compose(@NonNull byte[] first, int firstLength, @NonNull byte[] second, int secondLength,
+                        boolean pictureInPicture, int quality, @NonNull OutputStream output) throws IOException {
+        BufferedImage main = ImageIO.read(new ByteArrayInputStream(first, 0, firstLength));
+        BufferedImage other = ImageIO.read(new ByteArrayInputStream(second, 0, secondLength));
+        if (main == null || other == null)
+            throw new IOException("Cannot decode JPEG image");
+
+        int width = main.getWidth();
+        int height = main.getHeight();
+        BufferedImage composite;
+        Rectangle target;
+        if (pictureInPicture) {
+            /* Draw the inset straight onto the first image. */
+            composite = main;
+            int margin = width / INSET_MARGIN_SCALE;
+            int insetWidth = width / INSET_SCALE;
+            int insetHeight = other.getHeight() * insetWidth / other.getWidth();
+            target = new Rectangle(width - margin - insetWidth, height - margin - insetHeight, insetWidth, insetHeight);
+        } else {
+            int otherWidth = other.getWidth() * height / other.getHeight();
+            composite = new BufferedImage(width + otherWidth, height, BufferedImage.TYPE_INT_RGB);
+            target = new Rectangle(width, 0, otherWidth, height);
+        }
+
+        Graphics2D graphics = composite.createGraphics();
+        try {
+            if (composite != main)
+                graphics.drawImage(main, 0, 0, null);
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(other, target.x, target.y, target.width, target.height, null);
+        } finally {
+            graphics.dispose();
+        }
+        encode(composite, quality / 100.0f, output);
+    }
+
+    /** Encode an image as JPEG with a quality from 0 to 1. */
+    static void encode(@NonNull BufferedImage image, float quality, @NonNull OutputStream output) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package dev.heinzl.glasscompanion.headless;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import dev.heinzl.glasscompanion.stream.FrameBuffer;
+import dev.heinzl.glasscompanion.stream.FrameLog;
+import dev.heinzl.glasscompanion.stream.FrameSource;
+import dev.heinzl.glasscompanion.stream.PreEventBuffer;
+import dev.heinzl.glasscompanion.stream.SnapshotCache;
+import dev.heinzl.glasscompanion.stream.StreamProfile;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame source publishing images at a fixed rate from a thread of its own, like a camera.
+ *
+ * All stream profiles share one buffer, the images are served at whatever resolution the
+ * subclass produces. Stills are the most recently published image. A pre-event buffer, if
+ * set, is filled while the source is started.
+ */
+abstract class ScheduledFrameSource implements FrameSource {
+
+    private static final long SNAPSHOT_MAX_AGE_MILLIS = 1000;
+
+    private final int fps;
+    private final FrameBuffer frameBuffer = new FrameBuffer();
+    private final SnapshotCache snapshotCache;
+
+    @Nullable private ScheduledExecutorService scheduler;
+    @Nullable private volatile ByteBuffer lastImage;
+    @Nullable private PreEventBuffer preEventBuffer;
+
+    ScheduledFrameSource(int fps) {
+        this.fps = fps;
+        this.snapshotCache = new SnapshotCache(this::captureStill, SNAPSHOT_MAX_AGE_MILLIS);
+    }
+
+    /** The image to publish next. Called on the publishing thread only. */
+    @NonNull
+    protected abstract ByteBuffer nextImage();
+
+    /** Keep the last frames in the given buffer, which must be fed by this source's frame buffer. */
+    synchronized void setPreEventBuffer(@Nullable PreEventBuffer preEventBuffer) {
+        this.preEventBuffer = preEventBuffer;
+    }
+
+    synchronized void start() {
+        if (scheduler != null)
+            return;
+        if (preEventBuffer != null)
+            preEventBuffer.start();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, getClass().getSimpleName()));
+        scheduler.scheduleAtFixedRate(this::publish, 0, 1000000 / fps, TimeUnit.MICROSECONDS);
+    }
+
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (preEventBuffer != null)
+            preEventBuffer.stop();
+    }
+
+    private void publish() {
+        ByteBuffer image = nextImage();
+        lastImage = image;
+        frameBuffer.publish(image.duplicate());
+    }
+
+    private void captureStill() {
+        ByteBuffer image = lastImage;
+        if (image != null)
+            snapshotCache.publish(image.duplicate());
+        else
+            snapshotCache.captureFailed();
+    }
+
+    @NonNull
+    @Override
+    public FrameBuffer getFrameBuffer(@NonNull StreamProfile profile) {
+        return frameBuffer;
+    }
+
+    @NonNull
+    @Override
+    public SnapshotCache getSnapshotCache() {
+        return snapshotCache;
+    }
+
+    @Nullable
+    @Override
+    public FrameLog getFrameLog() {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public synchronized PreEventBuffer getPreEventBuffer() {
+        return preEventBuffer;
+    }
+}
@@ -0,0 +1,62 @@
+package dev.heinzl.glasscompanion.headless;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import dev.heinzl.glasscompanion.server.CameraControl;
+
+/**
+ * Camera control without cameras: keeps the settings within the limits of the headset
+ * cameras, so clients of {@code /control} can be tested without a headset. The frames do
+ * not change.
+ */
+class SimulatedCameraControl implements CameraControl {
+
+    private static final float MAX_ZOOM = 8.0f;
+    private static final int MAX_OFFSET_X = 1024;
+    private static final int MAX_OFFSET_Y = 768;
+
+    private final float[] zoom;
+    private final int[] offsetX;
+    private final int[] offsetY;
+    private boolean torch = false;
+
+    SimulatedCameraControl(int cameraCount) {
+        zoom = new float[cameraCount];
+        offsetX = new int[cameraCount];
+        offsetY = new int[cameraCount];
+        for (int i = 0; i < cameraCount; i++)
+            zoom[i] = 1.0f;
+    }
+
+    @NonNull
+    @Override
+    public synchronized CameraState[] apply(@NonNull Command[] commands, @Nullable Boolean torch) {
+        CameraState[] states = new CameraState[zoom.length];
+        for (int i = 0; i < zoom.length; i++) {
+            Command command = i < commands.length ? commands[i] : null;
+            if (command != null) {
+                if (command.isReset()) {
+                    zoom[i] = 1.0f;
+                    offsetX[i] = 0;
+                    offsetY[i] = 0;
+                }
+                if (command.getZoom() != null)
+                    zoom[i] = Math.max(1.0f, Math.min(command.getZoom(), MAX_ZOOM));
+                if (command.hasOffset()) {
+                    offsetX[i] = Math.max(-MAX_OFFSET_X, Math.min(command.getOffsetX(), MAX_OFFSET_X));
+                    offsetY[i] = Math.max(-MAX_OFFSET_Y, Math.min(command.getOffsetY(), MAX_OFFSET_Y));
+                }
+            }
+            states[i] = new CameraState(true, zoom[i], MAX_ZOOM, offsetX[i], offsetY[i], MAX_OFFSET_X, MAX_OFFSET_Y, true);
+        }
+        if (torch != null)
+            this.torch = torch;
+        return states;
+    }
+
+    @Override
+    public synchronized boolean isTorchEnabled() {
+        return torch;
+    }
+}
@@ -0,0 +1,100 @@
+package dev.heinzl.glasscompanion.headless;
+
+import androidx.annotation.NonNull;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Generates a moving test pattern at a given resolution and frame rate.
+ *
+ * One second worth of frames is rendered and encoded up front and then repeated, so the
+ * source costs next to nothing while running. Each image is padded with JPEG comment
+ * segments to the requested size; the images stay valid JPEGs that browsers display.
+ */
+class SyntheticFrameSource extends ScheduledFrameSource {
+
+    private static final float JPEG_QUALITY = 0.85f;
+
+    /* A comment segment is its marker plus a length field counting itself and the payload. */
+    private static final int SEGMENT_OVERHEAD = 4;
+    private static final int MAX_SEGMENT_SIZE = 2 + 0xFFFF;
+
+    private final ByteBuffer[] images;
+    private int next = 0;
+
+    /**
+     * @param jpegSize Size in bytes to pad each image to, or 0 to keep the encoder's size.
+     *                 Images larger than this are kept as they are.
+     */
+    SyntheticFrameSource(int width, int height, int fps, int jpegSize) throws IOException {
+        super(fps);
+        images = new ByteBuffer[fps];
+        for (int i = 0; i < fps; i++)
+            images[i] = ByteBuffer.wrap(pad(render(width, height, i, fps), jpegSize)).asReadOnlyBuffer();
+    }
+
+    @NonNull
+    @Override
+    protected ByteBuffer nextImage() {
+        ByteBuffer image = images[next];
+        next = (next + 1) % images.length;
+        return image;
+    }
+
+    private static byte[] render(int width, int height, int index, int count) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setPaint(new GradientPaint(0, 0, Color.DARK_GRAY, width, height, Color.BLUE));
+            graphics.fillRect(0, 0, width, height);
+
+            /* A bar sweeping across once per second makes stalls visible. */
+            int barWidth = Math.max(width / 16, 1);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect((width - barWidth) * index / Math.max(count - 1, 1), 0, barWidth, height);
+
+            graphics.setColor(Color.YELLOW);
+            graphics.setFont(new Font(Font.MONOSPACED, Font.BOLD, Math.max(height / 12, 8)));
+            graphics.drawString(width + "x" + height + " #" + index, width / 20, height / 6);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIOJpegTranscoder.encode(image, JPEG_QUALITY, output);
+        return output.toByteArray();
+    }
+
+    /** Insert comment segments after SOI until the image has the given size. */
+    private static byte[] pad(byte[] jpeg, int size) {
+        int padding = size - jpeg.length;
+        if (padding < SEGMENT_OVERHEAD)
+            return jpeg;
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(size);
+        output.write(jpeg, 0, 2);
+        while (padding >= SEGMENT_OVERHEAD) {
+            int segment = Math.min(padding, MAX_SEGMENT_SIZE);
+            /* Leave enough for one more segment rather than a remainder that cannot be padded. */
+            if (padding - segment > 0 && padding - segment < SEGMENT_OVERHEAD)
+                segment -= SEGMENT_OVERHEAD;
+            int length = segment - 2;
+            output.write(0xFF);
+            output.write(0xFE);
+            output.write(length >> 8);
+            output.write(length);
+            for (int i = SEGMENT_OVERHEAD; i < segment; i++)
+                output.write(' ');
+            padding -= segment;
+        }
+        output.write(jpeg, 2, jpeg.length - 2);
+        return output.toByteArray();
+    }
+}
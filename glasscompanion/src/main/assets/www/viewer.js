@@ -0,0 +1,141 @@
+/*
+ * Viewer for one camera, served as /camera0 or /camera1, or both cameras in one image as /cameraBoth.
+ * A region of interest in the page URL, e.g. /camera0?roi=640,480,640,480, and the layout of
+ * both cameras, e.g. /cameraBoth?layout=pip, are passed on to the stream.
+ * The stream is reconnected when it breaks, e.g. after the app was paused. It is closed while
+ * the page is hidden, so a forgotten tab does not hold one of the stream slots.
+ * If the server offers /control, buttons steer the camera (both cameras for /cameraBoth),
+ * each click sending all changes as one batch.
+ */
+(function () {
+    var match = /camera(\d+|Both)/.exec(window.location.pathname);
+    var camera = match ? match[1] : "0";
+    var pageParameters = new URLSearchParams(window.location.search);
+    var roi = pageParameters.get("roi");
+    var layout = pageParameters.get("layout");
+
+    var image = document.getElementById("stream");
+    var profile = document.getElementById("profile");
+    var adaptive = document.getElementById("adaptive");
+    var changes = document.getElementById("changes");
+    var snapshot = document.getElementById("snapshot");
+
+    /* Regions are given in pixels of the high resolution profile. */
+    if (roi)
+        profile.value = "high";
+
+    var RECONNECT_DELAY_MILLIS = 2000;
+    var reconnectTimer = null;
+
+    function streamUrl() {
+        var url = "/stream" + camera + "?profile=" + profile.value;
+        if (roi)
+            url += "&roi=" + encodeURIComponent(roi);
+        if (layout)
+            url += "&layout=" + encodeURIComponent(layout);
+        var modes = [];
+        if (adaptive.checked)
+            modes.push("adaptive");
+        if (changes.checked)
+            modes.push("changes");
+        if (modes.length > 0)
+            url += "&mode=" + modes.join(",");
+        /* Force a new request even if the URL did not change. */
+        return url + "&t=" + Date.now();
+    }
+
+    function connect() {
+        reconnectTimer = null;
+        image.src = streamUrl();
+    }
+
+    function scheduleReconnect() {
+        if (reconnectTimer === null && !document.hidden)
+            reconnectTimer = setTimeout(connect, RECONNECT_DELAY_MILLIS);
+    }
+
+    function onVisibilityChange() {
+        if (!document.hidden) {
+            connect();
+            return;
+        }
+        if (reconnectTimer !== null) {
+            clearTimeout(reconnectTimer);
+            reconnectTimer = null;
+        }
+        image.removeAttribute("src");
+    }
+
+    image.addEventListener("error", scheduleReconnect);
+    document.addEventListener("visibilitychange", onVisibilityChange);
+    profile.addEventListener("change", connect);
+    adaptive.addEventListener("change", connect);
+    changes.addEventListener("change", connect);
+    /* There are no stills of the composite stream. */
+    if (camera === "Both")
+        snapshot.style.display = "none";
+    else
+        snapshot.href = "/snapshot" + camera;
+
+    var cameraControl = document.getElementById("camera-control");
+    var controlledCameras = camera === "Both" ? [0, 1] : [Number(camera)];
+    var controlState = null;
+
+    /* Send a batch of commands, e.g. {zoom0: 2, focus0: ""}, and keep the resulting state. */
+    function control(commands) {
+        var request = commands ? {method: "POST", body: new URLSearchParams(commands)} : {};
+        return fetch("/control", request).then(function (response) {
+            if (!response.ok)
+                throw new Error(response.status);
+            return response.json();
+        }).then(function (state) {
+            controlState = state;
+            cameraControl.hidden = false;
+        }).catch(function () {
+            /* No camera control on this server, or the app is paused. */
+        });
+    }
+
+    function forEachCamera(command) {
+        var commands = {};
+        if (controlState === null)
+            return;
+        controlledCameras.forEach(function (index) {
+            var state = controlState.cameras[index];
+            if (state && state.available)
+                command(commands, index, state);
+        });
+        control(commands);
+    }
+
+    function zoomBy(factor) {
+        forEachCamera(function (commands, index, state) {
+            commands["zoom" + index] = Math.max(1, Math.min(state.zoom * factor, state.maxZoom));
+        });
+    }
+
+    document.getElementById("zoom-in").addEventListener("click", function () {
+        zoomBy(2);
+    });
+    document.getElementById("zoom-out").addEventListener("click", function () {
+        zoomBy(0.5);
+    });
+    document.getElementById("focus").addEventListener("click", function () {
+        forEachCamera(function (commands, index, state) {
+            if (state.autoFocus)
+                commands["focus" + index] = "";
+        });
+    });
+    document.getElementById("reset").addEventListener("click", function () {
+        forEachCamera(function (commands, index) {
+            commands["reset" + index] = "";
+        });
+    });
+    document.getElementById("torch").addEventListener("click", function () {
+        if (controlState !== null)
+            control({torch: controlState.torch ? "off" : "on"});
+    });
+
+    control(null);
+    connect();
+})();
@@ -2,15 +2,21 @@ package dev.heinzl.glasscompanion.camera;
 
 import android.Manifest;
 import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.net.DhcpInfo;
 import android.net.wifi.WifiManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.view.View;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.iristick.smartglass.core.Headset;
 import com.iristick.smartglass.core.TouchEvent;
@@ -27,17 +33,17 @@ import com.iristick.smartglass.support.app.IristickApp;
  * Click on the info text to reset the settings.
  * For the zoom camera, a tap on the image triggers auto-focus.
  *
- * Most functionality is implemented in {@link CameraFragment}.
+ * The cameras are streamed by the {@link StreamingService}, which keeps streaming while the
+ * activity is in the background or the screen is off, until the activity is finished. The
+ * previews are shown by {@link CameraFragment}.
  */
 public class CameraActivity extends BaseActivity implements TouchEvent.Callback {
 
     /* Voice commands */
     private VoiceCommandDispatcher mVoiceCommandDispatcher;
 
-    private Server server;
-    private Thread serverThread;
-
-    private boolean torchEnabled = false;
+    /* Service streaming the cameras, null until bound. */
+    @Nullable private StreamingService streamingService;
 
     private AlertDialog.Builder builder;
     private static final String INFO_TEMPLATE = "If your phone is on the same Network/Wifi, open your browser with URL %s to view the camera video stream.";
@@ -57,6 +63,9 @@ public class CameraActivity extends BaseActivity implements TouchEvent.Callback
                 .add(R.string.camera_voice_reset, this::resetSettings1)
                 .add(R.string.camera_voice_zoom_in, () -> zoom1(2.0f))
                 .add(R.string.camera_voice_zoom_out, () -> zoom1(0.5f))
+                .add(R.string.camera_voice_record, () -> setRecording(true))
+                .add(R.string.camera_voice_stop_recording, () -> setRecording(false))
+                .add(R.string.camera_voice_save_clip, this::saveClips)
                 .build();
 
         builder = new AlertDialog.Builder(this);
@@ -65,30 +74,54 @@ public class CameraActivity extends BaseActivity implements TouchEvent.Callback
         builder.setTitle("Video Remote View")
                 .setNegativeButton("Ok", (dialog, id) -> dialog.cancel());
 
-        startServer();
+        /* Started as well as bound, so streaming goes on while the activity is in the background. */
+        Intent intent = new Intent(this, StreamingService.class);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            startForegroundService(intent);
+        else
+            startService(intent);
+        bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
     }
 
-    private void startServer() {
-        server = new Server(getCameraFragment0(), getCameraFragment1());
-        serverThread = new Thread(server);
-        serverThread.start();
+    @Override
+    protected void onDestroy() {
+        /* The fragments keep their streamers, so the previews hand their textures back to them. */
+        if (streamingService != null) {
+            streamingService.setStopListener(null);
+            streamingService = null;
+        }
+        unbindService(serviceConnection);
+        /* Leaving the camera screen ends streaming, unlike a configuration change or the screen turning off. */
+        if (isFinishing())
+            stopService(new Intent(this, StreamingService.class));
+        super.onDestroy();
     }
 
-    private void stopServer() {
-        if (server != null) {
-            server.stopServer();
-
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            streamingService = ((StreamingService.LocalBinder) binder).getService();
+            streamingService.startStreaming(new CameraStreamer.Config[] {
+                    getCameraFragment0().getConfig(), getCameraFragment1().getConfig()});
+            streamingService.setStopListener(CameraActivity.this::finish);
+            setStreamers(streamingService);
+        }
 
-            if (serverThread != null) {
-                serverThread.interrupt();
-                serverThread = null;
-            }
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            setStreamers(null);
+            streamingService = null;
         }
+    };
+
+    /** Show the previews of the streamers of the given service, or of none. */
+    private void setStreamers(@Nullable StreamingService service) {
+        CameraFragment fragment0 = getCameraFragment0();
+        if (fragment0 != null)
+            fragment0.setStreamer(service != null ? service.getStreamer(0) : null);
+        CameraFragment fragment1 = getCameraFragment1();
+        if (fragment1 != null)
+            fragment1.setStreamer(service != null ? service.getStreamer(1) : null);
     }
 
     @Override
@@ -120,10 +153,6 @@ public class CameraActivity extends BaseActivity implements TouchEvent.Callback
         if (headset != null) {
             headset.registerTouchEventCallback(this, null, Headset.TOUCHPAD_FLAG_OVERRIDE_ALL);
         }
-
-        if (serverThread == null) {
-            startServer();
-        }
     }
 
     @Override
@@ -137,8 +166,6 @@ public class CameraActivity extends BaseActivity implements TouchEvent.Callback
         if (headset != null) {
             headset.unregisterTouchEventCallback(this);
         }
-
-        stopServer();
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
@@ -152,52 +179,59 @@ public class CameraActivity extends BaseActivity implements TouchEvent.Callback
         return (CameraFragment) getSupportFragmentManager().findFragmentById(R.id.camera0);
     }
 
+    /** Streamer of the given camera, or null if not streaming. */
+    @Nullable
+    private CameraStreamer getStreamer(int index) {
+        return streamingService != null ? streamingService.getStreamer(index) : null;
+    }
+
     private void triggerAF1() {
-        CameraFragment fragment = getCameraFragment1();
-        if (fragment == null)
+        CameraStreamer streamer = getStreamer(1);
+        if (streamer == null)
             return;
-        fragment.triggerAF();
+        streamer.triggerAF();
     }
 
     private void triggerAF0() {
-        CameraFragment fragment = getCameraFragment0();
-        if (fragment == null)
+        CameraStreamer streamer = getStreamer(0);
+        if (streamer == null)
             return;
-        fragment.triggerAF();
+        streamer.triggerAF();
     }
 
     private void zoom1(float factor) {
-        CameraFragment fragment = getCameraFragment1();
-        if (fragment == null)
+        CameraStreamer streamer = getStreamer(1);
+        if (streamer == null)
             return;
-        fragment.zoom(factor);
+        streamer.zoom(factor);
     }
 
     private void zoom0(float factor) {
-        CameraFragment fragment = getCameraFragment0();
-        if (fragment == null)
+        CameraStreamer streamer = getStreamer(0);
+        if (streamer == null)
             return;
-        fragment.zoom(factor);
+        streamer.zoom(factor);
     }
 
     private void resetSettings1() {
-        CameraFragment fragment = getCameraFragment1();
-        if (fragment == null)
+        CameraStreamer streamer = getStreamer(1);
+        if (streamer == null)
             return;
-        fragment.resetSettings();
+        streamer.resetSettings();
     }
 
     private void resetSettings0() {
-        CameraFragment fragment = getCameraFragment0();
-        if (fragment == null)
+        CameraStreamer streamer = getStreamer(0);
+        if (streamer == null)
             return;
-        fragment.resetSettings();
+        streamer.resetSettings();
     }
 
     @Override
     public void onTouchEvent(@NonNull TouchEvent event) {
         switch (event.getGestureCode()) {
             case TouchEvent.GESTURE_LONG_TAP:
+                toggleRecording();
                 break;
             case TouchEvent.GESTURE_TAP:
                 triggerAF1();
@@ -215,12 +249,37 @@ public class CameraActivity extends BaseActivity implements TouchEvent.Callback
     }
 
     private void toggleLight() {
-        Headset headset = IristickApp.getHeadset();
+        HeadsetCameraControl cameraControl = streamingService != null ? streamingService.getCameraControl() : null;
+        if (cameraControl == null)
+            return;
+        cameraControl.setTorchEnabled(!cameraControl.isTorchEnabled());
+    }
 
-        if (headset != null) {
-            torchEnabled = !torchEnabled;
-            headset.setTorchMode(torchEnabled);
+    private void setRecording(boolean recording) {
+        CameraStreamer streamer0 = getStreamer(0);
+        if (streamer0 != null)
+            streamer0.setRecording(recording);
+        CameraStreamer streamer1 = getStreamer(1);
+        if (streamer1 != null)
+            streamer1.setRecording(recording);
+    }
+
+    /** Save the last seconds of both cameras, written in the background. */
+    private void saveClips() {
+        boolean saved = false;
+        for (int i = 0; i < 2; i++) {
+            CameraStreamer streamer = getStreamer(i);
+            if (streamer != null && streamer.getPreEventBuffer().saveClip() != null)
+                saved = true;
         }
+        Toast.makeText(this, saved ? R.string.camera_clip_saved : R.string.camera_clip_empty, Toast.LENGTH_SHORT).show();
+    }
+
+    private void toggleRecording() {
+        CameraStreamer streamer = getStreamer(0);
+        if (streamer == null)
+            return;
+        setRecording(!streamer.isRecording());
     }
 
     private void zoomIn() {
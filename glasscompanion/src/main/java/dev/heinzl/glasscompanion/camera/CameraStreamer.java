@@ -0,0 +1,929 @@
+package dev.heinzl.glasscompanion.camera;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.TypedArray;
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.SurfaceTexture;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.iristick.smartglass.core.Headset;
+import com.iristick.smartglass.core.camera.CameraCharacteristics;
+import com.iristick.smartglass.core.camera.CameraDevice;
+import com.iristick.smartglass.core.camera.CaptureAdapter;
+import com.iristick.smartglass.core.camera.CaptureFailure;
+import com.iristick.smartglass.core.camera.CaptureListener;
+import com.iristick.smartglass.core.camera.CaptureRequest;
+import com.iristick.smartglass.core.camera.CaptureResult;
+import com.iristick.smartglass.core.camera.CaptureSession;
+import dev.heinzl.glasscompanion.R;
+import dev.heinzl.glasscompanion.server.CameraControl;
+import dev.heinzl.glasscompanion.stream.FrameBuffer;
+import dev.heinzl.glasscompanion.stream.FrameLog;
+import dev.heinzl.glasscompanion.stream.FrameRecorder;
+import dev.heinzl.glasscompanion.stream.FrameSource;
+import dev.heinzl.glasscompanion.stream.Jpeg;
+import dev.heinzl.glasscompanion.stream.ParallelJpegEncoder;
+import dev.heinzl.glasscompanion.stream.PreEventBuffer;
+import dev.heinzl.glasscompanion.stream.SnapshotCache;
+import dev.heinzl.glasscompanion.stream.StreamProfile;
+import com.iristick.smartglass.support.app.IristickApp;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams one camera of the headset, independent of any user interface.
+ *
+ * Once started, the camera stays open and the capture session configured until the streamer
+ * is closed, usually by the {@link StreamingService} owning it. A preview can be hidden and
+ * its view destroyed at any time: the preview texture stays an output of the session and is
+ * only dropped from the capture request, so showing it again, even in a new view, neither
+ * reopens the camera nor recreates the session.
+ *
+ * Must be used on the main thread.
+ */
+class CameraStreamer implements FrameSource {
+
+    /** Settings of a streamer, from the XML attributes of a {@link CameraFragment}. */
+    static final class Config {
+        final int cameraIndex;
+        final int imageQueueDepth;
+        final int captureFormat;
+        final int jpegQuality;
+
+        /** Default settings for the given camera. */
+        Config(int cameraIndex) {
+            this(cameraIndex, DEFAULT_IMAGE_QUEUE_DEPTH, CAPTURE_FORMAT_JPEG, DEFAULT_JPEG_QUALITY);
+        }
+
+        Config(int cameraIndex, int imageQueueDepth, int captureFormat, int jpegQuality) {
+            this.cameraIndex = cameraIndex;
+            this.imageQueueDepth = Math.max(1, imageQueueDepth);
+            this.captureFormat = captureFormat;
+            this.jpegQuality = Math.max(1, Math.min(100, jpegQuality));
+        }
+
+        /** Read the {@code CameraFragment} attributes, see attrs.xml. */
+        @NonNull
+        static Config fromAttributes(@NonNull Context context, @NonNull AttributeSet attrs) {
+            TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.CameraFragment);
+            Config config = new Config(a.getInt(R.styleable.CameraFragment_camera_index, 0),
+                    a.getInt(R.styleable.CameraFragment_image_queue_depth, DEFAULT_IMAGE_QUEUE_DEPTH),
+                    a.getInt(R.styleable.CameraFragment_capture_format, CAPTURE_FORMAT_JPEG),
+                    a.getInt(R.styleable.CameraFragment_jpeg_quality, DEFAULT_JPEG_QUALITY));
+            a.recycle();
+            return config;
+        }
+    }
+
+    /** Notified on the main thread when the info text of the camera changes. */
+    interface InfoListener {
+        void onInfoChanged(@NonNull String info);
+    }
+
+    /* We can hardcode the desired preview frame size here.
+     * If the camera device does not support the desired frame size, it will choose another capture
+     * frame size as appropriate and crop the resulting frames to match the desired aspect ratio.
+     * Note that while the aspect ratio is preserved, the resulting frame size may still be smaller
+     * or bigger than the desired frame size.  This is not a problem in this case, as the
+     * TextureView used to show the preview performs scaling automatically.
+     */
+    static final int FRAME_WIDTH = 640;
+    static final int FRAME_HEIGHT = 480;
+
+    /* Stills younger than this are served from the cache instead of capturing a new one. */
+    private static final long SNAPSHOT_MAX_AGE_MILLIS = 1000;
+
+    /*
+     * Images each reader may hold at a time. More than one lets the camera deliver the next
+     * frame while the previous one is still being copied.
+     */
+    private static final int DEFAULT_IMAGE_QUEUE_DEPTH = 3;
+
+    /*
+     * Capture modes, see the {@code auto:capture_format} XML attribute: JPEG images encoded by
+     * the camera, or YUV images encoded on the phone at {@code auto:jpeg_quality}.
+     */
+    private static final int CAPTURE_FORMAT_JPEG = 0;
+    private static final int CAPTURE_FORMAT_YUV = 1;
+    private static final int DEFAULT_JPEG_QUALITY = 85;
+
+    /* YUV images waiting longer than this for an encoder are dropped. */
+    private static final long MAX_ENCODE_QUEUE_MILLIS = 100;
+
+    /* Encoder workers shared by both cameras, one per core. */
+    private static final int ENCODER_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final AtomicInteger ENCODER_THREAD_COUNT = new AtomicInteger();
+    private static final ExecutorService ENCODER_POOL = Executors.newFixedThreadPool(ENCODER_THREADS, runnable -> {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+            runnable.run();
+        }, "JpegEncoder" + ENCODER_THREAD_COUNT.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /*
+     * Capture requests are sent at most once per frame interval, measured from the capture
+     * results. Bounded so a slow frame rate does not make gestures sluggish.
+     */
+    private static final long DEFAULT_FRAME_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1) / 30;
+    private static final long MAX_REQUEST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /* Recording segment size and the total storage budget per camera. */
+    private static final long RECORDING_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final long RECORDING_MAX_BYTES = 2L * 1024 * 1024 * 1024;
+
+    /* Seconds of the default stream profile kept for clips, and the memory budget for them. */
+    private static final long PRE_EVENT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final int PRE_EVENT_BYTES = 32 * 1024 * 1024;
+
+    /* Target bit of the preview surface, after those of the stream profiles. */
+    private static final int PREVIEW_TARGET = 1 << StreamProfile.values().length;
+
+    private final Context context;
+    private final int mCameraIndex;
+
+    /*
+     * The preview texture is kept when its view is destroyed, so the session keeps its outputs.
+     * A texture without view is owned by the streamer and released when it is closed.
+     */
+    @Nullable private SurfaceTexture mSurfaceTexture;
+    @Nullable private Surface mSurface;
+    private boolean previewAttached = false;
+    private boolean previewVisible = false;
+
+    @Nullable private CameraDevice mCamera;
+    private boolean cameraOpening = false;
+    @Nullable private CaptureSession mCaptureSession;
+
+    /*
+     * One image reader and frame buffer per stream profile. All readers are configured as
+     * outputs of the capture session, but only those with subscribers are targeted by the
+     * capture request, so unused resolutions cost neither bandwidth nor encoding.
+     * Readers deliver JPEG, or YUV images compressed by one encoder per profile.
+     */
+    private final Map<StreamProfile, ImageReader> imageReaders = new EnumMap<>(StreamProfile.class);
+    private final Map<StreamProfile, FrameBuffer> frameBuffers = new EnumMap<>(StreamProfile.class);
+    private final List<ParallelJpegEncoder> encoders = new ArrayList<>();
+    private final int captureFormat;
+    private final int jpegQuality;
+    private int imageReaderFormat;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /*
+     * Images are acquired and copied on a thread per camera, so UI work on the main thread
+     * cannot stall capture and both cameras copy in parallel.
+     */
+    private final int imageQueueDepth;
+    @Nullable private HandlerThread captureThread;
+    @Nullable private Handler captureHandler;
+
+    /* Maps sensor timestamps of capture results to the local clock, on the capture thread. */
+    private final SensorClock sensorClock = new SensorClock();
+
+    /* Stills are captured at the largest size supported by the camera, known once it is queried. */
+    @Nullable private ImageReader stillImageReader;
+    private final SnapshotCache snapshotCache = new SnapshotCache(() -> mainHandler.post(this::captureStill), SNAPSHOT_MAX_AGE_MILLIS);
+
+    /* On-device recording of the default stream profile. */
+    private final FrameLog frameLog;
+    private final FrameRecorder frameRecorder;
+    private final PreEventBuffer preEventBuffer;
+
+    /* Camera characteristics */
+    private int mAFMode;
+    private float mMaxZoom;
+    private Point mMaxOffset;
+
+    /* Current settings */
+    private float mZoom = 1.0f;
+    @Nullable private Point mOffset = null;
+
+    /*
+     * Settings changes, e.g. from each event of a pinch gesture, only mark the capture request
+     * as outdated. One update per frame interval sends the request for the latest settings,
+     * see scheduleCapture().
+     */
+    private boolean captureScheduled = false;
+    private boolean afTriggerPending = false;
+    private long lastRequestTime = 0;
+    private volatile long frameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS;
+    /* Capture thread only. */
+    private long lastSensorTimestamp = 0;
+    private final CaptureRequestCache requestCache = new CaptureRequestCache();
+    @Nullable private CaptureRequest repeatingRequest;
+
+    private String info = "";
+    @Nullable private InfoListener infoListener;
+
+    CameraStreamer(@NonNull Context context, @NonNull Config config) {
+        this.context = context.getApplicationContext();
+        mCameraIndex = config.cameraIndex;
+        imageQueueDepth = config.imageQueueDepth;
+        captureFormat = config.captureFormat;
+        jpegQuality = config.jpegQuality;
+
+        for (StreamProfile profile : StreamProfile.values()) {
+            FrameBuffer frameBuffer = new FrameBuffer();
+            /* Retarget the capture request whenever a profile gains its first or loses its last viewer. */
+            frameBuffer.setSubscriberListener((buffer, hasSubscribers) -> mainHandler.post(this::scheduleCapture));
+            frameBuffers.put(profile, frameBuffer);
+        }
+
+        File storage = context.getExternalFilesDir(null);
+        if (storage == null)
+            storage = context.getFilesDir();
+        frameLog = new FrameLog(new File(storage, "recordings/camera" + mCameraIndex), RECORDING_SEGMENT_BYTES, RECORDING_MAX_BYTES);
+        frameRecorder = new FrameRecorder(getFrameBuffer(), frameLog);
+        preEventBuffer = new PreEventBuffer(getFrameBuffer(), PRE_EVENT_BYTES, PRE_EVENT_MILLIS,
+                new File(storage, "captures"), "camera" + mCameraIndex);
+
+        captureThread = new HandlerThread("CameraCapture" + mCameraIndex, Process.THREAD_PRIORITY_DISPLAY);
+        captureThread.start();
+        captureHandler = new Handler(captureThread.getLooper());
+    }
+
+    /**
+     * Open the camera, unless it is open or being opened already. If it cannot be opened, e.g.
+     * because the headset is not connected yet, the info text tells why; call again to retry.
+     */
+    void start() {
+        if (mCamera != null || cameraOpening || captureThread == null)
+            return;
+
+        /* Keeps the default profile captured even without viewers, so there is always something to save. */
+        preEventBuffer.start();
+
+        /* Query the connected headset. */
+        Headset headset = IristickApp.getHeadset();
+        if (headset == null) {
+            setInfo(context.getString(R.string.camera_waiting_for_headset));
+            return;
+        }
+
+        /* Find camera. */
+        String[] cameras = headset.getCameraIdList();
+        if (mCameraIndex >= cameras.length ||
+                context.checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            setInfo(context.getString(R.string.camera_not_available));
+            return;
+        }
+        String cameraId = cameras[mCameraIndex];
+        CameraCharacteristics characteristics = headset.getCameraCharacteristics(cameraId);
+
+        /* Check whether this camera has auto focus control. */
+        mAFMode = CaptureRequest.CONTROL_AF_MODE_OFF;
+        int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (afModes != null) {
+            for (int afMode : afModes) {
+                switch (afMode) {
+                case CaptureRequest.CONTROL_AF_MODE_AUTO:
+                    if (mAFMode == CaptureRequest.CONTROL_AF_MODE_OFF)
+                        mAFMode = afMode;
+                    break;
+                case CaptureRequest.CONTROL_AF_MODE_LASER_ASSISTED:
+                    mAFMode = afMode; // we prefer laser-assisted AF if available
+                    break;
+                }
+            }
+        }
+
+        /* Get the maximum digital zoom level. */
+        mMaxZoom = characteristics.get(CameraCharacteristics.SCALER_MAX_ZOOM, 1.0f);
+
+        /* Get the maximum frame offset. */
+        mMaxOffset = characteristics.get(CameraCharacteristics.SCALER_MAX_OFFSET);
+        if (mMaxOffset == null)
+            mMaxOffset = new Point(0, 0);
+
+        /* Prepare the stream readers and still captures at the largest supported size. */
+        setupImageReaders(characteristics);
+        setupStillImageReader(characteristics);
+
+        /* Open the camera. */
+        cameraOpening = true;
+        headset.openCamera(cameraId, mCameraListener, null);
+    }
+
+    /** Close the camera and release all resources. The streamer cannot be started again. */
+    void close() {
+        if (mCamera != null) {
+            mCamera.close();
+            mCaptureSession = null;
+            mCamera = null;
+        }
+        setRecording(false);
+        preEventBuffer.stop();
+
+        closeImageReaders();
+        if (stillImageReader != null) {
+            stillImageReader.close();
+            stillImageReader = null;
+        }
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+        /* An attached texture is still used by its view, which releases it when destroyed. */
+        if (mSurfaceTexture != null && !previewAttached)
+            mSurfaceTexture.release();
+        mSurfaceTexture = null;
+        previewAttached = false;
+        previewVisible = false;
+        infoListener = null;
+        if (captureThread != null) {
+            captureThread.quitSafely();
+            captureThread = null;
+            captureHandler = null;
+        }
+    }
+
+    /**
+     * Show the frames in the given texture of a preview view. Attaching the texture of the
+     * previous preview again only retargets the capture request, a new texture recreates the
+     * session.
+     */
+    void attachPreview(@NonNull SurfaceTexture texture) {
+        if (captureThread == null)
+            return;
+        previewAttached = true;
+        previewVisible = true;
+        if (texture == mSurfaceTexture) {
+            scheduleCapture();
+            return;
+        }
+
+        /* The old surface must not be released while the session still outputs to it. */
+        if (mCaptureSession != null) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+        if (mSurface != null)
+            mSurface.release();
+        if (mSurfaceTexture != null)
+            mSurfaceTexture.release();
+
+        /* Set the desired camera resolution. */
+        mSurfaceTexture = texture;
+        mSurfaceTexture.setDefaultBufferSize(FRAME_WIDTH, FRAME_HEIGHT);
+        mSurface = new Surface(mSurfaceTexture);
+        createCaptureSession();
+    }
+
+    /** Stop or resume showing frames in the attached preview, e.g. while it is off screen. */
+    void setPreviewVisible(boolean visible) {
+        previewVisible = visible && previewAttached;
+        scheduleCapture();
+    }
+
+    /**
+     * Take over the texture of a destroyed preview view. The texture is kept for the next
+     * {@link #attachPreview(SurfaceTexture)}, see {@link #getPreviewTexture()}.
+     */
+    void detachPreview() {
+        previewAttached = false;
+        setPreviewVisible(false);
+    }
+
+    /** Texture of the current or last attached preview, or null if none. */
+    @Nullable
+    SurfaceTexture getPreviewTexture() {
+        return mSurfaceTexture;
+    }
+
+    /** Set the listener for the info text, which is notified of the current text right away. */
+    void setInfoListener(@Nullable InfoListener listener) {
+        infoListener = listener;
+        if (listener != null)
+            listener.onInfoChanged(info);
+    }
+
+    /** Buffer receiving the frames of the given stream profile of this camera. */
+    @NonNull
+    @Override
+    public FrameBuffer getFrameBuffer(@NonNull StreamProfile profile) {
+        return Objects.requireNonNull(frameBuffers.get(profile));
+    }
+
+    /** Log of recorded frames of this camera. */
+    @NonNull
+    @Override
+    public FrameLog getFrameLog() {
+        return frameLog;
+    }
+
+    public boolean isRecording() {
+        return frameRecorder.isRecording();
+    }
+
+    /** Start or stop recording the stream of this camera to device storage. */
+    public void setRecording(boolean recording) {
+        if (recording)
+            frameRecorder.start();
+        else
+            frameRecorder.stop();
+        updateInfo();
+    }
+
+    /** Buffer of the last seconds of this camera, saved as clips. */
+    @NonNull
+    @Override
+    public PreEventBuffer getPreEventBuffer() {
+        return preEventBuffer;
+    }
+
+    /** Cache of full resolution stills of this camera, capturing new ones on demand. */
+    @NonNull
+    @Override
+    public SnapshotCache getSnapshotCache() {
+        return snapshotCache;
+    }
+
+    /**
+     * Create the image readers of the stream profiles in the configured capture format.
+     * Readers are kept if the format did not change.
+     */
+    private void setupImageReaders(@NonNull CameraCharacteristics characteristics) {
+        int format = captureFormat == CAPTURE_FORMAT_YUV ? chooseYuvFormat(characteristics) : ImageFormat.JPEG;
+        if (!imageReaders.isEmpty() && imageReaderFormat == format)
+            return;
+        closeImageReaders();
+        imageReaderFormat = format;
+
+        for (StreamProfile profile : StreamProfile.values()) {
+            FrameBuffer frameBuffer = getFrameBuffer(profile);
+            ImageReader imageReader = ImageReader.newInstance(profile.width, profile.height, format, imageQueueDepth);
+
+            if (format == ImageFormat.JPEG) {
+                imageReader.setOnImageAvailableListener(reader -> {
+                    long availableTime = System.nanoTime();
+                    Image image = reader.acquireLatestImage();
+
+                    if (image != null) {
+                        long captureTime = sensorClock.toCaptureTime(image.getTimestamp(), availableTime);
+                        /* Publish only the JPEG itself, the plane buffer is padded up to the maximum size. */
+                        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                        buffer.limit(buffer.position() + Jpeg.findEndOfImage(buffer));
+                        frameBuffer.publish(buffer, captureTime, availableTime);
+                        image.close();
+                    }
+                }, captureHandler);
+            } else {
+                /* Up to one image waiting per worker, so all cores can encode this profile. */
+                ParallelJpegEncoder encoder = new ParallelJpegEncoder(frameBuffer, ENCODER_POOL, ENCODER_THREADS, MAX_ENCODE_QUEUE_MILLIS);
+                YuvFrameEncoder yuvEncoder = new YuvFrameEncoder(encoder, jpegQuality, 2 * ENCODER_THREADS);
+                encoders.add(encoder);
+                imageReader.setOnImageAvailableListener(reader -> {
+                    long availableTime = System.nanoTime();
+                    Image image = reader.acquireLatestImage();
+
+                    if (image != null) {
+                        yuvEncoder.submit(image, sensorClock.toCaptureTime(image.getTimestamp(), availableTime), availableTime);
+                        image.close();
+                    }
+                }, captureHandler);
+            }
+            imageReaders.put(profile, imageReader);
+        }
+    }
+
+    /**
+     * Pick the YUV format to capture, preferring 4:2:0 over the larger YUY2.
+     * Fall back to JPEG if the camera offers no YUV format.
+     */
+    private static int chooseYuvFormat(@NonNull CameraCharacteristics characteristics) {
+        CameraCharacteristics.StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map != null) {
+            for (int format : new int[] {ImageFormat.YUV_420_888, ImageFormat.YV12, ImageFormat.YUY2}) {
+                if (map.hasFormat(format))
+                    return format;
+            }
+        }
+        return ImageFormat.JPEG;
+    }
+
+    private void closeImageReaders() {
+        for (ParallelJpegEncoder encoder : encoders)
+            encoder.close();
+        encoders.clear();
+        for (ImageReader reader : imageReaders.values())
+            reader.close();
+        imageReaders.clear();
+    }
+
+    /**
+     * Create the image reader for stills with the largest JPEG size the camera supports.
+     */
+    private void setupStillImageReader(@NonNull CameraCharacteristics characteristics) {
+        CameraCharacteristics.StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Point largest = null;
+        if (map != null) {
+            Point[] sizes = map.hasFormat(ImageFormat.JPEG) ? map.getSizes(ImageFormat.JPEG) : map.getSizes();
+            if (sizes != null) {
+                for (Point size : sizes) {
+                    if (largest == null || (long) size.x * size.y > (long) largest.x * largest.y)
+                        largest = size;
+                }
+            }
+        }
+        if (largest == null)
+            largest = new Point(StreamProfile.HIGH.width, StreamProfile.HIGH.height);
+
+        if (stillImageReader != null) {
+            if (stillImageReader.getWidth() == largest.x && stillImageReader.getHeight() == largest.y)
+                return;
+            stillImageReader.close();
+        }
+
+        stillImageReader = ImageReader.newInstance(largest.x, largest.y, ImageFormat.JPEG, 1);
+        stillImageReader.setOnImageAvailableListener(reader -> {
+            Image image = reader.acquireLatestImage();
+
+            if (image != null) {
+                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                buffer.limit(buffer.position() + Jpeg.findEndOfImage(buffer));
+                snapshotCache.publish(buffer);
+                image.close();
+            }
+        }, captureHandler);
+    }
+
+    /**
+     * Try to create a Capture Session, if the Iristick camera is open. The preview is an
+     * output only if a texture was attached before.
+     */
+    private void createCaptureSession() {
+        if (mCamera == null)
+            return;
+
+        /* Create the capture session. */
+        mCaptureSession = null;
+        List<Surface> outputs = new ArrayList<>();
+
+        if (mSurface != null)
+            outputs.add(mSurface);
+        for (ImageReader imageReader : imageReaders.values())
+            outputs.add(imageReader.getSurface());
+        if (stillImageReader != null)
+            outputs.add(stillImageReader.getSurface());
+
+        mCamera.createCaptureSession(outputs, mCaptureSessionListener, null);
+    }
+
+    /** Bit mask of the outputs to target: profiles with subscribers and the visible preview. */
+    private int getTargets() {
+        int targets = 0;
+        for (StreamProfile profile : StreamProfile.values()) {
+            if (getFrameBuffer(profile).hasSubscribers())
+                targets |= 1 << profile.ordinal();
+        }
+        if (previewVisible && mSurface != null)
+            targets |= PREVIEW_TARGET;
+        return targets;
+    }
+
+    /**
+     * Create a capture request with all current settings applied.
+     * @param triggerAF True if the request should trigger auto focus (see {@link #triggerAF()}).
+     */
+    @NonNull
+    private CaptureRequest createCaptureRequest(boolean triggerAF) {
+        /*
+         * Create a builder, specifying the intended use through the template.
+         * This sets some sane defaults for our use case.
+         */
+        CaptureRequest.Builder builder = Objects.requireNonNull(mCamera).createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+
+        /* Add target outputs. */
+        int targets = getTargets();
+        if ((targets & PREVIEW_TARGET) != 0)
+            builder.addTarget(Objects.requireNonNull(mSurface));
+        for (StreamProfile profile : StreamProfile.values()) {
+            if ((targets & 1 << profile.ordinal()) != 0)
+                builder.addTarget(Objects.requireNonNull(imageReaders.get(profile)).getSurface());
+        }
+
+        /* Set parameters. */
+        builder.set(CaptureRequest.SCALER_ZOOM, mZoom);
+        if (mOffset != null)
+            builder.set(CaptureRequest.SCALER_OFFSET, mOffset);
+        builder.set(CaptureRequest.CONTROL_AF_MODE, mAFMode);
+        if (triggerAF && mAFMode != CaptureRequest.CONTROL_AF_MODE_OFF)
+            builder.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_START);
+
+        /* Build the capture request. */
+        return builder.build();
+    }
+
+    /** Get the capture request for the current settings, built before if they were used already. */
+    @NonNull
+    private CaptureRequest getCaptureRequest(boolean triggerAF) {
+        return requestCache.get(mZoom, mOffset, getTargets(), triggerAF, this::createCaptureRequest);
+    }
+
+    /**
+     * Send the capture request for the current settings once the frame interval since the
+     * previous request has passed. Changes until then are merged into the same request.
+     */
+    private void scheduleCapture() {
+        if (captureScheduled)
+            return;
+        captureScheduled = true;
+        long delay = lastRequestTime + frameIntervalNanos - System.nanoTime();
+        mainHandler.postDelayed(this::setCapture, Math.max(0, TimeUnit.NANOSECONDS.toMillis(delay)));
+    }
+
+    /**
+     * Start the stream by setting a repeating capture request, and trigger auto focus if asked
+     * for in the meantime. The repeating request is only replaced if the settings changed.
+     * Without preview and subscribers the camera idles in the configured session.
+     * Do nothing if the capture session is not configured.
+     */
+    private void setCapture() {
+        captureScheduled = false;
+        if (mCaptureSession == null) {
+            afTriggerPending = false;
+            return;
+        }
+
+        if (getTargets() == 0) {
+            /* A request needs at least one target, and nobody would see the frames. */
+            if (repeatingRequest != null) {
+                mCaptureSession.stopRepeating();
+                repeatingRequest = null;
+            }
+            afTriggerPending = false;
+            updateInfo();
+            return;
+        }
+
+        CaptureRequest request = getCaptureRequest(false);
+        if (request != repeatingRequest) {
+            mCaptureSession.setRepeatingRequest(request, captureListener, captureHandler);
+            repeatingRequest = request;
+            lastRequestTime = System.nanoTime();
+        }
+        if (afTriggerPending) {
+            /*
+             * Note: CONTROL_AF_TRIGGER_START should only be specified for one frame.  Hence, the
+             * use of capture() here.
+             */
+            afTriggerPending = false;
+            mCaptureSession.capture(getCaptureRequest(true), captureListener, captureHandler);
+            lastRequestTime = System.nanoTime();
+        }
+
+        updateInfo();
+    }
+
+    /** Update info text from the current settings. */
+    private void updateInfo() {
+        StringBuilder str = new StringBuilder();
+        if (isRecording()) {
+            str.append(context.getString(R.string.camera_info_recording));
+        }
+        if (mZoom > 1.0f) {
+            if (str.length() > 0)
+                str.append("\n");
+            str.append(context.getString(R.string.camera_info_zoom, (int) mZoom));
+        }
+        if (mOffset != null) {
+            if (str.length() > 0)
+                str.append("\n");
+            str.append(context.getString(R.string.camera_info_offset, mOffset.x, mOffset.y));
+        }
+        setInfo(str.toString());
+    }
+
+    /* Setting the same text again would still lay out the view. */
+    private void setInfo(@NonNull String text) {
+        if (text.equals(info))
+            return;
+        info = text;
+        if (infoListener != null)
+            infoListener.onInfoChanged(text);
+    }
+
+    /**
+     * Trigger auto-focus.
+     * Do nothing if the capture session is not configured or the camera does not support
+     * auto-focus.
+     */
+    public void triggerAF() {
+        if (mCaptureSession == null || mAFMode == CaptureRequest.CONTROL_AF_MODE_OFF)
+            return;
+        afTriggerPending = true;
+        scheduleCapture();
+    }
+
+    /**
+     * Capture one full resolution still for the snapshot cache, alongside the repeating request.
+     * Fail the pending snapshot requests if the capture session is not configured.
+     */
+    private void captureStill() {
+        if (mCaptureSession == null || mCamera == null || stillImageReader == null) {
+            snapshotCache.captureFailed();
+            return;
+        }
+
+        CaptureRequest.Builder builder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        builder.addTarget(stillImageReader.getSurface());
+        builder.set(CaptureRequest.SCALER_ZOOM, mZoom);
+        if (mOffset != null)
+            builder.set(CaptureRequest.SCALER_OFFSET, mOffset);
+        builder.set(CaptureRequest.CONTROL_AF_MODE, mAFMode);
+
+        mCaptureSession.capture(builder.build(), new CaptureAdapter() {
+            @Override
+            public void onCaptureFailed(CaptureSession session, CaptureRequest request, CaptureFailure failure) {
+                snapshotCache.captureFailed();
+            }
+        }, mainHandler);
+    }
+
+    /** Reset capture settings */
+    public void resetSettings() {
+        if (mCaptureSession == null)
+            return;
+        mZoom = 1.0f;
+        mOffset = null;
+        scheduleCapture();
+    }
+
+    /** Adjust zoom factor */
+    public void zoom(float factor) {
+        if (mCaptureSession == null)
+            return;
+        setZoom(mZoom * factor);
+        scheduleCapture();
+    }
+
+    /** Move the image offset */
+    public void move(int dx, int dy) {
+        if (mCaptureSession == null)
+            return;
+        if (mOffset == null)
+            setOffset(dx, dy);
+        else
+            setOffset(mOffset.x + dx, mOffset.y + dy);
+        scheduleCapture();
+    }
+
+    /**
+     * Apply a batch of remote commands as one capture request update.
+     * @return The resulting settings.
+     */
+    @NonNull
+    CameraControl.CameraState applyCommand(@NonNull CameraControl.Command command) {
+        if (mCaptureSession != null) {
+            if (command.isReset()) {
+                mZoom = 1.0f;
+                mOffset = null;
+            }
+            if (command.getZoom() != null)
+                setZoom(command.getZoom());
+            if (command.hasOffset())
+                setOffset(command.getOffsetX(), command.getOffsetY());
+            if (command.isFocus() && mAFMode != CaptureRequest.CONTROL_AF_MODE_OFF)
+                afTriggerPending = true;
+            scheduleCapture();
+        }
+        return getCameraState();
+    }
+
+    /** Current settings and their limits. */
+    @NonNull
+    CameraControl.CameraState getCameraState() {
+        boolean available = mCaptureSession != null;
+        int offsetX = mOffset != null ? mOffset.x : 0;
+        int offsetY = mOffset != null ? mOffset.y : 0;
+        int maxOffsetX = mMaxOffset != null ? mMaxOffset.x : 0;
+        int maxOffsetY = mMaxOffset != null ? mMaxOffset.y : 0;
+        return new CameraControl.CameraState(available, mZoom, Math.max(1.0f, mMaxZoom), offsetX, offsetY,
+                maxOffsetX, maxOffsetY, mAFMode != CaptureRequest.CONTROL_AF_MODE_OFF);
+    }
+
+    private void setZoom(float zoom) {
+        mZoom = Math.max(1.0f, Math.min(zoom, mMaxZoom));
+    }
+
+    private void setOffset(int x, int y) {
+        if (mOffset == null)
+            mOffset = new Point(0, 0);
+        mOffset.x = Math.max(-mMaxOffset.x, Math.min(x, mMaxOffset.x));
+        mOffset.y = Math.max(-mMaxOffset.y, Math.min(y, mMaxOffset.y));
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Camera listeners implementations
+
+    private final CameraDevice.Listener mCameraListener = new CameraDevice.Listener() {
+        @Override
+        public void onOpened(@NonNull CameraDevice device) {
+            cameraOpening = false;
+            /* Closed while opening. */
+            if (captureThread == null) {
+                device.close();
+                return;
+            }
+            mCamera = device;
+            createCaptureSession();
+        }
+
+        @Override
+        public void onClosed(@NonNull CameraDevice device) {
+            if (mCamera == device)
+                mCamera = null;
+        }
+
+        @Override
+        public void onDisconnected(@NonNull CameraDevice device) {
+            /* The next start() opens the camera again, e.g. once the headset is reconnected. */
+            cameraOpening = false;
+            if (mCamera == device) {
+                mCaptureSession = null;
+                mCamera = null;
+            }
+        }
+
+        @Override
+        public void onError(@NonNull CameraDevice device, int error) {
+            cameraOpening = false;
+            setInfo(context.getString(R.string.camera_error, error));
+        }
+    };
+
+    /* Delivered on the capture thread, ahead of or along with the images of the capture. */
+    private final CaptureListener captureListener = new CaptureAdapter() {
+        @Override
+        public void onCaptureCompleted(CaptureSession session, CaptureRequest request, CaptureResult result) {
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (timestamp == null)
+                return;
+            sensorClock.onCaptureCompleted(timestamp);
+            long interval = timestamp - lastSensorTimestamp;
+            if (lastSensorTimestamp != 0 && interval > 0)
+                frameIntervalNanos = Math.min(interval, MAX_REQUEST_INTERVAL_NANOS);
+            lastSensorTimestamp = timestamp;
+        }
+    };
+
+    private final CaptureSession.Listener mCaptureSessionListener = new CaptureSession.Listener() {
+        @Override
+        public void onConfigured(@NonNull CaptureSession session) {
+            mCaptureSession = session;
+            /* Requests of the previous session target its surfaces. */
+            requestCache.clear();
+            repeatingRequest = null;
+            setCapture();
+        }
+
+        @Override
+        public void onConfigureFailed(@NonNull CaptureSession session, int error) {
+            setInfo(context.getString(R.string.camera_error_configure));
+        }
+
+        @Override
+        public void onClosed(@NonNull CaptureSession session) {
+            if (mCaptureSession == session)
+                mCaptureSession = null;
+        }
+
+        @Override
+        public void onActive(@NonNull CaptureSession session) {
+        }
+
+        @Override
+        public void onCaptureQueueEmpty(@NonNull CaptureSession session) {
+        }
+
+        @Override
+        public void onReady(@NonNull CaptureSession session) {
+        }
+    };
+
+}
@@ -0,0 +1,99 @@
+package dev.heinzl.glasscompanion.camera;
+
+import android.graphics.Point;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.iristick.smartglass.core.camera.CaptureRequest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Built capture requests of one capture session, by the settings they were built with.
+ *
+ * Capture requests are immutable, so going back to earlier settings, e.g. resetting the zoom
+ * or a profile losing its last viewer, reuses the request built before instead of building
+ * it again. The least recently used requests are evicted. Requests reference the surfaces of
+ * the session, hence the cache must be cleared when the session is replaced.
+ *
+ * Not thread-safe, used on the main thread only.
+ */
+class CaptureRequestCache {
+
+    /** Builds the request for the current settings on a cache miss. */
+    interface Factory {
+        @NonNull
+        CaptureRequest create(boolean triggerAF);
+    }
+
+    private static final int MAX_REQUESTS = 16;
+
+    private final Map<Key, CaptureRequest> requests = new LinkedHashMap<Key, CaptureRequest>(MAX_REQUESTS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CaptureRequest> eldest) {
+            return size() > MAX_REQUESTS;
+        }
+    };
+
+    /**
+     * Get the request for the given settings, building it if not cached.
+     * @param targets Bit mask of the outputs targeted by the request.
+     */
+    @NonNull
+    CaptureRequest get(float zoom, @Nullable Point offset, int targets, boolean triggerAF, @NonNull Factory factory) {
+        Key key = new Key(zoom, offset, targets, triggerAF);
+        CaptureRequest request = requests.get(key);
+        if (request == null) {
+            request = factory.create(triggerAF);
+            requests.put(key, request);
+        }
+        return request;
+    }
+
+    void clear() {
+        requests.clear();
+    }
+
+    /* The offset point is mutable, so its coordinates are copied. */
+    private static final class Key {
+        private final float zoom;
+        private final boolean hasOffset;
+        private final int offsetX;
+        private final int offsetY;
+        private final int targets;
+        private final boolean triggerAF;
+
+        Key(float zoom, @Nullable Point offset, int targets, boolean triggerAF) {
+            this.zoom = zoom;
+            this.hasOffset = offset != null;
+            this.offsetX = offset != null ? offset.x : 0;
+            this.offsetY = offset != null ? offset.y : 0;
+            this.targets = targets;
+            this.triggerAF = triggerAF;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return Float.compare(zoom, other.zoom) == 0 && hasOffset == other.hasOffset && offsetX == other.offsetX &&
+                    offsetY == other.offsetY && targets == other.targets && triggerAF == other.triggerAF;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Float.floatToIntBits(zoom);
+            result = 31 * result + (hasOffset ? 1 : 0);
+            result = 31 * result + offsetX;
+            result = 31 * result + offsetY;
+            result = 31 * result + targets;
+            result = 31 * result + (triggerAF ? 1 : 0);
+            return result;
+        }
+    }
+}
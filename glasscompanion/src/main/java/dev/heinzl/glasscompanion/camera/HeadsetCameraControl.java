@@ -0,0 +1,95 @@
+package dev.heinzl.glasscompanion.camera;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.iristick.smartglass.core.Headset;
+import com.iristick.smartglass.support.app.IristickApp;
+
+import dev.heinzl.glasscompanion.server.CameraControl;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Controls the camera streamers and the torch of the headset on behalf of the server.
+ *
+ * Camera settings belong to the main thread, so a batch of commands is applied there as one
+ * task. All changes to a camera within the task end up in the same capture request update.
+ */
+class HeadsetCameraControl implements CameraControl {
+
+    /* The main thread may be busy, but not for longer than this. */
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    private final CameraStreamer[] streamers;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean torchEnabled = false;
+
+    /**
+     * @param streamers Camera streamers indexed as in the URL paths, null if not present.
+     */
+    HeadsetCameraControl(@NonNull CameraStreamer[] streamers) {
+        this.streamers = streamers.clone();
+    }
+
+    @NonNull
+    @Override
+    public CameraState[] apply(@NonNull Command[] commands, @Nullable Boolean torch) throws IOException {
+        FutureTask<CameraState[]> task = new FutureTask<>(() -> applyOnMainThread(commands, torch));
+        if (Looper.myLooper() == Looper.getMainLooper())
+            task.run();
+        else
+            mainHandler.post(task);
+
+        try {
+            return task.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            task.cancel(false);
+            throw new IOException("Cameras did not respond");
+        } catch (InterruptedException e) {
+            task.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot apply commands", e.getCause());
+        }
+    }
+
+    @Override
+    public boolean isTorchEnabled() {
+        return torchEnabled;
+    }
+
+    /** Switch the torch of the headset. Must be called on the main thread. */
+    void setTorchEnabled(boolean enabled) {
+        Headset headset = IristickApp.getHeadset();
+        if (headset == null)
+            return;
+        headset.setTorchMode(enabled);
+        torchEnabled = enabled;
+    }
+
+    private CameraState[] applyOnMainThread(Command[] commands, @Nullable Boolean torch) {
+        CameraState[] states = new CameraState[streamers.length];
+        for (int i = 0; i < streamers.length; i++) {
+            CameraStreamer streamer = streamers[i];
+            Command command = i < commands.length ? commands[i] : null;
+            if (streamer == null)
+                states[i] = new CameraState(false, 1.0f, 1.0f, 0, 0, 0, 0, false);
+            else if (command != null)
+                states[i] = streamer.applyCommand(command);
+            else
+                states[i] = streamer.getCameraState();
+        }
+        if (torch != null)
+            setTorchEnabled(torch);
+        return states;
+    }
+}
@@ -0,0 +1,67 @@
+package dev.heinzl.glasscompanion.camera;
+
+import android.os.SystemClock;
+
+/**
+ * Converts sensor timestamps of one camera to the {@link System#nanoTime()} clock, so the
+ * capture time of a frame can be compared with the times of the later pipeline stages.
+ *
+ * The SDK does not specify the clock of {@code SENSOR_TIMESTAMP}. Capture results arrive
+ * shortly after the capture, so comparing their timestamps with the local clocks on arrival
+ * tells whether the sensor uses the monotonic clock or the elapsed realtime clock. For any
+ * other clock the offset is estimated from the fastest result seen, which underestimates
+ * latencies by the minimum delay of result delivery.
+ *
+ * Images carrying a timestamp of the sensor clock are converted directly. Otherwise an image
+ * gets the timestamp of the most recent capture result.
+ *
+ * Not thread-safe, used on the capture thread only.
+ */
+class SensorClock {
+
+    /* Capture results arriving later than this are not considered to be on a local clock. */
+    private static final long MAX_RESULT_DELAY_NANOS = 1000000000L;
+
+    private boolean known = false;
+    /* Added to sensor timestamps to get System.nanoTime(). */
+    private long offset;
+    /* Smallest arrival time minus sensor timestamp seen, for unrelated clocks. */
+    private long minimumOffset = Long.MAX_VALUE;
+    private long latestTimestamp;
+
+    /** Record the sensor timestamp of a capture result which arrived just now. */
+    void onCaptureCompleted(long sensorTimestamp) {
+        long now = System.nanoTime();
+        long realtime = SystemClock.elapsedRealtimeNanos();
+
+        if (isPlausibleDelay(now - sensorTimestamp)) {
+            offset = 0;
+        } else if (isPlausibleDelay(realtime - sensorTimestamp)) {
+            offset = now - realtime;
+        } else {
+            minimumOffset = Math.min(minimumOffset, now - sensorTimestamp);
+            offset = minimumOffset;
+        }
+        latestTimestamp = sensorTimestamp;
+        known = true;
+    }
+
+    /**
+     * Capture time of an image on the monotonic clock.
+     * @param imageTimestamp Timestamp of the image, e.g. {@code Image.getTimestamp()}.
+     * @param availableTime Monotonic time the image was received, the latest possible capture time.
+     * @return The capture time, or 0 if unknown because no capture result arrived yet.
+     */
+    long toCaptureTime(long imageTimestamp, long availableTime) {
+        if (!known)
+            return 0;
+        long sensorTimestamp = latestTimestamp;
+        if (imageTimestamp != 0 && Math.abs(imageTimestamp - latestTimestamp) < MAX_RESULT_DELAY_NANOS)
+            sensorTimestamp = imageTimestamp;
+        return Math.min(sensorTimestamp + offset, availableTime);
+    }
+
+    private static boolean isPlausibleDelay(long nanos) {
+        return nanos >= 0 && nanos < MAX_RESULT_DELAY_NANOS;
+    }
+}
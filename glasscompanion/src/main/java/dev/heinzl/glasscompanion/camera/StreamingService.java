@@ -0,0 +1,212 @@
+package dev.heinzl.glasscompanion.camera;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.graphics.drawable.Icon;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.widget.Toast;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import dev.heinzl.glasscompanion.R;
+import dev.heinzl.glasscompanion.server.BitmapJpegTranscoder;
+import dev.heinzl.glasscompanion.server.Server;
+import dev.heinzl.glasscompanion.server.StaticContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Foreground service owning the cameras and the server while streaming.
+ *
+ * Streaming does not depend on the {@link CameraActivity}: it goes on while the screen is off
+ * or another app is in front, until the activity is finished or streaming is stopped from the
+ * notification. The activity binds to the service to show the previews and control the
+ * cameras, see {@link #getStreamer(int)}.
+ */
+public class StreamingService extends Service {
+
+    /** Action of the notification stopping the stream. */
+    static final String ACTION_STOP = "dev.heinzl.glasscompanion.action.STOP_STREAMING";
+
+    private static final String NOTIFICATION_CHANNEL = "streaming";
+    private static final int NOTIFICATION_ID = 1;
+
+    /* Asset directory holding the viewer pages. */
+    private static final String STATIC_CONTENT_ASSETS = "www";
+
+    /** Binder of clients in this process, giving access to the service itself. */
+    class LocalBinder extends Binder {
+        @NonNull
+        StreamingService getService() {
+            return StreamingService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    @Nullable private CameraStreamer[] streamers;
+    @Nullable private HeadsetCameraControl cameraControl;
+    @Nullable private Server server;
+    @Nullable private Runnable stopListener;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        startForeground(NOTIFICATION_ID, createNotification(getString(R.string.streaming_text, Server.SERVER_PORT)));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            stopStreaming();
+            stopSelf();
+        }
+        /* Streaming needs the activity to be configured, so it is not restarted on its own. */
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        stopStreaming();
+        super.onDestroy();
+    }
+
+    /**
+     * Open the cameras and start the server, unless already streaming. When streaming, only
+     * retry opening cameras which could not be opened before.
+     * @param configs Settings of the cameras, indexed as in the URL paths.
+     */
+    void startStreaming(@NonNull CameraStreamer.Config[] configs) {
+        if (streamers != null) {
+            for (CameraStreamer streamer : streamers)
+                streamer.start();
+            return;
+        }
+
+        streamers = new CameraStreamer[configs.length];
+        for (int i = 0; i < configs.length; i++) {
+            streamers[i] = new CameraStreamer(this, configs[i]);
+            streamers[i].start();
+        }
+        cameraControl = new HeadsetCameraControl(streamers);
+
+        /* Binding the socket is not allowed on the main thread. */
+        Server starting = new Server(streamers, loadStaticContent(), new BitmapJpegTranscoder(), cameraControl);
+        server = starting;
+        new Thread(() -> {
+            try {
+                starting.start();
+            } catch (IOException e) {
+                mainHandler.post(() -> onServerFailed(starting, e));
+            }
+        }, "ServerStart").start();
+    }
+
+    /* The previews keep working, so streaming stays up to show why nobody can connect. */
+    private void onServerFailed(@NonNull Server failed, @NonNull IOException e) {
+        if (failed != server)
+            return;
+        String text = getString(R.string.streaming_failed, e.getMessage());
+        Toast.makeText(this, text, Toast.LENGTH_LONG).show();
+        getSystemService(NotificationManager.class).notify(NOTIFICATION_ID, createNotification(text));
+    }
+
+    /** Streamer of the given camera, or null if not streaming. */
+    @Nullable
+    CameraStreamer getStreamer(int index) {
+        return streamers != null && index < streamers.length ? streamers[index] : null;
+    }
+
+    /** Control of the cameras and the torch, or null if not streaming. */
+    @Nullable
+    HeadsetCameraControl getCameraControl() {
+        return cameraControl;
+    }
+
+    /** Set the listener called on the main thread when streaming is stopped from the notification. */
+    void setStopListener(@Nullable Runnable listener) {
+        stopListener = listener;
+    }
+
+    private void stopStreaming() {
+        if (streamers == null)
+            return;
+        Runnable listener = stopListener;
+        stopListener = null;
+        if (listener != null)
+            listener.run();
+
+        if (server != null) {
+            server.stopServer();
+            server = null;
+        }
+        if (cameraControl != null && cameraControl.isTorchEnabled())
+            cameraControl.setTorchEnabled(false);
+        cameraControl = null;
+        for (CameraStreamer streamer : streamers)
+            streamer.close();
+        streamers = null;
+    }
+
+    @NonNull
+    private Notification createNotification(@NonNull String text) {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL,
+                    getString(R.string.streaming_channel), NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+            builder = new Notification.Builder(this, NOTIFICATION_CHANNEL);
+        } else {
+            builder = new Notification.Builder(this);
+        }
+
+        PendingIntent show = PendingIntent.getActivity(this, 0,
+                new Intent(this, CameraActivity.class), PendingIntent.FLAG_IMMUTABLE);
+        PendingIntent stop = PendingIntent.getService(this, 0,
+                new Intent(this, StreamingService.class).setAction(ACTION_STOP), PendingIntent.FLAG_IMMUTABLE);
+        return builder.setContentTitle(getString(R.string.streaming_title))
+                .setContentText(text)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setOngoing(true)
+                .setContentIntent(show)
+                .addAction(new Notification.Action.Builder((Icon) null, getString(R.string.streaming_stop), stop).build())
+                .build();
+    }
+
+    /** Load the viewer pages from the assets, or serve none if they cannot be read. */
+    private StaticContent loadStaticContent() {
+        Map<String, byte[]> files = new HashMap<>();
+        try {
+            String[] names = getAssets().list(STATIC_CONTENT_ASSETS);
+            if (names != null) {
+                for (String name : names) {
+                    try (InputStream input = getAssets().open(STATIC_CONTENT_ASSETS + "/" + name)) {
+                        files.put(name, StaticContent.readFully(input));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            files.clear();
+        }
+        return new StaticContent(files);
+    }
+}
@@ -0,0 +1,120 @@
+package dev.heinzl.glasscompanion.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+
+import androidx.annotation.NonNull;
+
+import dev.heinzl.glasscompanion.stream.FramePool;
+import dev.heinzl.glasscompanion.stream.ParallelJpegEncoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds YUV images of one image reader to a {@link ParallelJpegEncoder}.
+ *
+ * Each image is copied into a pooled array on the capture thread, so its buffer goes back to
+ * the camera right away, and compressed by {@link YuvImage} on a worker. YUY2 images are
+ * copied as they are; planar 4:2:0 images (YV12, YUV_420_888) are interleaved to NV21 while
+ * copying, as YuvImage only understands these two layouts.
+ */
+class YuvFrameEncoder {
+
+    private final ParallelJpegEncoder encoder;
+    private final int quality;
+    private final FramePool pool;
+
+    /**
+     * @param quality JPEG quality from 0 to 100.
+     * @param pooledImages Number of idle copies kept for reuse.
+     */
+    YuvFrameEncoder(@NonNull ParallelJpegEncoder encoder, int quality, int pooledImages) {
+        this.encoder = encoder;
+        this.quality = quality;
+        this.pool = new FramePool(pooledImages);
+    }
+
+    /**
+     * Copy the image and queue it for encoding. The caller still has to close the image.
+     * @param captureTime Monotonic time the sensor captured the image, or 0 if unknown.
+     * @param availableTime Monotonic time the image was received.
+     */
+    void submit(@NonNull Image image, long captureTime, long availableTime) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+
+        if (image.getFormat() == ImageFormat.YUY2) {
+            ByteBuffer buffer = planes[0].getBuffer();
+            int rowStride = planes[0].getRowStride();
+            byte[] data = pool.acquire(rowStride * height);
+            buffer.get(data, 0, Math.min(buffer.remaining(), rowStride * height));
+            encoder.submit(new Job(data, ImageFormat.YUY2, width, height, new int[] {rowStride}), captureTime, availableTime);
+            return;
+        }
+
+        /* NV21: the luma plane with its row stride, followed by interleaved V/U rows. */
+        int yStride = planes[0].getRowStride();
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int chromaStride = chromaWidth * 2;
+        byte[] data = pool.acquire(yStride * height + chromaStride * chromaHeight);
+
+        ByteBuffer y = planes[0].getBuffer();
+        y.get(data, 0, Math.min(y.remaining(), yStride * height));
+
+        ByteBuffer u = planes[1].getBuffer();
+        ByteBuffer v = planes[2].getBuffer();
+        int uRowStride = planes[1].getRowStride();
+        int vRowStride = planes[2].getRowStride();
+        int uPixelStride = planes[1].getPixelStride();
+        int vPixelStride = planes[2].getPixelStride();
+        byte[] uRow = new byte[uRowStride];
+        byte[] vRow = new byte[vRowStride];
+        int offset = yStride * height;
+        for (int row = 0; row < chromaHeight; row++) {
+            /* Bulk copy each row out of the direct buffers, then interleave. */
+            u.position(row * uRowStride);
+            u.get(uRow, 0, Math.min(uRowStride, u.remaining()));
+            v.position(row * vRowStride);
+            v.get(vRow, 0, Math.min(vRowStride, v.remaining()));
+            for (int column = 0; column < chromaWidth; column++) {
+                data[offset++] = vRow[column * vPixelStride];
+                data[offset++] = uRow[column * uPixelStride];
+            }
+        }
+        encoder.submit(new Job(data, ImageFormat.NV21, width, height, new int[] {yStride, chromaStride}), captureTime, availableTime);
+    }
+
+    private class Job implements ParallelJpegEncoder.Job {
+        private final byte[] data;
+        private final int format;
+        private final int width;
+        private final int height;
+        private final int[] strides;
+
+        Job(byte[] data, int format, int width, int height, int[] strides) {
+            this.data = data;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.strides = strides;
+        }
+
+        @Override
+        public void encode(@NonNull OutputStream output) throws IOException {
+            YuvImage image = new YuvImage(data, format, width, height, strides);
+            if (!image.compressToJpeg(new Rect(0, 0, width, height), quality, output))
+                throw new IOException("Cannot encode YUV image");
+        }
+
+        @Override
+        public void release() {
+            pool.recycle(data);
+        }
+    }
+}
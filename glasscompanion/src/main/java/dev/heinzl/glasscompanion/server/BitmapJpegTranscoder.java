@@ -0,0 +1,104 @@
+package dev.heinzl.glasscompanion.server;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link JpegTranscoder} based on the Android bitmap codecs.
+ */
+public class BitmapJpegTranscoder implements JpegTranscoder {
+
+    /* The picture in picture inset is a quarter of the width, offset from the edges by 1/64. */
+    private static final int INSET_SCALE = 4;
+    private static final int INSET_MARGIN_SCALE = 64;
+
+    @Override
+    public void transcode(@NonNull byte[] data, int length, int quality, @NonNull OutputStream output) throws IOException {
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, length);
+        if (bitmap == null)
+            throw new IOException("Cannot decode JPEG image");
+        compress(bitmap, quality, output);
+    }
+
+    @Override
+    public void crop(@NonNull byte[] data, int length, int x, int y, int width, int height, int quality,
+                     @NonNull OutputStream output) throws IOException {
+        /* The decoder only reads the input while decoding, hence it does not need a copy. */
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(data, 0, length, true);
+        Bitmap bitmap;
+        try {
+            Rect region = new Rect(x, y, Math.min(x + width, decoder.getWidth()), Math.min(y + height, decoder.getHeight()));
+            if (region.width() <= 0 || region.height() <= 0)
+                throw new IOException("Region outside of the image");
+            bitmap = decoder.decodeRegion(region, null);
+        } finally {
+            decoder.recycle();
+        }
+        if (bitmap == null)
+            throw new IOException("Cannot decode JPEG region");
+        compress(bitmap, quality, output);
+    }
+
+    @Override
+    public void compose(@NonNull byte[] first, int firstLength, @NonNull byte[] second, int secondLength,
+                        boolean pictureInPicture, int quality, @NonNull OutputStream output) throws IOException {
+        /* For picture in picture the inset is drawn straight onto the decoded first image. */
+        BitmapFactory.Options firstOptions = new BitmapFactory.Options();
+        firstOptions.inMutable = pictureInPicture;
+        Bitmap main = BitmapFactory.decodeByteArray(first, 0, firstLength, firstOptions);
+        if (main == null)
+            throw new IOException("Cannot decode JPEG image");
+
+        Bitmap other = null;
+        try {
+            /* The inset needs a fraction of the resolution only, let the decoder scale down. */
+            BitmapFactory.Options secondOptions = new BitmapFactory.Options();
+            secondOptions.inSampleSize = pictureInPicture ? INSET_SCALE : 1;
+            other = BitmapFactory.decodeByteArray(second, 0, secondLength, secondOptions);
+            if (other == null)
+                throw new IOException("Cannot decode JPEG image");
+
+            int width = main.getWidth();
+            int height = main.getHeight();
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            if (pictureInPicture) {
+                int margin = width / INSET_MARGIN_SCALE;
+                int insetWidth = width / INSET_SCALE;
+                int insetHeight = other.getHeight() * insetWidth / other.getWidth();
+                Rect inset = new Rect(width - margin - insetWidth, height - margin - insetHeight, width - margin, height - margin);
+                new Canvas(main).drawBitmap(other, null, inset, paint);
+                if (!main.compress(Bitmap.CompressFormat.JPEG, quality, output))
+                    throw new IOException("Cannot encode JPEG image");
+            } else {
+                int otherWidth = other.getWidth() * height / other.getHeight();
+                Bitmap composite = Bitmap.createBitmap(width + otherWidth, height, Bitmap.Config.ARGB_8888);
+                Canvas canvas = new Canvas(composite);
+                canvas.drawBitmap(main, null, new Rect(0, 0, width, height), null);
+                canvas.drawBitmap(other, null, new Rect(width, 0, width + otherWidth, height), paint);
+                compress(composite, quality, output);
+            }
+        } finally {
+            main.recycle();
+            if (other != null)
+                other.recycle();
+        }
+    }
+
+    private static void compress(Bitmap bitmap, int quality, OutputStream output) throws IOException {
+        try {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, output))
+                throw new IOException("Cannot encode JPEG image");
+        } finally {
+            bitmap.recycle();
+        }
+    }
+}